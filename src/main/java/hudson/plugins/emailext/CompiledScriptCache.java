@@ -0,0 +1,123 @@
+package hudson.plugins.emailext;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.kohsuke.groovy.sandbox.SandboxTransformer;
+
+/**
+ * Compiled classes of the Groovy scripts users enter in the job configuration,
+ * such as the trigger scripts and the pre-send script.
+ *
+ * <p>
+ * The same script used to be compiled to a new class every time it ran.
+ * Now each distinct script text is compiled once per sandbox setting, with
+ * the same imports as before, and every run gets a new instance of the class
+ * with its own {@link Binding}. At most {@link #SIZE} classes are kept; they
+ * are all dropped with their {@link ScriptRuntime} generation.
+ */
+public final class CompiledScriptCache {
+
+    /**
+     * The maximum number of compiled scripts kept.
+     */
+    public static final int SIZE = Integer.getInteger(CompiledScriptCache.class.getName() + ".size", 200);
+
+    /**
+     * Set to true to compile scripts every time they run.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(CompiledScriptCache.class.getName() + ".disabled");
+
+    private static final CompiledScriptCache INSTANCE = new CompiledScriptCache();
+
+    private final Cache<String, Class<? extends Script>> classes = CacheBuilder.newBuilder().maximumSize(SIZE).build();
+
+    private CompiledScriptCache() {
+        ScriptRuntime.get().register(classes);
+    }
+
+    public static CompiledScriptCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates an instance of a script, ready to {@link Script#run() run}.
+     *
+     * <p>
+     * When <tt>sandboxed</tt> is true the script is compiled with the
+     * {@link SandboxTransformer}; the caller still has to register a
+     * {@link ScriptSandbox} on the thread that runs it.
+     *
+     * @param text the source of the script
+     * @param sandboxed whether script security is enabled
+     * @param binding the variables of this run
+     */
+    public Script createScript(String text, boolean sandboxed, Binding binding) {
+        return createScript(text, sandboxed, null, binding);
+    }
+
+    /**
+     * Creates an instance of a script that extends the given base class.
+     *
+     * @param baseClass the base class of the script, or null for
+     * {@link Script}
+     * @see #createScript(String, boolean, Binding)
+     */
+    public Script createScript(final String text, final boolean sandboxed, final Class<? extends Script> baseClass,
+            Binding binding) {
+        if (DISABLED) {
+            return compile(text, sandboxed, baseClass, binding);
+        }
+
+        Class<? extends Script> clazz;
+        try {
+            String key = (sandboxed ? "sandbox\n" : "\n") + (baseClass != null ? baseClass.getName() : "") + "\n" + text;
+            clazz = classes.get(key, new Callable<Class<? extends Script>>() {
+                public Class<? extends Script> call() {
+                    return compile(text, sandboxed, baseClass, new Binding()).getClass();
+                }
+            });
+        } catch (ExecutionException e) {
+            // compile() throws no checked exceptions
+            throw new IllegalStateException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        } catch (ExecutionError e) {
+            throw (Error) e.getCause();
+        }
+        return InvokerHelper.createScript(clazz, binding);
+    }
+
+    public void invalidateAll() {
+        classes.invalidateAll();
+    }
+
+    public long size() {
+        return classes.size();
+    }
+
+    private static Script compile(String text, boolean sandboxed, Class<? extends Script> baseClass,
+            Binding binding) {
+        CompilerConfiguration cc = new CompilerConfiguration();
+        if (baseClass != null) {
+            cc.setScriptBaseClass(baseClass.getName());
+        }
+        cc.addCompilationCustomizers(new ImportCustomizer().addStarImports(
+                "jenkins",
+                "jenkins.model",
+                "hudson",
+                "hudson.model"));
+        if (sandboxed) {
+            cc.addCompilationCustomizers(new SandboxTransformer());
+        }
+        return ScriptRuntime.get().createShell(binding, cc).parse(text);
+    }
+}
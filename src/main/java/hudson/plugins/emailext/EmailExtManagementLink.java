@@ -0,0 +1,96 @@
+package hudson.plugins.emailext;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Shows the state of email delivery on the "Manage Jenkins" page.
+ */
+@Extension
+public class EmailExtManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "notepad.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "email-ext";
+    }
+
+    public String getDisplayName() {
+        return Messages.EmailExtManagementLink_DisplayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.EmailExtManagementLink_Description();
+    }
+
+    public MailQueue getMailQueue() {
+        return MailQueue.get();
+    }
+
+    public SmtpTransportPool getTransportPool() {
+        return SmtpTransportPool.get();
+    }
+
+    public SmtpCircuitBreaker getCircuitBreaker() {
+        return SmtpCircuitBreaker.get();
+    }
+
+    public MailSpool getMailSpool() {
+        return MailSpool.get();
+    }
+
+    public ScriptRuntime getScriptRuntime() {
+        return ScriptRuntime.get();
+    }
+
+    /**
+     * Retries all spooled messages now, ignoring their backoff.
+     */
+    @RequirePOST
+    public HttpResponse doFlushSpool() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        MailSpool.get().retry(true);
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Drops all spooled messages.
+     */
+    @RequirePOST
+    public HttpResponse doPurgeSpool() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        MailSpool.get().purge();
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Drops all compiled templates and scripts, so that their classes can be
+     * unloaded.
+     */
+    @RequirePOST
+    public HttpResponse doDropScripts() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        ScriptRuntime.get().newGeneration();
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Drops a single spooled message.
+     */
+    @RequirePOST
+    public HttpResponse doDeleteSpooled(@QueryParameter String id) {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        MailSpool.get().delete(id);
+        return HttpResponses.redirectToDot();
+    }
+}
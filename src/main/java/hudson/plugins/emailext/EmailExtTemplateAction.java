@@ -1,6 +1,5 @@
 package hudson.plugins.emailext;
 
-import hudson.ExtensionList;
 import hudson.Plugin;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -11,12 +10,10 @@ import hudson.plugins.emailext.plugins.content.JellyScriptContent;
 import hudson.plugins.emailext.plugins.content.ScriptContent;
 import hudson.util.FormValidation;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
-import org.jenkinsci.lib.configprovider.ConfigProvider;
-import org.jenkinsci.lib.configprovider.model.Config;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 
@@ -71,14 +68,11 @@ public class EmailExtTemplateAction implements Action {
     private FormValidation checkForManagedFile(final String value) {
         Plugin plugin = Jenkins.getInstance().getPlugin("config-file-provider");
         if(plugin != null) {
-            Config config = null;
-            Collection<ConfigProvider> providers = getTemplateConfigProviders();
-            for(ConfigProvider provider : providers) {
-                for(Config c : provider.getAllConfigs()) {
-                    if(c.name.equalsIgnoreCase(value) && provider.isResponsibleFor(c.id)) {
-                        return FormValidation.ok();
-                    }                    
-                }            
+            String name = value.substring("managed:".length());
+            for(ManagedTemplateIndex index : getTemplateIndexes()) {
+                if(index.find(name) != null) {
+                    return FormValidation.ok();
+                }
             }
         } else {
             return FormValidation.error(Messages.EmailExtTemplateAction_ConfigFileProviderNotAvailable());
@@ -86,19 +80,18 @@ public class EmailExtTemplateAction implements Action {
         return FormValidation.error(Messages.EmailExtTemplateAction_ManagedTemplateNotFound());
     }
     
-    private static Collection<ConfigProvider> getTemplateConfigProviders() {
-        Collection<ConfigProvider> providers = Collections.emptyList();
-        ExtensionList<ConfigProvider> all = ConfigProvider.all();
-        ConfigProvider p = all.get(GroovyTemplateConfig.GroovyTemplateConfigProvider.class);
-        if(p != null) {
-            providers.add(p);
+    private static Collection<ManagedTemplateIndex> getTemplateIndexes() {
+        Collection<ManagedTemplateIndex> indexes = new ArrayList<ManagedTemplateIndex>();
+        ManagedTemplateIndex index = ManagedTemplateIndex.of(GroovyTemplateConfig.GroovyTemplateConfigProvider.class);
+        if(index != null) {
+            indexes.add(index);
         }
         
-        p = all.get(JellyTemplateConfig.JellyTemplateConfigProvider.class);
-        if(p != null) {
-            providers.add(p);
+        index = ManagedTemplateIndex.of(JellyTemplateConfig.JellyTemplateConfigProvider.class);
+        if(index != null) {
+            indexes.add(index);
         }
-        return providers;
+        return indexes;
     }
     
     @JavaScriptMethod
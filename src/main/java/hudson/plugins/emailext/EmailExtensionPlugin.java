@@ -24,6 +24,9 @@
 package hudson.plugins.emailext;
 
 import hudson.Plugin;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.plugins.emailext.plugins.content.TemplateWarmup;
 
 import java.util.Arrays;
 
@@ -47,4 +50,13 @@ public class EmailExtensionPlugin extends Plugin {
             }
         }
     }
+
+    /**
+     * Starts compiling the email templates in the background once the jobs
+     * are loaded, if enabled (see {@link TemplateWarmup}).
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void warmUpTemplates() {
+        TemplateWarmup.start();
+    }
 }
@@ -4,7 +4,7 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import groovy.lang.Script;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -18,23 +18,32 @@ import hudson.model.Action;
 import hudson.model.BuildListener;
 import hudson.model.Item;
 import hudson.model.Result;
+import hudson.model.StreamBuildListener;
 import hudson.model.TaskListener;
 import hudson.plugins.emailext.plugins.ContentBuilder;
 import hudson.plugins.emailext.plugins.CssInliner;
 import hudson.plugins.emailext.plugins.EmailTrigger;
 import hudson.plugins.emailext.plugins.RecipientProvider;
+import hudson.plugins.emailext.plugins.SpooledDataSource;
+import hudson.plugins.emailext.plugins.TokenCache;
+import hudson.plugins.emailext.plugins.content.EmailExtScript;
 import hudson.plugins.emailext.plugins.content.TriggerNameContent;
+import hudson.security.ACL;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.MailMessageIdAction;
 import hudson.tasks.Mailer;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.ConnectException;
-import java.net.SocketException;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -43,28 +52,31 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
-import javax.mail.SendFailedException;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.apache.commons.lang.StringUtils;
-import org.codehaus.groovy.control.CompilerConfiguration;
-import org.codehaus.groovy.control.customizers.ImportCustomizer;
 import org.jenkinsci.plugins.tokenmacro.TokenMacro;
-import org.kohsuke.groovy.sandbox.SandboxTransformer;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -266,25 +278,112 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
             return true;
         }
 
+        // tokens used by several emails are only evaluated once
+        TokenCache tokenCache = new TokenCache();
+        List<ExtendedEmailPublisherContext> contexts = new ArrayList<ExtendedEmailPublisherContext>();
         for (String triggerName : triggered.keySet()) {
             for (EmailTrigger trigger : triggered.get(triggerName)) {
-                listener.getLogger().println("Sending email for trigger: " + triggerName);
                 final ExtendedEmailPublisherContext context = new ExtendedEmailPublisherContext(this, build, launcher, listener);
                 context.setTriggered(triggered);
                 context.setTrigger(trigger);
+                context.setTokenCache(tokenCache);
+                contexts.add(context);
+            }
+        }
+
+        if (getDescriptor().isParallelTriggers() && contexts.size() > 1) {
+            sendMailInParallel(contexts, listener);
+        } else {
+            for (ExtendedEmailPublisherContext context : contexts) {
+                listener.getLogger().println("Sending email for trigger: " + context.getTrigger().getDescriptor().getDisplayName());
                 sendMail(context);
             }
         }
 
+        // the build links to the first email in trigger order, however the emails were sent
+        for (ExtendedEmailPublisherContext context : contexts) {
+            if (context.getMessageId() != null) {
+                if (build.getAction(MailMessageIdAction.class) == null) {
+                    build.addAction(new MailMessageIdAction(context.getMessageId()));
+                }
+                break;
+            }
+        }
+
         return true;
     }
 
+    /**
+     * Renders and sends the emails of several triggers at the same time.
+     *
+     * <p>
+     * Each trigger writes to its own buffer, and the buffers are copied to the
+     * build log in trigger order once they are done, so the log reads the same
+     * as when the emails are sent one after another.
+     */
+    private void sendMailInParallel(List<ExtendedEmailPublisherContext> contexts, BuildListener listener) {
+        final Authentication auth = Jenkins.getAuthentication();
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        Charset charset = contexts.get(0).getBuild().getCharset();
+
+        List<ByteArrayOutputStream> buffers = new ArrayList<ByteArrayOutputStream>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final ExtendedEmailPublisherContext context : contexts) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            context.setListener(new StreamBuildListener(buffer, charset));
+            context.getListener().getLogger().println("Sending email for trigger: " + context.getTrigger().getDescriptor().getDisplayName());
+            buffers.add(buffer);
+            futures.add(TriggerExecutor.get().submit(new Runnable() {
+                public void run() {
+                    Thread t = Thread.currentThread();
+                    ClassLoader oldClassLoader = t.getContextClassLoader();
+                    SecurityContext oldContext = ACL.impersonate(auth);
+                    t.setContextClassLoader(contextClassLoader);
+                    try {
+                        sendMail(context);
+                    } finally {
+                        t.setContextClassLoader(oldClassLoader);
+                        SecurityContextHolder.setContext(oldContext);
+                    }
+                }
+            }));
+        }
+
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<?> future = futures.get(i);
+            try {
+                if (interrupted) {
+                    future.cancel(true);
+                } else {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+                future.cancel(true);
+            } catch (CancellationException e) {
+                // only happens after we were interrupted
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Could not send email.", e.getCause());
+                e.getCause().printStackTrace(contexts.get(i).getListener().error("Could not send email as a part of the post-build publishers."));
+            }
+            contexts.get(i).getListener().getLogger().flush();
+            try {
+                buffers.get(i).writeTo(listener.getLogger());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not copy the email log to the build log", e);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private boolean sendMail(ExtendedEmailPublisherContext context) {
         try {
             MimeMessage msg = createMail(context);
             debug(context.getListener().getLogger(), "Successfully created MimeMessage");
             Address[] allRecipients = msg.getAllRecipients();
-            int retries = 0;
             if (allRecipients != null) {
                 if (executePresendScript(context, msg)) {
                     // presend script might have modified recipients:
@@ -305,55 +404,17 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
                     }
                     context.getListener().getLogger().println(buf);
 
-                    while (true) {
-                        try {
-                            Transport.send(msg);
-                            break;
-                        } catch (SendFailedException e) {
-                            if (e.getNextException() != null
-                                    && ((e.getNextException() instanceof SocketException)
-                                    || (e.getNextException() instanceof ConnectException))) {
-                                context.getListener().getLogger().println("Socket error sending email, retrying once more in 10 seconds...");
-                                Thread.sleep(10000);
-                            } else {
-                                Address[] addresses = e.getValidSentAddresses();
-                                if (addresses != null && addresses.length > 0) {
-                                    buf = new StringBuilder("Successfully sent to the following addresses:");
-                                    for (Address a : addresses) {
-                                        buf.append(' ').append(a);
-                                    }
-                                    context.getListener().getLogger().println(buf);
-                                }
-                                addresses = e.getValidUnsentAddresses();
-                                if (addresses != null && addresses.length > 0) {
-                                    buf = new StringBuilder("Error sending to the following VALID addresses:");
-                                    for (Address a : addresses) {
-                                        buf.append(' ').append(a);
-                                    }
-                                    context.getListener().getLogger().println(buf);
-                                }
-                                addresses = e.getInvalidAddresses();
-                                if (addresses != null && addresses.length > 0) {
-                                    buf = new StringBuilder("Error sending to the following INVALID addresses:");
-                                    for (Address a : addresses) {
-                                        buf.append(' ').append(a);
-                                    }
-                                    context.getListener().getLogger().println(buf);
-                                }
-
-                                debug(context.getListener().getLogger(), "SendFailedException message: " + e.getMessage());
-                                break;
-                            }
-                        }
-                        retries++;
-                        if (retries > 1) {
-                            context.getListener().getLogger().println("Failed after second try sending email");
-                            break;
+                    // in debug mode the session writes to this build's log,
+                    // which may be closed by the time a worker sends the message
+                    try {
+                        if (!getDescriptor().isAsyncDelivery() || getDescriptor().isDebugMode()
+                                || !(msg instanceof ExtendedMimeMessage) || !queueMail(context, (ExtendedMimeMessage) msg)) {
+                            MailSender.send(msg, context.getListener().getLogger());
                         }
+                    } finally {
+                        releaseContent(msg);
                     }
-                    if (context.getBuild().getAction(MailMessageIdAction.class) == null) {
-                        context.getBuild().addAction(new MailMessageIdAction(msg.getMessageID()));
-                    }
+                    context.setMessageId(msg.getMessageID());
                 } else {
                     context.getListener().getLogger().println("Email sending was cancelled"
                             + " by user script.");
@@ -372,6 +433,69 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
         return false;
     }
 
+    /**
+     * Deletes the temporary file of a streamed body once the message has been
+     * sent, queued or spooled, instead of waiting for the garbage collector.
+     */
+    private static void releaseContent(MimeMessage msg) {
+        try {
+            Object content = msg.getContent();
+            if (!(content instanceof Multipart)) {
+                return;
+            }
+            Multipart multipart = (Multipart) content;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                DataSource source = multipart.getBodyPart(i).getDataHandler().getDataSource();
+                if (source instanceof SpooledDataSource) {
+                    ((SpooledDataSource) source).reset();
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not release the email content", e);
+        }
+    }
+
+    /**
+     * Hands the message to the {@link MailQueue} and records it in the build's
+     * {@link MailDeliveryAction}.
+     *
+     * @return false if the queue is full and the message has to be sent on
+     * this thread instead
+     */
+    private boolean queueMail(ExtendedEmailPublisherContext context, ExtendedMimeMessage msg)
+            throws MessagingException, IOException {
+        // assign the Message-ID now so it can be recorded before the message is sent
+        msg.saveChanges();
+
+        AbstractBuild<?, ?> build = context.getBuild();
+        MailDeliveryAction action;
+        synchronized (build) {
+            action = build.getAction(MailDeliveryAction.class);
+            if (action == null) {
+                action = new MailDeliveryAction();
+                build.addAction(action);
+            }
+        }
+
+        StringBuilder recipients = new StringBuilder();
+        for (Address a : msg.getAllRecipients()) {
+            if (recipients.length() > 0) {
+                recipients.append(", ");
+            }
+            recipients.append(a);
+        }
+
+        MailDeliveryAction.Delivery delivery = action.add(msg.getMessageID(),
+                context.getTrigger().getDescriptor().getDisplayName(), recipients.toString());
+        if (MailQueue.get().submit(build, msg, delivery)) {
+            context.getListener().getLogger().println("Email queued for delivery");
+            return true;
+        }
+        action.remove(delivery);
+        context.getListener().getLogger().println("Mail queue is full, sending email directly");
+        return false;
+    }
+
     public List<TokenMacro> getRuntimeMacros(ExtendedEmailPublisherContext context) {
         List<TokenMacro> macros = new ArrayList<TokenMacro>();
         macros.add(new TriggerNameContent(context.getTrigger().getDescriptor().getDisplayName()));
@@ -381,21 +505,16 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
     private boolean executePresendScript(ExtendedEmailPublisherContext context, MimeMessage msg)
             throws RuntimeException {
         boolean cancel = false;
-        String script = ContentBuilder.transformText(presendScript, context, getRuntimeMacros(context));
+        // in strict mode the script text doesn't depend on the build, so it
+        // is compiled once; tokens are called as methods at run time instead
+        boolean strict = getDescriptor().isStrictPresendScript();
+        String script = strict ? ContentBuilder.resolveDefaults(presendScript, context)
+                : ContentBuilder.transformText(presendScript, context, getRuntimeMacros(context));
         if (StringUtils.isNotBlank(script)) {
             debug(context.getListener().getLogger(), "Executing pre-send script");
-            ClassLoader cl = Jenkins.getInstance().getPluginManager().uberClassLoader;
             ScriptSandbox sandbox = null;
-            CompilerConfiguration cc = new CompilerConfiguration();
-            cc.addCompilationCustomizers(new ImportCustomizer().addStarImports(
-                    "jenkins",
-                    "jenkins.model",
-                    "hudson",
-                    "hudson.model"));
-
             if (getDescriptor().isSecurityEnabled()) {
                 debug(context.getListener().getLogger(), "Setting up sandbox for pre-send script");
-                cc.addCompilationCustomizers(new SandboxTransformer());
                 sandbox = new ScriptSandbox();
             }
 
@@ -406,8 +525,10 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
             binding.setVariable("cancel", cancel);
             binding.setVariable("trigger", context.getTrigger());
             binding.setVariable("triggered", ImmutableMultimap.copyOf(context.getTriggered()));
+            if (strict) {
+                binding.setVariable("listener", context.getListener());
+            }
 
-            GroovyShell shell = new GroovyShell(cl, binding, cc);
             StringWriter out = new StringWriter();
             PrintWriter pw = new PrintWriter(out);
 
@@ -416,18 +537,26 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
             }
 
             try {
-                Object output = shell.evaluate(script);
+                Script compiled = CompiledScriptCache.get().createScript(script, sandbox != null,
+                        strict ? EmailExtScript.class : null, binding);
+                Object output = ScriptBudget.run(compiled);
                 if (output != null) {
                     pw.println("Result: " + output);
-                    cancel = ((Boolean) shell.getVariable("cancel")).booleanValue();
+                    cancel = ((Boolean) binding.getVariable("cancel")).booleanValue();
                     debug(context.getListener().getLogger(), "Pre-send script set cancel to %b", cancel);
                 }
             } catch (SecurityException e) {
                 context.getListener().getLogger().println("Pre-send script tried to access secured objects: " + e.getMessage());
+            } catch (ScriptBudgetExceededException e) {
+                context.getListener().getLogger().println("Pre-send script aborted: " + e.getMessage());
             } catch (Throwable t) {
                 t.printStackTrace(pw);
                 context.getListener().getLogger().println(out.toString());
                 // should we cancel the sending of the email???
+            } finally {
+                if (sandbox != null) {
+                    sandbox.unregister();
+                }
             }
             debug(context.getListener().getLogger(), out.toString());
         }
@@ -442,16 +571,18 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
 
         // If not overriding global settings, use the Mailer class to create a session and set the from address
         // Else we'll do it ourselves
+        // Sessions are shared between messages, except in debug mode where each
+        // message needs a session that writes to its own build log
         Session session;
         if (!overrideGlobalSettings) {
             debug(context.getListener().getLogger(), "NOT overriding default server settings, using Mailer to create session");
-            session = Mailer.descriptor().createSession();
-            msg = new MimeMessage(session);
+            session = descriptor.isDebugMode() ? Mailer.descriptor().createSession() : descriptor.getMailerSession();
+            msg = new ExtendedMimeMessage(session);
             msg.setFrom(new InternetAddress(JenkinsLocationConfiguration.get().getAdminAddress()));
         } else {
             debug(context.getListener().getLogger(), "Overriding default server settings, creating our own session");
-            session = descriptor.createSession();
-            msg = new MimeMessage(session);
+            session = descriptor.isDebugMode() ? descriptor.createSession() : descriptor.getSession();
+            msg = new ExtendedMimeMessage(session);
             msg.setFrom(new InternetAddress(descriptor.getAdminAddress()));
         }
 
@@ -598,8 +729,6 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
 
     private MimeBodyPart getContent(ExtendedEmailPublisherContext context, String charset)
             throws MessagingException {
-        final String text = ContentBuilder.transformText(context.getTrigger().getEmail().getBody(), context, getRuntimeMacros(context));
-
         String messageContentType = context.getTrigger().getEmail().getContentType().equals("project") ? contentType : context.getTrigger().getEmail().getContentType();
         // contentType is null if the project was not reconfigured after upgrading.
         if (messageContentType == null || "default".equals(messageContentType)) {
@@ -612,17 +741,18 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
         }
         messageContentType += "; charset=" + charset;
 
+        if (getDescriptor().isStreamingBody()) {
+            MimeBodyPart msgPart = getStreamedContent(context, charset, messageContentType);
+            if (msgPart != null) {
+                return msgPart;
+            }
+        }
+
+        final String text = ContentBuilder.transformText(context.getTrigger().getEmail().getBody(), context, getRuntimeMacros(context));
+
         try {
             if (saveOutput) {
-                Random random = new Random();
-                String extension = ".html";
-                if (messageContentType.startsWith("text/plain")) {
-                    extension = ".txt";
-                }
-
-                FilePath savedOutput = new FilePath(context.getBuild().getWorkspace(),
-                        String.format("%s-%s%d%s", context.getTrigger().getDescriptor().getDisplayName(), context.getBuild().getId(), random.nextInt(), extension));
-                savedOutput.write(text, charset);
+                getSavedOutput(context, messageContentType).write(text, charset);
             }
         } catch (IOException e) {
             context.getListener().getLogger().println("Error trying to save email output to file. " + e.getMessage());
@@ -643,6 +773,98 @@ public class ExtendedEmailPublisher extends Notifier implements MatrixAggregatab
         return msgPart;
     }
 
+    /**
+     * Renders the content into a {@link SpooledDataSource} instead of a
+     * String, so that a large body doesn't have to be held in memory.
+     *
+     * @return the body part, or null if the content has to be rendered as a
+     * String
+     */
+    private MimeBodyPart getStreamedContent(ExtendedEmailPublisherContext context, String charset, String messageContentType)
+            throws MessagingException {
+        SpooledDataSource body = new SpooledDataSource("body", messageContentType);
+        boolean streamed = false;
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(body.getOutputStream(), charset));
+            boolean written;
+            try {
+                written = ContentBuilder.writeText(context.getTrigger().getEmail().getBody(), context, getRuntimeMacros(context), out);
+            } finally {
+                out.close();
+            }
+            if (!written) {
+                return null;
+            }
+
+            if (messageContentType.startsWith("text/html") && body.getSize() > SpooledDataSource.THRESHOLD) {
+                // the CSS inliner needs the whole document in memory
+                context.getListener().getLogger().println("The email content is larger than "
+                        + SpooledDataSource.THRESHOLD + " bytes, CSS styles are not inlined");
+            } else if (messageContentType.startsWith("text/html")) {
+                InputStream in = body.getInputStream();
+                String inlinedCssHtml;
+                try {
+                    inlinedCssHtml = new CssInliner().process(in, charset);
+                } finally {
+                    in.close();
+                }
+                body.reset();
+                body = new SpooledDataSource("body", messageContentType);
+                out = new OutputStreamWriter(body.getOutputStream(), charset);
+                try {
+                    out.write(inlinedCssHtml);
+                } finally {
+                    out.close();
+                }
+            }
+
+            if (saveOutput) {
+                InputStream in = body.getInputStream();
+                try {
+                    getSavedOutput(context, messageContentType).copyFrom(in);
+                } catch (IOException e) {
+                    context.getListener().getLogger().println("Error trying to save email output to file. " + e.getMessage());
+                } catch (InterruptedException e) {
+                    context.getListener().getLogger().println("Error trying to save email output to file. " + e.getMessage());
+                } finally {
+                    in.close();
+                }
+            }
+
+            MimeBodyPart msgPart = new MimeBodyPart();
+            debug(context.getListener().getLogger(), "messageContentType = %s, streamed", messageContentType);
+            msgPart.setDataHandler(new DataHandler(body));
+            msgPart.setHeader("Content-Type", messageContentType);
+            streamed = true;
+            return msgPart;
+        } catch (IOException e) {
+            context.getListener().getLogger().println("Error streaming the email content, rendering it in memory instead. " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            throw new MessagingException("Interrupted while rendering the email content", e);
+        } finally {
+            if (!streamed) {
+                // the body part was not made, so nothing else will delete the temporary file
+                try {
+                    body.reset();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Could not release the email content", e);
+                }
+            }
+        }
+    }
+
+    private FilePath getSavedOutput(ExtendedEmailPublisherContext context, String messageContentType) {
+        Random random = new Random();
+        String extension = ".html";
+        if (messageContentType.startsWith("text/plain")) {
+            extension = ".txt";
+        }
+
+        return new FilePath(context.getBuild().getWorkspace(),
+                String.format("%s-%s%d%s", context.getTrigger().getDescriptor().getDisplayName(), context.getBuild().getId(), random.nextInt(), extension));
+    }
+
     @Override
     public boolean needsToRunAfterFinalized() {
         return true;
@@ -5,6 +5,7 @@ import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.plugins.emailext.plugins.EmailTrigger;
+import hudson.plugins.emailext.plugins.TokenCache;
 
 /**
  *
@@ -17,6 +18,8 @@ public class ExtendedEmailPublisherContext {
     private BuildListener listener;
     private Launcher launcher;
     private Multimap<String, EmailTrigger> triggered;
+    private String messageId;
+    private TokenCache tokenCache;
     
     public ExtendedEmailPublisherContext(ExtendedEmailPublisher publisher, AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
         this.publisher = publisher;
@@ -72,4 +75,28 @@ public class ExtendedEmailPublisherContext {
     protected void setTriggered(Multimap<String, EmailTrigger> triggered) {
         this.triggered = triggered;
     }
+
+    /**
+     * @return the Message-ID of the email sent for this trigger, or null if
+     * none was sent
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    protected void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    /**
+     * @return the cache of token values shared by all emails of this
+     * publisher run, or null if tokens are always evaluated
+     */
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    protected void setTokenCache(TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
 }
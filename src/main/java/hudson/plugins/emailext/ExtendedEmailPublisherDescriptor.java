@@ -5,6 +5,7 @@ import hudson.matrix.MatrixProject;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
 import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Mailer;
 import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
 import hudson.util.Secret;
@@ -22,6 +23,8 @@ import javax.servlet.ServletException;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
@@ -137,6 +140,48 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
      */
     private boolean enableWatching;
 
+    /**
+     * If true, rendered emails are handed to the {@link MailQueue} instead of
+     * being sent on the build's thread.
+     */
+    private boolean asyncDelivery = false;
+
+    /**
+     * The number of threads delivering queued emails.
+     */
+    private int asyncWorkers = MailQueue.DEFAULT_WORKERS;
+
+    /**
+     * The maximum number of emails waiting in the {@link MailQueue}.
+     */
+    private int asyncQueueSize = MailQueue.DEFAULT_CAPACITY;
+
+    /**
+     * If true, the emails of all triggers of a build are rendered and sent at
+     * the same time.
+     */
+    private boolean parallelTriggers = false;
+
+    /**
+     * If true, tokens in pre-send scripts are not expanded in the script
+     * source but called as methods when the script runs, so the compiled
+     * script can be reused.
+     */
+    private boolean strictPresendScript = false;
+
+    /**
+     * If true, email bodies are rendered into a buffer that moves to a
+     * temporary file when it gets large, instead of into Strings.
+     */
+    private boolean streamingBody = false;
+
+    /**
+     * Sessions handed out by {@link #getSession()} and
+     * {@link #getMailerSession()}, keyed by a fingerprint of the settings they
+     * were created from.
+     */
+    private transient final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
     @Override
     public String getDisplayName() {
         return Messages.ExtendedEmailPublisherDescriptor_DisplayName();
@@ -188,6 +233,55 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
         return Session.getInstance(props, getAuthenticator());
     }
 
+    /**
+     * Gets a shared JavaMail session for the settings of this descriptor.
+     *
+     * <p>
+     * The session must not be modified, use {@link #createSession()} for a
+     * session that needs its own debug output.
+     */
+    public Session getSession() {
+        String key = "ext";
+        Session session = sessions.get(key);
+        if (session == null) {
+            session = createSession();
+            Session existing = sessions.putIfAbsent(key, session);
+            if (existing != null) {
+                session = existing;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Gets a shared JavaMail session for the settings of the core Mailer.
+     *
+     * <p>
+     * Those settings can change without this descriptor being reconfigured,
+     * so the session is looked up by a fingerprint of them.
+     */
+    public Session getMailerSession() {
+        Mailer.DescriptorImpl mailer = Mailer.descriptor();
+        String key = "mailer:" + hudson.Util.getDigestOf(mailer.getSmtpServer() + '\n' + mailer.getSmtpPort()
+                + '\n' + mailer.getUseSsl() + '\n' + mailer.getSmtpAuthUserName()
+                + '\n' + mailer.getSmtpAuthPassword());
+        Session session = sessions.get(key);
+        if (session == null) {
+            // drop the sessions for older Mailer settings
+            for (String k : sessions.keySet()) {
+                if (k.startsWith("mailer:")) {
+                    sessions.remove(k);
+                }
+            }
+            session = mailer.createSession();
+            Session existing = sessions.putIfAbsent(key, session);
+            if (existing != null) {
+                session = existing;
+            }
+        }
+        return session;
+    }
+
     private Authenticator getAuthenticator() {
         final String un = getSmtpAuthUsername();
         if (un == null) {
@@ -298,6 +392,30 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
         return defaultPresendScript;
     }
 
+    public boolean isAsyncDelivery() {
+        return asyncDelivery;
+    }
+
+    public boolean isParallelTriggers() {
+        return parallelTriggers;
+    }
+
+    public boolean isStrictPresendScript() {
+        return strictPresendScript;
+    }
+
+    public boolean isStreamingBody() {
+        return streamingBody;
+    }
+
+    public int getAsyncWorkers() {
+        return asyncWorkers > 0 ? asyncWorkers : MailQueue.DEFAULT_WORKERS;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize > 0 ? asyncQueueSize : MailQueue.DEFAULT_CAPACITY;
+    }
+
     public ExtendedEmailPublisherDescriptor() {
         super(ExtendedEmailPublisher.class);
         load();
@@ -307,6 +425,7 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
             emergencyReroute = ExtendedEmailPublisher.DEFAULT_EMERGENCY_REROUTE_TEXT;
             enableSecurity = false;
         }
+        MailQueue.get().configure(getAsyncWorkers(), getAsyncQueueSize());
     }
 
     @Override
@@ -364,6 +483,17 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
 
         excludedCommitters = req.getParameter("ext_mailer_excluded_committers");
 
+        asyncDelivery = req.hasParameter("ext_mailer_async_delivery");
+        asyncWorkers = parseInt(req.getParameter("ext_mailer_async_workers"), MailQueue.DEFAULT_WORKERS);
+        asyncQueueSize = parseInt(req.getParameter("ext_mailer_async_queue_size"), MailQueue.DEFAULT_CAPACITY);
+        MailQueue.get().configure(getAsyncWorkers(), getAsyncQueueSize());
+        parallelTriggers = req.hasParameter("ext_mailer_parallel_triggers");
+        strictPresendScript = req.hasParameter("ext_mailer_strict_presend_script");
+        streamingBody = req.hasParameter("ext_mailer_streaming_body");
+        // don't keep sending over connections made with the old settings
+        SmtpTransportPool.get().flush();
+        SmtpCircuitBreaker.get().reset();
+
         // specify List-ID information
         if (req.hasParameter("ext_mailer_use_list_id")) {
             listId = nullify(req.getParameter("ext_mailer_list_id"));
@@ -372,6 +502,7 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
         }
         
         save();
+        sessions.clear();
         return super.configure(req, formData);
     }
 
@@ -382,6 +513,18 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
         return v;
     }
 
+    private int parseInt(String v, int defaultValue) {
+        v = nullify(v == null ? null : v.trim());
+        if (v != null) {
+            try {
+                return Integer.parseInt(v);
+            } catch (NumberFormatException e) {
+                // fall through to the default
+            }
+        }
+        return defaultValue;
+    }
+
     @Override
     public String getHelpFile() {
         return "/plugin/email-ext/help/main.html";
@@ -417,6 +560,22 @@ public final class ExtendedEmailPublisherDescriptor extends BuildStepDescriptor<
         }
     }
 
+    public FormValidation doPositiveIntegerCheck(@QueryParameter final String value)
+            throws IOException, ServletException {
+        String testValue = value.trim();
+        // an empty value means the default
+        if (testValue.length() > 0) {
+            try {
+                if (Integer.parseInt(testValue) <= 0) {
+                    return FormValidation.error(Messages.ExtendedEmailPublisherDescriptor_NotPositive());
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+        return FormValidation.ok();
+    }
+
     public boolean isMatrixProject(Object project) {
         return project instanceof MatrixProject;
     }
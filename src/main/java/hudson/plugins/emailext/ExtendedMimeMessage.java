@@ -0,0 +1,42 @@
+package hudson.plugins.emailext;
+
+import java.io.InputStream;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * A {@link MimeMessage} that keeps its Message-ID once one has been assigned.
+ *
+ * <p>
+ * {@link javax.mail.Transport#send(javax.mail.Message)} calls
+ * {@link MimeMessage#saveChanges()}, which normally generates a new Message-ID
+ * on every call. Messages that are queued, retried or spooled are saved more
+ * than once, and the id recorded in {@link hudson.tasks.MailMessageIdAction}
+ * has to match the one that is actually delivered.
+ */
+public class ExtendedMimeMessage extends MimeMessage {
+
+    public ExtendedMimeMessage(Session session) {
+        super(session);
+    }
+
+    public ExtendedMimeMessage(Session session, InputStream is) throws MessagingException {
+        super(session, is);
+    }
+
+    /**
+     * @return the session this message was created with, so that it can be
+     * sent over a pooled connection for the same server
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    @Override
+    protected void updateMessageID() throws MessagingException {
+        if (getHeader("Message-ID") == null) {
+            super.updateMessageID();
+        }
+    }
+}
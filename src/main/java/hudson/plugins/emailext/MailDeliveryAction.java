@@ -0,0 +1,122 @@
+package hudson.plugins.emailext;
+
+import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Records what happened to the emails that were handed to the
+ * {@link MailQueue} for a build.
+ *
+ * <p>
+ * The publisher adds one {@link Delivery} per message when it is queued, and
+ * the queue worker updates it once the message has been sent (or not).
+ *
+ * @see MailQueue
+ */
+public class MailDeliveryAction implements Action {
+
+    public enum Status {
+        QUEUED, SENT, SPOOLED, FAILED
+    }
+
+    /**
+     * The outcome of a single queued message.
+     */
+    public static class Delivery {
+
+        private final String messageId;
+        private final String trigger;
+        private final String recipients;
+        private final Date queued;
+        private volatile Status status = Status.QUEUED;
+        private volatile Date completed;
+        private volatile long sendTime;
+        private volatile String detail;
+
+        public Delivery(String messageId, String trigger, String recipients) {
+            this.messageId = messageId;
+            this.trigger = trigger;
+            this.recipients = recipients;
+            this.queued = new Date();
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getTrigger() {
+            return trigger;
+        }
+
+        public String getRecipients() {
+            return recipients;
+        }
+
+        public Date getQueued() {
+            return queued;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public Date getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return how long the SMTP delivery took, in milliseconds
+         */
+        public long getSendTime() {
+            return sendTime;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        void complete(Status status, long sendTime, String detail) {
+            this.sendTime = sendTime;
+            this.detail = detail;
+            this.completed = new Date();
+            this.status = status;
+        }
+    }
+
+    private final List<Delivery> deliveries = new ArrayList<Delivery>();
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.MailDeliveryAction_DisplayName();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    public Delivery add(String messageId, String trigger, String recipients) {
+        Delivery delivery = new Delivery(messageId, trigger, recipients);
+        synchronized (deliveries) {
+            deliveries.add(delivery);
+        }
+        return delivery;
+    }
+
+    void remove(Delivery delivery) {
+        synchronized (deliveries) {
+            deliveries.remove(delivery);
+        }
+    }
+
+    public List<Delivery> getDeliveries() {
+        synchronized (deliveries) {
+            return Collections.unmodifiableList(new ArrayList<Delivery>(deliveries));
+        }
+    }
+}
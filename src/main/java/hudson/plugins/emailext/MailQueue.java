@@ -0,0 +1,302 @@
+package hudson.plugins.emailext;
+
+import hudson.model.AbstractBuild;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Plugin-wide queue of rendered messages waiting to be delivered.
+ *
+ * <p>
+ * When asynchronous delivery is enabled the publisher only renders the
+ * {@link MimeMessage} and hands it over to this queue, so a slow SMTP server
+ * no longer holds up the build's executor. The queue is bounded; if it is full
+ * the caller is expected to send the message itself.
+ *
+ * <p>
+ * A queued message is written to a temporary file first and sent from there,
+ * so the worker doesn't read attachments from the workspace or the build log
+ * long after the build, without its permissions, and queued messages don't
+ * take up memory.
+ */
+public final class MailQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(MailQueue.class.getName());
+
+    public static final int DEFAULT_WORKERS = 2;
+
+    public static final int DEFAULT_CAPACITY = 500;
+
+    private static final MailQueue INSTANCE = new MailQueue();
+
+    private ThreadPoolExecutor executor;
+
+    private int capacity;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalSendTime = new AtomicLong();
+    private final AtomicLong maxSendTime = new AtomicLong();
+
+    private MailQueue() {
+    }
+
+    public static MailQueue get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Adjusts the size of the worker pool and the capacity of the queue.
+     * Messages that are already queued are still delivered when the capacity
+     * changes.
+     */
+    public synchronized void configure(int workers, int capacity) {
+        workers = Math.max(1, workers);
+        capacity = Math.max(1, capacity);
+        if (executor != null && this.capacity == capacity) {
+            if (workers > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(workers);
+                executor.setCorePoolSize(workers);
+            } else {
+                executor.setCorePoolSize(workers);
+                executor.setMaximumPoolSize(workers);
+            }
+            return;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        this.capacity = capacity;
+        executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            configure(DEFAULT_WORKERS, DEFAULT_CAPACITY);
+        }
+        return executor;
+    }
+
+    /**
+     * Queues a message for delivery.
+     *
+     * @param build the build the message belongs to
+     * @param msg the rendered message, with its Message-ID already assigned
+     * @param delivery the record to update once the message has been sent
+     * @return false if the queue is full and the message was not accepted
+     * @throws IOException if the message could not be written to a temporary
+     * file
+     */
+    public boolean submit(AbstractBuild<?, ?> build, ExtendedMimeMessage msg, MailDeliveryAction.Delivery delivery)
+            throws IOException, MessagingException {
+        ThreadPoolExecutor executor = getExecutor();
+        if (executor.getQueue().remainingCapacity() == 0) {
+            // don't bother writing the message out
+            rejected.incrementAndGet();
+            return false;
+        }
+        File file = File.createTempFile("email-ext", ".eml");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                msg.writeTo(out);
+            } finally {
+                out.close();
+            }
+            executor.execute(new Task(build, file, msg.getSession(), delivery));
+            file = null;
+            submitted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for a worker
+     */
+    public int getQueueDepth() {
+        return getExecutor().getQueue().size();
+    }
+
+    /**
+     * @return the number of messages currently being sent
+     */
+    public int getActiveCount() {
+        return getExecutor().getActiveCount();
+    }
+
+    public int getWorkers() {
+        return getExecutor().getMaximumPoolSize();
+    }
+
+    public synchronized int getCapacity() {
+        getExecutor();
+        return capacity;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of messages handed to the {@link MailSpool} because
+     * the SMTP server could not be reached
+     */
+    public long getSpooledCount() {
+        return spooled.get();
+    }
+
+    /**
+     * @return the number of messages that were sent on the build's thread
+     * because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the average time spent talking to the SMTP server, in
+     * milliseconds
+     */
+    public long getAverageSendTime() {
+        long count = sent.get() + failed.get() + spooled.get();
+        return count == 0 ? 0 : totalSendTime.get() / count;
+    }
+
+    /**
+     * @return the longest time spent talking to the SMTP server, in
+     * milliseconds
+     */
+    public long getMaxSendTime() {
+        return maxSendTime.get();
+    }
+
+    private void recordSendTime(long millis) {
+        totalSendTime.addAndGet(millis);
+        long max;
+        do {
+            max = maxSendTime.get();
+        } while (millis > max && !maxSendTime.compareAndSet(max, millis));
+    }
+
+    private final class Task implements Runnable {
+
+        private final AbstractBuild<?, ?> build;
+        private final File file;
+        private final Session session;
+        private final MailDeliveryAction.Delivery delivery;
+
+        Task(AbstractBuild<?, ?> build, File file, Session session, MailDeliveryAction.Delivery delivery) {
+            this.build = build;
+            this.file = file;
+            this.session = session;
+            this.delivery = delivery;
+        }
+
+        public void run() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PrintStream logger = new PrintStream(out);
+            MailDeliveryAction.Status status = MailDeliveryAction.Status.FAILED;
+            long start = System.currentTimeMillis();
+            SharedFileInputStream in = null;
+            try {
+                in = new SharedFileInputStream(file);
+                MimeMessage msg = new ExtendedMimeMessage(session, in);
+                switch (MailSender.send(msg, logger)) {
+                    case SENT:
+                        status = MailDeliveryAction.Status.SENT;
+                        break;
+                    case SPOOLED:
+                        status = MailDeliveryAction.Status.SPOOLED;
+                        break;
+                    default:
+                        break;
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not send email for " + build.getFullDisplayName(), e);
+                logger.println("Could not send email: " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+                file.delete();
+            }
+            long sendTime = System.currentTimeMillis() - start;
+            recordSendTime(sendTime);
+            if (status == MailDeliveryAction.Status.SENT) {
+                sent.incrementAndGet();
+            } else if (status == MailDeliveryAction.Status.SPOOLED) {
+                spooled.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+
+            logger.flush();
+            String detail = out.toString().trim();
+            if (detail.length() > 0) {
+                LOGGER.log(Level.FINE, "Delivery of {0} for {1}: {2}",
+                        new Object[]{delivery.getMessageId(), build.getFullDisplayName(), detail});
+            }
+            delivery.complete(status, sendTime, detail);
+            try {
+                build.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not save delivery status for " + build.getFullDisplayName(), e);
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "email-ext delivery #" + count.incrementAndGet());
+            t.setDaemon(true);
+            // JavaMail looks up its providers through the context class loader
+            t.setContextClassLoader(MailQueue.class.getClassLoader());
+            return t;
+        }
+    }
+}
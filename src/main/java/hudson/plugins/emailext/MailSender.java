@@ -0,0 +1,188 @@
+package hudson.plugins.emailext;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import jenkins.model.Jenkins;
+
+/**
+ * Delivers fully rendered messages to the SMTP server.
+ *
+ * <p>
+ * Used directly by {@link ExtendedEmailPublisher} when sending on the build's
+ * thread, by the {@link MailQueue} workers when asynchronous delivery is
+ * enabled, and by the {@link MailSpool} when retrying messages.
+ */
+public final class MailSender {
+
+    private MailSender() {
+    }
+
+    /**
+     * What happened to a message handed to {@link #send}.
+     */
+    public enum Result {
+        /**
+         * The SMTP server accepted the message for all of its recipients.
+         */
+        SENT,
+        /**
+         * The SMTP server could not be reached, the message was put in the
+         * {@link MailSpool} to be retried later.
+         */
+        SPOOLED,
+        /**
+         * The message was not delivered to some or all of its recipients.
+         */
+        FAILED
+    }
+
+    /**
+     * Sends the message, spooling it for a later retry if the SMTP server
+     * cannot be reached.
+     *
+     * @param msg the message to send
+     * @param logger where progress and failures are reported
+     * @return what happened to the message
+     * @throws MessagingException if the message could not be sent
+     */
+    public static Result send(MimeMessage msg, PrintStream logger) throws MessagingException {
+        try {
+            deliver(msg);
+            return Result.SENT;
+        } catch (SendFailedException e) {
+            if (isConnectionError(e)) {
+                return spool(msg, e, logger);
+            }
+            logAddresses(logger, "Successfully sent to the following addresses:", e.getValidSentAddresses());
+            logAddresses(logger, "Error sending to the following VALID addresses:", e.getValidUnsentAddresses());
+            logAddresses(logger, "Error sending to the following INVALID addresses:", e.getInvalidAddresses());
+            getDescriptor().debug(logger, "SendFailedException message: " + e.getMessage());
+            return Result.FAILED;
+        } catch (MessagingException e) {
+            if (isConnectionError(e)) {
+                return spool(msg, e, logger);
+            }
+            throw e;
+        }
+    }
+
+    private static Result spool(MimeMessage msg, MessagingException e, PrintStream logger) {
+        logger.println("Could not connect to the SMTP server: " + e.getMessage());
+        try {
+            MailSpool.get().add(msg, e);
+            logger.println("Email spooled, delivery will be retried in the background");
+            return Result.SPOOLED;
+        } catch (Exception x) {
+            logger.println("Could not spool email: " + x.getMessage());
+            return Result.FAILED;
+        }
+    }
+
+    /**
+     * Sends the message over a pooled connection when the message knows its
+     * session, and the way {@link Transport#send} does otherwise.
+     *
+     * <p>
+     * Messages for a server whose {@link SmtpCircuitBreaker circuit} is open
+     * fail immediately with a connection error.
+     */
+    static void deliver(MimeMessage msg) throws MessagingException {
+        if (!(msg instanceof ExtendedMimeMessage)) {
+            Transport.send(msg);
+            return;
+        }
+
+        msg.saveChanges();
+        Address[] recipients = msg.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+
+        Session session = ((ExtendedMimeMessage) msg).getSession();
+        SmtpCircuitBreaker breaker = SmtpCircuitBreaker.get();
+        String endpoint = breaker.acquire(session);
+        boolean reported = false;
+        try {
+            deliver(session, msg, recipients);
+            breaker.success(endpoint);
+            reported = true;
+        } catch (MessagingException e) {
+            if (isConnectionError(e)) {
+                breaker.failure(endpoint);
+            } else {
+                // the server answered, it just didn't like the message
+                breaker.success(endpoint);
+            }
+            reported = true;
+            throw e;
+        } finally {
+            if (!reported) {
+                breaker.release(endpoint);
+            }
+        }
+    }
+
+    private static void deliver(Session session, MimeMessage msg, Address[] recipients) throws MessagingException {
+        SmtpTransportPool pool = SmtpTransportPool.get();
+        while (true) {
+            SmtpTransportPool.Connection c = pool.borrow(session, recipients);
+            boolean reusable = false;
+            try {
+                c.getTransport().sendMessage(msg, recipients);
+                reusable = true;
+                return;
+            } catch (SendFailedException e) {
+                if (!isConnectionError(e)) {
+                    // the server rejected some addresses, but the connection is fine
+                    reusable = true;
+                    throw e;
+                }
+                if (!c.isReused()) {
+                    throw e;
+                }
+            } catch (MessagingException e) {
+                if (!c.isReused()) {
+                    throw e;
+                }
+                // the server probably dropped the idle connection after our
+                // NOOP check, so try again on a fresh one
+            } finally {
+                pool.release(c, reusable);
+            }
+        }
+    }
+
+    /**
+     * @return true if the exception was caused by a failure to talk to the
+     * SMTP server at all, as opposed to the server rejecting the message
+     */
+    static boolean isConnectionError(MessagingException e) {
+        for (Exception next = e.getNextException(); next != null;) {
+            if (next instanceof IOException) {
+                return true;
+            }
+            next = next instanceof MessagingException ? ((MessagingException) next).getNextException() : null;
+        }
+        return false;
+    }
+
+    private static void logAddresses(PrintStream logger, String header, Address[] addresses) {
+        if (addresses != null && addresses.length > 0) {
+            StringBuilder buf = new StringBuilder(header);
+            for (Address a : addresses) {
+                buf.append(' ').append(a);
+            }
+            logger.println(buf);
+        }
+    }
+
+    private static ExtendedEmailPublisherDescriptor getDescriptor() {
+        return Jenkins.getInstance().getDescriptorByType(ExtendedEmailPublisherDescriptor.class);
+    }
+}
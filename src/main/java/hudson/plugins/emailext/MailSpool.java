@@ -0,0 +1,434 @@
+package hudson.plugins.emailext;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.PeriodicWork;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import jenkins.model.Jenkins;
+
+/**
+ * Messages that could not be delivered because the SMTP server was
+ * unreachable, kept on disk until they can be sent.
+ *
+ * <p>
+ * Each message is stored under <tt>$JENKINS_HOME/email-ext-spool</tt> as an
+ * <tt>.eml</tt> file next to an <tt>.xml</tt> file describing it. A background
+ * task retries the messages with an exponential backoff; messages older than
+ * {@link #MAX_AGE} are dropped, and nothing more is spooled once the spool
+ * holds {@link #MAX_SIZE} bytes.
+ */
+public final class MailSpool {
+
+    private static final Logger LOGGER = Logger.getLogger(MailSpool.class.getName());
+
+    /**
+     * How long a message is retried before it is dropped, in milliseconds.
+     */
+    public static final long MAX_AGE = Long.getLong(MailSpool.class.getName() + ".maxAge", TimeUnit.HOURS.toMillis(24));
+
+    /**
+     * The maximum total size of the spooled messages, in bytes.
+     */
+    public static final long MAX_SIZE = Long.getLong(MailSpool.class.getName() + ".maxSize", 50L * 1024 * 1024);
+
+    /**
+     * The delay before the first retry, in milliseconds. It doubles with each
+     * failed attempt.
+     */
+    public static final long INITIAL_DELAY = Long.getLong(MailSpool.class.getName() + ".initialDelay", TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * The longest delay between two retries, in milliseconds.
+     */
+    public static final long MAX_DELAY = Long.getLong(MailSpool.class.getName() + ".maxDelay", TimeUnit.HOURS.toMillis(1));
+
+    private static final MailSpool INSTANCE = new MailSpool();
+
+    private final Random random = new Random();
+
+    private final AtomicBoolean retrying = new AtomicBoolean();
+
+    private final ExecutorService retryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "email-ext spool");
+            t.setDaemon(true);
+            // JavaMail looks up its providers through the context class loader
+            t.setContextClassLoader(MailSpool.class.getClassLoader());
+            return t;
+        }
+    });
+
+    private Map<String, Entry> entries;
+
+    private MailSpool() {
+    }
+
+    public static MailSpool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Describes a spooled message.
+     */
+    public static final class Entry {
+
+        private final String id;
+        private final String messageId;
+        private final String subject;
+        private final String recipients;
+        private final boolean mailerSession;
+        private final long created;
+        private final long size;
+        private int attempts;
+        private long nextAttempt;
+        private String lastError;
+
+        private Entry(String id, String messageId, String subject, String recipients,
+                boolean mailerSession, long size) {
+            this.id = id;
+            this.messageId = messageId;
+            this.subject = subject;
+            this.recipients = recipients;
+            this.mailerSession = mailerSession;
+            this.size = size;
+            this.created = System.currentTimeMillis();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getRecipients() {
+            return recipients;
+        }
+
+        public Date getCreated() {
+            return new Date(created);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public Date getNextAttempt() {
+            return new Date(nextAttempt);
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+    }
+
+    /**
+     * Stores a message that could not be delivered, to be retried later.
+     *
+     * @param msg the message, with its Message-ID assigned
+     * @param cause why it could not be delivered
+     * @throws IOException if the spool is full or the message could not be
+     * written
+     */
+    public void add(MimeMessage msg, Exception cause) throws IOException, MessagingException {
+        if (getSize() >= MAX_SIZE) {
+            throw new IOException("The mail spool is full (" + MAX_SIZE + " bytes)");
+        }
+
+        msg.saveChanges();
+        String id = UUID.randomUUID().toString();
+        File eml = getMessageFile(id);
+        eml.getParentFile().mkdirs();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(eml));
+        try {
+            msg.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        StringBuilder recipients = new StringBuilder();
+        Address[] addresses = msg.getAllRecipients();
+        if (addresses != null) {
+            for (Address a : addresses) {
+                if (recipients.length() > 0) {
+                    recipients.append(", ");
+                }
+                recipients.append(a);
+            }
+        }
+
+        Entry entry = new Entry(id, msg.getMessageID(), msg.getSubject(), recipients.toString(),
+                !getDescriptor().getOverrideGlobalSettings(), eml.length());
+        entry.attempts = 1;
+        entry.lastError = cause.getMessage();
+        entry.nextAttempt = entry.created + backoff(entry.attempts);
+        try {
+            // the .xml file is written last, its presence marks a complete entry
+            getEntryFile(id).write(entry);
+        } catch (IOException e) {
+            eml.delete();
+            throw e;
+        }
+        getEntries().put(id, entry);
+    }
+
+    /**
+     * @return the spooled messages, oldest first
+     */
+    public List<Entry> getMessages() {
+        List<Entry> list = new ArrayList<Entry>(getEntries().values());
+        Collections.sort(list, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.created < b.created ? -1 : (a.created == b.created ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    public int getCount() {
+        return getEntries().size();
+    }
+
+    /**
+     * @return the total size of the spooled messages, in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Entry e : getEntries().values()) {
+            size += e.size;
+        }
+        return size;
+    }
+
+    /**
+     * Removes a message from the spool without sending it.
+     */
+    public void delete(String id) {
+        Entry entry = getEntries().remove(id);
+        if (entry != null) {
+            deleteFiles(id);
+        }
+    }
+
+    /**
+     * Removes all messages from the spool without sending them.
+     */
+    public void purge() {
+        for (Entry entry : getMessages()) {
+            delete(entry.id);
+        }
+    }
+
+    /**
+     * Starts a retry of the messages in the background, unless one is already
+     * running.
+     *
+     * @param force true to retry all messages now instead of only the ones
+     * whose backoff has expired
+     */
+    public void retry(final boolean force) {
+        if (getEntries().isEmpty() || !retrying.compareAndSet(false, true)) {
+            return;
+        }
+        retryExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    retryNow(force);
+                } finally {
+                    retrying.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Retries the messages on the calling thread.
+     */
+    void retryNow(boolean force) {
+        long now = System.currentTimeMillis();
+        for (Entry entry : getMessages()) {
+            if (!getEntries().containsKey(entry.id)) {
+                continue; // deleted in the meantime
+            }
+            if (now - entry.created > MAX_AGE) {
+                LOGGER.log(Level.WARNING, "Dropping email {0} to {1} after {2} attempts, last error: {3}",
+                        new Object[]{entry.messageId, entry.recipients, entry.attempts, entry.lastError});
+                delete(entry.id);
+                continue;
+            }
+            if (!force && entry.nextAttempt > now) {
+                continue;
+            }
+            retry(entry);
+        }
+    }
+
+    private void retry(Entry entry) {
+        try {
+            MimeMessage msg = load(entry);
+            MailSender.deliver(msg);
+            LOGGER.log(Level.INFO, "Delivered spooled email {0} to {1}",
+                    new Object[]{entry.messageId, entry.recipients});
+            delete(entry.id);
+        } catch (SendFailedException e) {
+            if (MailSender.isConnectionError(e)) {
+                reschedule(entry, e);
+            } else {
+                LOGGER.log(Level.WARNING, "Spooled email " + entry.messageId + " was rejected by the SMTP server", e);
+                delete(entry.id);
+            }
+        } catch (MessagingException e) {
+            if (MailSender.isConnectionError(e)) {
+                reschedule(entry, e);
+            } else {
+                LOGGER.log(Level.WARNING, "Could not send spooled email " + entry.messageId, e);
+                delete(entry.id);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read spooled email " + entry.messageId, e);
+            delete(entry.id);
+        }
+    }
+
+    private MimeMessage load(Entry entry) throws IOException, MessagingException {
+        ExtendedEmailPublisherDescriptor descriptor = getDescriptor();
+        Session session = entry.mailerSession ? descriptor.getMailerSession() : descriptor.getSession();
+        InputStream in = new BufferedInputStream(new FileInputStream(getMessageFile(entry.id)));
+        try {
+            return new ExtendedMimeMessage(session, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void reschedule(Entry entry, MessagingException e) {
+        entry.attempts++;
+        entry.lastError = e.getMessage();
+        entry.nextAttempt = System.currentTimeMillis() + backoff(entry.attempts);
+        LOGGER.log(Level.FINE, "Spooled email {0} could not be delivered ({1}), next attempt at {2}",
+                new Object[]{entry.messageId, e.getMessage(), entry.getNextAttempt()});
+        if (getEntries().containsKey(entry.id)) {
+            try {
+                getEntryFile(entry.id).write(entry);
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "Could not update spooled email " + entry.messageId, x);
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter, so that messages spooled during the
+     * same outage don't all hit the server at the same moment.
+     */
+    private long backoff(int attempts) {
+        long delay = INITIAL_DELAY << Math.min(attempts - 1, 20);
+        if (delay <= 0 || delay > MAX_DELAY) {
+            delay = MAX_DELAY;
+        }
+        synchronized (random) {
+            return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+    }
+
+    private synchronized Map<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new ConcurrentHashMap<String, Entry>();
+            File[] files = getRootDir().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    if (!name.endsWith(".xml")) {
+                        continue;
+                    }
+                    String id = name.substring(0, name.length() - 4);
+                    try {
+                        Entry entry = (Entry) new XmlFile(f).read();
+                        if (getMessageFile(id).exists()) {
+                            entries.put(id, entry);
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not load spooled email " + f, e);
+                    }
+                    deleteFiles(id);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void deleteFiles(String id) {
+        getEntryFile(id).getFile().delete();
+        getMessageFile(id).delete();
+    }
+
+    private File getRootDir() {
+        return new File(Jenkins.getInstance().getRootDir(), "email-ext-spool");
+    }
+
+    private File getMessageFile(String id) {
+        return new File(getRootDir(), id + ".eml");
+    }
+
+    private XmlFile getEntryFile(String id) {
+        return new XmlFile(new File(getRootDir(), id + ".xml"));
+    }
+
+    private static ExtendedEmailPublisherDescriptor getDescriptor() {
+        return Jenkins.getInstance().getDescriptorByType(ExtendedEmailPublisherDescriptor.class);
+    }
+
+    /**
+     * Periodically retries the spooled messages.
+     */
+    @Extension
+    public static final class RetryWork extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(15);
+        }
+
+        @Override
+        protected void doRun() {
+            MailSpool.get().retry(false);
+        }
+    }
+}
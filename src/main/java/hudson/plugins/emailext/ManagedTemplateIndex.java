@@ -0,0 +1,186 @@
+package hudson.plugins.emailext;
+
+import hudson.Util;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.jenkinsci.lib.configprovider.model.Config;
+
+/**
+ * Finds the templates managed by the config-file-provider plugin by name,
+ * without going through all the configs of their provider for every email.
+ *
+ * <p>
+ * There is one index per provider. A config found in the index is checked
+ * against {@link ConfigProvider#getConfigById(String)}, so that an edited or
+ * removed template is noticed, and the index is built again when a config
+ * has changed. A name that isn't found only causes the index to be built again
+ * when the number of configs has changed, or when it was last built more than
+ * {@link #MISS_INTERVAL} ago, so that a renamed template is found eventually.
+ *
+ * <p>
+ * Only use this class when the config-file-provider plugin is installed.
+ */
+public final class ManagedTemplateIndex {
+
+    /**
+     * The charset the content of a managed template is encoded in.
+     */
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * How long a name that wasn't found is taken not to exist, in
+     * milliseconds, unless configs are added or removed.
+     */
+    static final long MISS_INTERVAL = Long.getLong(ManagedTemplateIndex.class.getName() + ".missInterval", 10000L);
+
+    private static final ConcurrentMap<Class<? extends ConfigProvider>, ManagedTemplateIndex> INDEXES
+            = new ConcurrentHashMap<Class<? extends ConfigProvider>, ManagedTemplateIndex>();
+
+    private final ConfigProvider provider;
+
+    private volatile Map<String, Entry> byName = Collections.emptyMap();
+
+    // the number of configs and the time when the index was last built
+    private volatile int builtSize = -1;
+    private volatile long builtAt;
+
+    // how many times the index was built, for tests
+    volatile int builds;
+
+    private ManagedTemplateIndex(ConfigProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Gets the index of a provider.
+     *
+     * @param type the class of the provider
+     * @return the index, or null if the provider isn't registered
+     */
+    public static ManagedTemplateIndex of(Class<? extends ConfigProvider> type) {
+        ConfigProvider provider = ConfigProvider.all().get(type);
+        if (provider == null) {
+            return null;
+        }
+        ManagedTemplateIndex index = INDEXES.get(type);
+        if (index == null || index.provider != provider) {
+            // a new provider instance after Jenkins was restarted in the same JVM
+            index = new ManagedTemplateIndex(provider);
+            INDEXES.put(type, index);
+        }
+        return index;
+    }
+
+    /**
+     * Finds a template by its name, ignoring case.
+     *
+     * @param name the name of the template, without the "managed:" prefix
+     * @return the template, or null if there is none with this name
+     */
+    public Entry find(String name) {
+        String key = name.toLowerCase(Locale.ENGLISH);
+        Entry entry = byName.get(key);
+        if (entry != null ? !entry.isCurrent() : isOutdated()) {
+            entry = rebuild().get(key);
+        }
+        return entry;
+    }
+
+    /**
+     * Lists the names of the templates, as they were given to them.
+     */
+    public List<String> getNames() {
+        List<String> names = new ArrayList<String>();
+        for (Entry entry : rebuild().values()) {
+            names.add(entry.config.name);
+        }
+        return names;
+    }
+
+    private boolean isOutdated() {
+        return provider.getAllConfigs().size() != builtSize
+                || System.currentTimeMillis() - builtAt >= MISS_INTERVAL;
+    }
+
+    private synchronized Map<String, Entry> rebuild() {
+        Map<String, Entry> old = byName;
+        Map<String, Entry> index = new HashMap<String, Entry>();
+        Collection<Config> configs = provider.getAllConfigs();
+        for (Config c : configs) {
+            String key = c.name.toLowerCase(Locale.ENGLISH);
+            if (index.containsKey(key) || !provider.isResponsibleFor(c.id)) {
+                continue;
+            }
+            Entry entry = old.get(key);
+            if (entry == null || entry.config != c) {
+                entry = new Entry(provider, c);
+            }
+            index.put(key, entry);
+        }
+        byName = index;
+        builtSize = configs.size();
+        builtAt = System.currentTimeMillis();
+        builds++;
+        return index;
+    }
+
+    /**
+     * A managed template, with its content encoded in {@link #CHARSET}.
+     */
+    public static final class Entry {
+
+        private final ConfigProvider provider;
+        private final Config config;
+        private volatile byte[] content;
+        private volatile String version;
+
+        private Entry(ConfigProvider provider, Config config) {
+            this.provider = provider;
+            this.config = config;
+        }
+
+        private boolean isCurrent() {
+            return provider.getConfigById(config.id) == config;
+        }
+
+        public Config getConfig() {
+            return config;
+        }
+
+        public byte[] getContent() {
+            byte[] c = content;
+            if (c == null) {
+                c = config.content.getBytes(CHARSET);
+                content = c;
+            }
+            return c;
+        }
+
+        public InputStream open() {
+            return new ByteArrayInputStream(getContent());
+        }
+
+        /**
+         * @return a string that changes whenever the content does
+         */
+        public String getVersion() {
+            String v = version;
+            if (v == null) {
+                v = "managed:" + config.id + ":" + Util.getDigestOf(config.content);
+                version = v;
+            }
+            return v;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package hudson.plugins.emailext;
+
+import groovy.lang.Script;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.codehaus.groovy.runtime.InvokerInvocationException;
+
+/**
+ * Limits how long a single run of a Groovy template or script may take.
+ *
+ * <p>
+ * All email-ext scripts are compiled with
+ * {@link groovy.transform.ThreadInterrupt}, so they check the interrupt flag
+ * of their thread at the start of every loop, closure and method. While a
+ * script runs a watchdog checks its wall-clock time against
+ * {@link #TIMEOUT} and the CPU time of its thread against {@link #CPU_TIME},
+ * and interrupts the thread once either is used up. Both limits are off (0)
+ * unless they are set with a system property.
+ *
+ * <p>
+ * Use {@link #run(Script)} or {@link #run(Callable)}, which throw a
+ * {@link ScriptBudgetExceededException} when the script was aborted.
+ */
+public final class ScriptBudget {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptBudget.class.getName());
+
+    /**
+     * The wall-clock time a script may run for, in milliseconds, or 0 for no
+     * limit.
+     */
+    public static final long TIMEOUT = Long.getLong(ScriptBudget.class.getName() + ".timeout", 0L);
+
+    /**
+     * The CPU time a script may use, in milliseconds, or 0 for no limit.
+     */
+    public static final long CPU_TIME = Long.getLong(ScriptBudget.class.getName() + ".cpuTime", 0L);
+
+    /**
+     * How often the watchdog looks at a running script, in milliseconds.
+     */
+    static final long CHECK_INTERVAL = Long.getLong(ScriptBudget.class.getName() + ".checkInterval", 250L);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "email-ext script watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final Thread thread;
+    private final long timeout;
+    private final long cpuTime;
+    private final long started = System.currentTimeMillis();
+    private final long cpuStarted;
+    private ScheduledFuture<?> check;
+    private boolean stopped;
+    private String exceeded;
+
+    private ScriptBudget(long timeout, long cpuTime) {
+        this.thread = Thread.currentThread();
+        this.timeout = timeout;
+        this.cpuTime = isCpuTimeSupported() ? cpuTime : 0;
+        this.cpuStarted = this.cpuTime > 0 ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Runs a script within the configured budget.
+     *
+     * @return what the script returned
+     * @throws ScriptBudgetExceededException if the script was aborted
+     */
+    public static Object run(final Script script) {
+        return run(new Callable<Object>() {
+            public Object call() {
+                return script.run();
+            }
+        });
+    }
+
+    /**
+     * Runs Groovy code, such as rendering a template, within the configured
+     * budget.
+     *
+     * @return what the code returned
+     * @throws ScriptBudgetExceededException if the code was aborted
+     */
+    public static <T> T run(Callable<T> body) {
+        return run(body, TIMEOUT, CPU_TIME);
+    }
+
+    static <T> T run(Callable<T> body, long timeout, long cpuTime) {
+        ScriptBudget budget = start(timeout, cpuTime);
+        try {
+            return body.call();
+        } catch (RuntimeException e) {
+            if (budget.isExceeded()) {
+                throw new ScriptBudgetExceededException(budget.getMessage());
+            }
+            throw e;
+        } catch (Exception e) {
+            // Groovy code throws checked exceptions without declaring them,
+            // InterruptedException among others
+            if (budget.isExceeded()) {
+                throw new ScriptBudgetExceededException(budget.getMessage());
+            }
+            throw new InvokerInvocationException(e);
+        } finally {
+            budget.stop();
+        }
+    }
+
+    /**
+     * Starts watching the current thread with the configured limits.
+     */
+    public static ScriptBudget start() {
+        return start(TIMEOUT, CPU_TIME);
+    }
+
+    /**
+     * Starts watching the current thread.
+     *
+     * @param timeout the wall-clock limit in milliseconds, or 0
+     * @param cpuTime the CPU time limit in milliseconds, or 0
+     */
+    public static ScriptBudget start(long timeout, long cpuTime) {
+        ScriptBudget budget = new ScriptBudget(timeout, cpuTime);
+        if (budget.timeout > 0 || budget.cpuTime > 0) {
+            long interval = CHECK_INTERVAL;
+            if (budget.timeout > 0) {
+                interval = Math.min(interval, budget.timeout);
+            }
+            final ScriptBudget b = budget;
+            budget.check = WATCHDOG.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    b.check();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        return budget;
+    }
+
+    /**
+     * Stops watching. Must be called on the thread that started the budget,
+     * which then no longer gets interrupted.
+     */
+    public void stop() {
+        boolean interrupted;
+        synchronized (this) {
+            stopped = true;
+            if (check != null) {
+                check.cancel(false);
+            }
+            interrupted = exceeded != null;
+        }
+        if (interrupted) {
+            // don't leave our interrupt behind for whatever runs next
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * @return true if the script was interrupted because it used up its
+     * budget
+     */
+    public synchronized boolean isExceeded() {
+        return exceeded != null;
+    }
+
+    /**
+     * @return what the script ran out of, or null
+     */
+    public synchronized String getMessage() {
+        return exceeded;
+    }
+
+    private synchronized void check() {
+        if (stopped || exceeded != null) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - started;
+        if (timeout > 0 && elapsed > timeout) {
+            exceeded = String.format("Script was aborted after running for more than %d ms", timeout);
+        } else if (cpuTime > 0) {
+            long used = TimeUnit.NANOSECONDS.toMillis(THREADS.getThreadCpuTime(thread.getId()) - cpuStarted);
+            if (used > cpuTime) {
+                exceeded = String.format("Script was aborted after using more than %d ms of CPU time", cpuTime);
+            }
+        }
+        if (exceeded != null) {
+            LOGGER.log(Level.WARNING, "{0} on thread {1}", new Object[]{exceeded, thread.getName()});
+            if (check != null) {
+                check.cancel(false);
+            }
+            thread.interrupt();
+        }
+    }
+
+    private static boolean isCpuTimeSupported() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+}
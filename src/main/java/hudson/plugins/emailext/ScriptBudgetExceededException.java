@@ -0,0 +1,14 @@
+package hudson.plugins.emailext;
+
+import groovy.lang.GroovyRuntimeException;
+
+/**
+ * Thrown when a Groovy template or script is aborted because it ran out of
+ * its {@link ScriptBudget}.
+ */
+public class ScriptBudgetExceededException extends GroovyRuntimeException {
+
+    public ScriptBudgetExceededException(String message) {
+        super(message);
+    }
+}
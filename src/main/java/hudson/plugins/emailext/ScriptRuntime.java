@@ -0,0 +1,247 @@
+package hudson.plugins.emailext;
+
+import com.google.common.cache.Cache;
+import groovy.lang.Binding;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import groovy.transform.ThreadInterrupt;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+
+/**
+ * Owns the class loader all email-ext Groovy code is compiled against, and the
+ * caches of compiled templates and scripts.
+ *
+ * <p>
+ * Compiled classes belong to a generation. When a generation is dropped, by
+ * an administrator, because the plugin class loader changed or because more
+ * than {@link #MAX_CLASSES} classes were compiled in it, all caches
+ * registered here are cleared so that nothing refers to its classes any more
+ * and the JVM can unload them. The classes compiled so far and the ones still
+ * loaded are counted, see {@link #getLoadedClassCount()} and
+ * {@link #getLiveClassCount()}.
+ */
+public final class ScriptRuntime {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptRuntime.class.getName());
+
+    /**
+     * The number of classes compiled in a generation before it is dropped.
+     */
+    public static final int MAX_CLASSES = Integer.getInteger(ScriptRuntime.class.getName() + ".maxClasses", 5000);
+
+    private static final ScriptRuntime INSTANCE = new ScriptRuntime();
+
+    private final List<Cache<?, ?>> caches = new CopyOnWriteArrayList<Cache<?, ?>>();
+
+    private volatile Generation generation;
+
+    private final AtomicLong loaded = new AtomicLong();
+
+    /**
+     * Weak references to all compiled classes, cleared once a class has been
+     * unloaded.
+     */
+    private final Set<Reference<Class<?>>> live = Collections.newSetFromMap(new ConcurrentHashMap<Reference<Class<?>>, Boolean>());
+
+    private final ReferenceQueue<Class<?>> unloaded = new ReferenceQueue<Class<?>>();
+
+    private ScriptRuntime() {
+    }
+
+    public static ScriptRuntime get() {
+        return INSTANCE;
+    }
+
+    /**
+     * A set of classes that are dropped together.
+     */
+    public static final class Generation {
+
+        private final int number;
+        private final Date started = new Date();
+        private final ClassLoader parent;
+        private final ClassLoader classLoader;
+        private final AtomicInteger classes = new AtomicInteger();
+
+        private Generation(int number, ClassLoader parent) {
+            this.number = number;
+            this.parent = parent;
+            this.classLoader = new GenerationClassLoader(parent);
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public Date getStarted() {
+            return started;
+        }
+
+        /**
+         * @return the number of classes compiled in this generation
+         */
+        public int getClassCount() {
+            return classes.get();
+        }
+    }
+
+    /**
+     * The parent of the class loaders of a generation's scripts. It loads
+     * nothing itself, it only ties the scripts to their generation.
+     */
+    private static final class GenerationClassLoader extends ClassLoader {
+
+        GenerationClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+    }
+
+    /**
+     * A shell that counts the classes of every script it compiles.
+     */
+    private final class RecordingShell extends GroovyShell {
+
+        private final Generation owner;
+        private final Set<Class<?>> recorded = new HashSet<Class<?>>();
+
+        RecordingShell(Generation owner, Binding binding, CompilerConfiguration config) {
+            super(owner.classLoader, binding, config);
+            this.owner = owner;
+        }
+
+        @Override
+        public Script parse(GroovyCodeSource codeSource) {
+            Script script = super.parse(codeSource);
+            // closures are compiled to classes of their own
+            List<Class<?>> compiled = new ArrayList<Class<?>>();
+            synchronized (recorded) {
+                for (Class<?> c : getClassLoader().getLoadedClasses()) {
+                    if (recorded.add(c)) {
+                        compiled.add(c);
+                    }
+                }
+                if (recorded.add(script.getClass())) {
+                    compiled.add(script.getClass());
+                }
+            }
+            recordCompiled(owner, compiled);
+            return script;
+        }
+    }
+
+    /**
+     * Gets the current generation, starting a new one if the plugin class
+     * loader has changed.
+     */
+    public Generation getGeneration() {
+        ClassLoader uberClassLoader = Jenkins.getInstance().getPluginManager().uberClassLoader;
+        Generation g = generation;
+        if (g == null || g.parent != uberClassLoader) {
+            synchronized (this) {
+                g = generation;
+                if (g == null || g.parent != uberClassLoader) {
+                    g = startGeneration(uberClassLoader);
+                }
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Creates a shell that compiles against the current generation.
+     *
+     * <p>
+     * The scripts it compiles check for interrupts in every loop, closure and
+     * method, so that {@link ScriptBudget} can stop them.
+     */
+    public GroovyShell createShell(Binding binding, CompilerConfiguration config) {
+        config.addCompilationCustomizers(new ASTTransformationCustomizer(ThreadInterrupt.class));
+        return new RecordingShell(getGeneration(), binding, config);
+    }
+
+    /**
+     * Registers a cache of compiled code, to be cleared when the generation
+     * its classes belong to is dropped.
+     */
+    public void register(Cache<?, ?> cache) {
+        caches.add(cache);
+    }
+
+    /**
+     * Drops the current generation of compiled classes and starts a new one.
+     */
+    public synchronized void newGeneration() {
+        startGeneration(Jenkins.getInstance().getPluginManager().uberClassLoader);
+    }
+
+    /**
+     * @return the number of classes compiled since Jenkins started
+     */
+    public long getLoadedClassCount() {
+        return loaded.get();
+    }
+
+    /**
+     * @return the number of compiled classes that have not been unloaded yet
+     */
+    public int getLiveClassCount() {
+        expungeUnloaded();
+        return live.size();
+    }
+
+    private synchronized Generation startGeneration(ClassLoader parent) {
+        Generation previous = generation;
+        Generation g = new Generation(previous == null ? 1 : previous.number + 1, parent);
+        generation = g;
+        for (Cache<?, ?> cache : caches) {
+            cache.invalidateAll();
+        }
+        if (previous != null) {
+            LOGGER.log(Level.FINE, "Dropped generation {0} of compiled scripts with {1} classes",
+                    new Object[]{previous.number, previous.getClassCount()});
+        }
+        return g;
+    }
+
+    private void recordCompiled(Generation owner, List<Class<?>> classes) {
+        expungeUnloaded();
+        for (Class<?> c : classes) {
+            live.add(new WeakReference<Class<?>>(c, unloaded));
+        }
+        loaded.addAndGet(classes.size());
+
+        if (owner.classes.addAndGet(classes.size()) > MAX_CLASSES) {
+            synchronized (this) {
+                if (generation == owner) {
+                    LOGGER.log(Level.INFO, "More than {0} script classes compiled, dropping them", MAX_CLASSES);
+                    startGeneration(owner.parent);
+                }
+            }
+        }
+    }
+
+    private void expungeUnloaded() {
+        Reference<? extends Class<?>> ref;
+        while ((ref = unloaded.poll()) != null) {
+            live.remove(ref);
+        }
+    }
+}
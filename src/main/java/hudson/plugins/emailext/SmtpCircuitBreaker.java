@@ -0,0 +1,235 @@
+package hudson.plugins.emailext;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/**
+ * Stops talking to an SMTP server that is known to be down.
+ *
+ * <p>
+ * After {@link #THRESHOLD} consecutive connection failures to a server its
+ * circuit opens, and for the next {@link #COOLDOWN} milliseconds messages for
+ * it fail straight away (and end up in the {@link MailSpool}) instead of each
+ * waiting for a connect timeout. Once the cool-down has passed a single
+ * message is let through as a probe: if it gets through the circuit closes
+ * again, otherwise it stays open for another cool-down.
+ */
+public final class SmtpCircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(SmtpCircuitBreaker.class.getName());
+
+    /**
+     * The number of consecutive connection failures that opens the circuit.
+     */
+    public static final int THRESHOLD = Integer.getInteger(SmtpCircuitBreaker.class.getName() + ".threshold", 3);
+
+    /**
+     * How long an open circuit rejects messages before it lets a probe
+     * through, in milliseconds.
+     */
+    public static final long COOLDOWN = Long.getLong(SmtpCircuitBreaker.class.getName() + ".cooldown", TimeUnit.MINUTES.toMillis(1));
+
+    private static final SmtpCircuitBreaker INSTANCE = new SmtpCircuitBreaker();
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    private SmtpCircuitBreaker() {
+    }
+
+    public static SmtpCircuitBreaker get() {
+        return INSTANCE;
+    }
+
+    public enum State {
+        /**
+         * Messages are sent normally.
+         */
+        CLOSED,
+        /**
+         * The server is considered down, messages fail immediately.
+         */
+        OPEN,
+        /**
+         * A probe message is being sent to find out if the server is back.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The state of the circuit for one SMTP server.
+     */
+    public static final class Circuit {
+
+        private final String endpoint;
+        private State state = State.CLOSED;
+        private int failures;
+        private long openedAt;
+
+        private Circuit(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * @return the number of consecutive connection failures
+         */
+        public synchronized int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return when the circuit will let a probe through, or null if it is
+         * not open
+         */
+        public synchronized Date getRetryAt() {
+            return state == State.OPEN ? new Date(openedAt + COOLDOWN) : null;
+        }
+
+        private synchronized boolean tryAcquire() {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() - openedAt >= COOLDOWN) {
+                        state = State.HALF_OPEN;
+                        return true;
+                    }
+                    return false;
+                default:
+                    // a probe is already on its way
+                    return false;
+            }
+        }
+
+        private synchronized void onSuccess() {
+            if (state != State.CLOSED) {
+                LOGGER.log(Level.INFO, "SMTP server {0} is reachable again", endpoint);
+            }
+            state = State.CLOSED;
+            failures = 0;
+        }
+
+        private synchronized void onFailure() {
+            failures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= THRESHOLD)) {
+                if (state == State.CLOSED) {
+                    LOGGER.log(Level.WARNING, "SMTP server {0} failed {1} times in a row, not trying it again for {2} ms",
+                            new Object[]{endpoint, failures, COOLDOWN});
+                }
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        private synchronized void onRelease() {
+            // the attempt ended without telling us anything about the server
+            if (state == State.HALF_OPEN) {
+                state = State.OPEN;
+            }
+        }
+    }
+
+    /**
+     * Checks that messages may be sent to the server the session talks to.
+     *
+     * <p>
+     * If this returns, the caller must report the outcome of its attempt
+     * with {@link #success}, {@link #failure} or {@link #release}.
+     *
+     * @return the key of the server, to pass back with the outcome
+     * @throws MessagingException with a nested {@link ConnectException} if the
+     * circuit for the server is open
+     */
+    public String acquire(Session session) throws MessagingException {
+        String endpoint = getEndpoint(session);
+        Circuit circuit = getCircuit(endpoint);
+        if (!circuit.tryAcquire()) {
+            throw new MessagingException("SMTP server " + endpoint + " is unavailable after "
+                    + circuit.getFailures() + " failed connection attempts, not trying again until "
+                    + circuit.getRetryAt(),
+                    new ConnectException("Circuit breaker for " + endpoint + " is open"));
+        }
+        return endpoint;
+    }
+
+    public void success(String endpoint) {
+        getCircuit(endpoint).onSuccess();
+    }
+
+    public void failure(String endpoint) {
+        getCircuit(endpoint).onFailure();
+    }
+
+    public void release(String endpoint) {
+        getCircuit(endpoint).onRelease();
+    }
+
+    /**
+     * @return the circuits of the servers messages have been sent to
+     */
+    public List<Circuit> getCircuits() {
+        List<Circuit> list = new ArrayList<Circuit>(circuits.values());
+        Collections.sort(list, new Comparator<Circuit>() {
+            public int compare(Circuit a, Circuit b) {
+                return a.endpoint.compareTo(b.endpoint);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Closes all circuits, for example after the SMTP settings have changed.
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    private Circuit getCircuit(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            circuit = new Circuit(endpoint);
+            Circuit existing = circuits.putIfAbsent(endpoint, circuit);
+            if (existing != null) {
+                circuit = existing;
+            }
+        }
+        return circuit;
+    }
+
+    private static String getEndpoint(Session session) {
+        String protocol = session.getProperty("mail.transport.protocol");
+        if (protocol == null) {
+            protocol = "smtp";
+        }
+        String host = session.getProperty("mail." + protocol + ".host");
+        if (host == null) {
+            host = session.getProperty("mail.host");
+        }
+        if (host == null) {
+            host = "localhost";
+        }
+        String port = session.getProperty("mail." + protocol + ".port");
+        if (port == null) {
+            port = protocol.equals("smtps") ? "465" : "25";
+        }
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,295 @@
+package hudson.plugins.emailext;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Keeps SMTP connections open between messages so that consecutive emails to
+ * the same server don't each pay for a TCP/TLS handshake and authentication.
+ *
+ * <p>
+ * Connections are pooled by the settings of the session they were opened
+ * with (protocol, host, port, SSL socket factory and the user that
+ * authenticates), so a change in the global configuration never reuses a
+ * connection made with the old settings. A connection is checked with an SMTP
+ * NOOP before it is reused, is retired after {@link #MAX_MESSAGES} messages,
+ * and is closed once it has been idle for {@link #IDLE_TIMEOUT} milliseconds.
+ */
+public final class SmtpTransportPool {
+
+    private static final Logger LOGGER = Logger.getLogger(SmtpTransportPool.class.getName());
+
+    /**
+     * The maximum number of messages sent over a single connection before it
+     * is closed.
+     */
+    public static final int MAX_MESSAGES = Integer.getInteger(SmtpTransportPool.class.getName() + ".maxMessages", 100);
+
+    /**
+     * The number of milliseconds an unused connection is kept open.
+     */
+    public static final long IDLE_TIMEOUT = Long.getLong(SmtpTransportPool.class.getName() + ".idleTimeout", 60000L);
+
+    /**
+     * The maximum number of idle connections kept per server.
+     */
+    public static final int MAX_IDLE = Integer.getInteger(SmtpTransportPool.class.getName() + ".maxIdle", 4);
+
+    /**
+     * Set to true to open a new connection for every message, as
+     * {@link Transport#send(javax.mail.Message)} does.
+     */
+    public static boolean DISABLED = Boolean.getBoolean(SmtpTransportPool.class.getName() + ".disabled");
+
+    private static final SmtpTransportPool INSTANCE = new SmtpTransportPool();
+
+    private final Map<String, LinkedList<Connection>> idle = new HashMap<String, LinkedList<Connection>>();
+
+    /**
+     * Pool keys of the sessions seen so far, sessions are shared between
+     * messages so the key doesn't have to be rebuilt for each of them.
+     */
+    private final Map<Session, String> keys = new WeakHashMap<Session, String>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    private SmtpTransportPool() {
+    }
+
+    public static SmtpTransportPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * A connected transport that has been borrowed from the pool.
+     */
+    public static final class Connection {
+
+        private final String key;
+        private final Transport transport;
+        private int messages;
+        private long lastUsed;
+
+        private Connection(String key, Transport transport) {
+            this.key = key;
+            this.transport = transport;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        /**
+         * @return true if this connection was used for an earlier message, in
+         * which case a failure may just mean the server dropped it
+         */
+        public boolean isReused() {
+            return messages > 0;
+        }
+    }
+
+    /**
+     * Gets a connected transport for sending to the given recipients, reusing
+     * an idle connection made with the same settings if there is one.
+     *
+     * <p>
+     * The connection must be handed back with {@link #release} when the
+     * caller is done with it.
+     */
+    public Connection borrow(Session session, Address[] recipients) throws MessagingException {
+        Transport transport = session.getTransport(recipients[0]);
+        String key = keyFor(session, transport.getURLName().getProtocol());
+
+        if (!DISABLED) {
+            Connection c;
+            while ((c = poll(key)) != null) {
+                // isConnected() sends a NOOP to make sure the server didn't drop us
+                if (c.transport.isConnected()) {
+                    reused.incrementAndGet();
+                    return c;
+                }
+                close(c);
+            }
+        }
+
+        transport.connect();
+        opened.incrementAndGet();
+        return new Connection(key, transport);
+    }
+
+    /**
+     * Hands a connection back after a message was sent over it.
+     *
+     * @param c the connection returned by {@link #borrow}
+     * @param reusable false if the connection failed and must not be used
+     * again
+     */
+    public void release(Connection c, boolean reusable) {
+        c.messages++;
+        c.lastUsed = System.currentTimeMillis();
+        if (reusable && !DISABLED && c.messages < MAX_MESSAGES) {
+            synchronized (this) {
+                LinkedList<Connection> list = idle.get(c.key);
+                if (list == null) {
+                    list = new LinkedList<Connection>();
+                    idle.put(c.key, list);
+                }
+                if (list.size() < MAX_IDLE) {
+                    // most recently used first, so that the older ones expire
+                    list.addFirst(c);
+                    return;
+                }
+            }
+        }
+        close(c);
+    }
+
+    /**
+     * Closes all idle connections, for example after the SMTP settings have
+     * changed.
+     */
+    public void flush() {
+        List<Connection> toClose = new ArrayList<Connection>();
+        synchronized (this) {
+            for (LinkedList<Connection> list : idle.values()) {
+                toClose.addAll(list);
+            }
+            idle.clear();
+        }
+        for (Connection c : toClose) {
+            close(c);
+        }
+    }
+
+    /**
+     * Closes the connections that have been idle for longer than
+     * {@link #IDLE_TIMEOUT}.
+     */
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT;
+        List<Connection> toClose = new ArrayList<Connection>();
+        synchronized (this) {
+            for (Iterator<LinkedList<Connection>> it = idle.values().iterator(); it.hasNext();) {
+                LinkedList<Connection> list = it.next();
+                while (!list.isEmpty() && list.getLast().lastUsed < cutoff) {
+                    toClose.add(list.removeLast());
+                }
+                if (list.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+        for (Connection c : toClose) {
+            close(c);
+        }
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (LinkedList<Connection> list : idle.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public long getClosedCount() {
+        return closed.get();
+    }
+
+    private synchronized Connection poll(String key) {
+        LinkedList<Connection> list = idle.get(key);
+        return list == null ? null : list.poll();
+    }
+
+    private void close(Connection c) {
+        closed.incrementAndGet();
+        try {
+            c.transport.close();
+        } catch (MessagingException e) {
+            LOGGER.log(Level.FINE, "Failed to close SMTP connection", e);
+        }
+    }
+
+    private String keyFor(Session session, String protocol) {
+        synchronized (keys) {
+            String key = keys.get(session);
+            if (key != null && key.startsWith(protocol + '\n')) {
+                return key;
+            }
+        }
+        String key = key(session, protocol);
+        synchronized (keys) {
+            keys.put(session, key);
+        }
+        return key;
+    }
+
+    /**
+     * Builds the pool key from the settings that determine which server a
+     * session talks to and as whom.
+     */
+    private static String key(Session session, String protocol) {
+        Properties props = session.getProperties();
+        StringBuilder buf = new StringBuilder(protocol);
+        // stringPropertyNames() includes the system properties the session defaults to
+        for (String name : new TreeSet<String>(props.stringPropertyNames())) {
+            if (name.startsWith("mail.") && !name.equals("mail.debug")) {
+                buf.append('\n').append(name).append('=').append(props.getProperty(name));
+            }
+        }
+        if (Boolean.parseBoolean(props.getProperty("mail." + protocol + ".auth"))) {
+            // the user name only lives in the Authenticator, so ask it
+            PasswordAuthentication auth = session.requestPasswordAuthentication(null, 0, protocol, null,
+                    props.getProperty("mail." + protocol + ".user"));
+            if (auth != null) {
+                buf.append("\nuser=").append(auth.getUserName());
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Closes connections that have not been used for a while.
+     */
+    @Extension
+    public static final class IdleConnectionReaper extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(30);
+        }
+
+        @Override
+        protected void doRun() {
+            SmtpTransportPool.get().evictIdle();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package hudson.plugins.emailext;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all builds for rendering and sending the emails of
+ * several triggers at the same time.
+ *
+ * <p>
+ * The pool is bounded by {@link #THREADS}; when all threads are busy the
+ * build's own thread sends the email, so a burst of finishing builds never
+ * piles up more work than the pool can handle.
+ */
+final class TriggerExecutor {
+
+    /**
+     * The number of threads rendering emails for all builds together.
+     */
+    static final int THREADS = Integer.getInteger(TriggerExecutor.class.getName() + ".threads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService INSTANCE = create();
+
+    private TriggerExecutor() {
+    }
+
+    static ExecutorService get() {
+        return INSTANCE;
+    }
+
+    private static ExecutorService create() {
+        final AtomicInteger count = new AtomicInteger();
+        // a SynchronousQueue would run on the caller as soon as the pool is busy,
+        // a small queue smooths out triggers that finish at nearly the same time
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(THREADS), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "email-ext trigger #" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
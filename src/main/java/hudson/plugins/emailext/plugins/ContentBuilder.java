@@ -1,5 +1,6 @@
 package hudson.plugins.emailext.plugins;
 
+import com.google.common.collect.ListMultimap;
 import hudson.CopyOnWrite;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
@@ -8,11 +9,12 @@ import hudson.model.TaskListener;
 import hudson.plugins.emailext.ExtendedEmailPublisher;
 import hudson.plugins.emailext.ExtendedEmailPublisherContext;
 import hudson.tasks.Publisher;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import jenkins.model.Jenkins;
 import net.java.sezpoz.Index;
 import net.java.sezpoz.IndexItem;
@@ -31,15 +33,6 @@ public class ContentBuilder {
     @CopyOnWrite
     private static volatile List<TokenMacro> privateMacros;
 
-    private static final String DEFAULT_BODY = "\\$DEFAULT_CONTENT|\\$\\{DEFAULT_CONTENT\\}";
-    private static final String DEFAULT_SUBJECT = "\\$DEFAULT_SUBJECT|\\$\\{DEFAULT_SUBJECT\\}";
-    private static final String DEFAULT_RECIPIENTS = "\\$DEFAULT_RECIPIENTS|\\$\\{DEFAULT_RECIPIENTS\\}";
-    private static final String DEFAULT_REPLYTO = "\\$DEFAULT_REPLYTO|\\$\\{DEFAULT_REPLYTO\\}";
-    private static final String DEFAULT_PRESEND_SCRIPT = "\\$DEFAULT_PRESEND_SCRIPT|\\$\\{DEFAULT_PRESEND_SCRIPT\\}";
-    private static final String PROJECT_DEFAULT_BODY = "\\$PROJECT_DEFAULT_CONTENT|\\$\\{PROJECT_DEFAULT_CONTENT\\}";
-    private static final String PROJECT_DEFAULT_SUBJECT = "\\$PROJECT_DEFAULT_SUBJECT|\\$\\{PROJECT_DEFAULT_SUBJECT\\}";
-    private static final String PROJECT_DEFAULT_REPLYTO = "\\$PROJECT_DEFAULT_REPLYTO|\\$\\{PROJECT_DEFAULT_REPLYTO\\}";
-
     private static String noNull(String string) {
         return string == null ? "" : string;
     }
@@ -47,29 +40,16 @@ public class ContentBuilder {
     public static String transformText(String origText, ExtendedEmailPublisherContext context, List<TokenMacro> additionalMacros) {
         if(StringUtils.isBlank(origText)) return "";
         
-        String defaultContent = Matcher.quoteReplacement(noNull(context.getPublisher().defaultContent));
-        String defaultSubject = Matcher.quoteReplacement(noNull(context.getPublisher().defaultSubject));
-        String defaultReplyTo = Matcher.quoteReplacement(noNull(context.getPublisher().replyTo));
-        String defaultBody = Matcher.quoteReplacement(noNull(context.getPublisher().getDescriptor().getDefaultBody()));
-        String defaultExtSubject = Matcher.quoteReplacement(noNull(context.getPublisher().getDescriptor().getDefaultSubject()));
-        String defaultRecipients = Matcher.quoteReplacement(noNull(context.getPublisher().getDescriptor().getDefaultRecipients()));
-        String defaultExtReplyTo = Matcher.quoteReplacement(noNull(context.getPublisher().getDescriptor().getDefaultReplyTo()));
-        String defaultPresendScript = Matcher.quoteReplacement(noNull(context.getPublisher().getDescriptor().getDefaultPresendScript()));
-        String newText = origText.replaceAll(
-                PROJECT_DEFAULT_BODY, defaultContent).replaceAll(
-                PROJECT_DEFAULT_SUBJECT, defaultSubject).replaceAll(
-                PROJECT_DEFAULT_REPLYTO, defaultReplyTo).replaceAll(
-                DEFAULT_BODY, defaultBody).replaceAll(
-                DEFAULT_SUBJECT, defaultExtSubject).replaceAll(
-                DEFAULT_RECIPIENTS, defaultRecipients).replaceAll(
-                DEFAULT_REPLYTO, defaultExtReplyTo).replaceAll(
-                DEFAULT_PRESEND_SCRIPT, defaultPresendScript);
+        String newText = resolveDefaults(origText, context);
         
         try {
-            List<TokenMacro> macros = new ArrayList<TokenMacro>(getPrivateMacros());
-            if(additionalMacros != null)
-                macros.addAll(additionalMacros);
-            newText = TokenMacro.expandAll(context.getBuild(), context.getListener(), newText, false, macros);
+            List<TokenMacro> macros = getMacros(context, additionalMacros);
+            ParsedTemplate template = ParsedTemplate.get(newText);
+            if (template != null) {
+                newText = template.evaluate(context.getBuild(), context.getListener(), macros);
+            } else {
+                newText = TokenMacro.expandAll(context.getBuild(), context.getListener(), newText, false, macros);
+            }
         } catch (MacroEvaluationException e) {
             context.getListener().getLogger().println("Error evaluating token: " + e.getMessage());
         } catch (Exception e) {
@@ -79,6 +59,79 @@ public class ContentBuilder {
         return newText;
     }
 
+    /**
+     * Like {@link #transformText(String, ExtendedEmailPublisherContext, List)},
+     * but writes the text out as it is expanded. Tokens that render whole
+     * templates write their output directly (see {@link StreamingToken}).
+     *
+     * @return false if nothing was written because the text can only be
+     * expanded with {@link #transformText(String, ExtendedEmailPublisherContext, List)}
+     */
+    public static boolean writeText(String origText, ExtendedEmailPublisherContext context, List<TokenMacro> additionalMacros, Writer out)
+            throws IOException, InterruptedException {
+        if(StringUtils.isBlank(origText)) return true;
+
+        ParsedTemplate template = ParsedTemplate.get(resolveDefaults(origText, context));
+        if (template == null) {
+            return false;
+        }
+
+        template.writeTo(context.getBuild(), context.getListener(), getMacros(context, additionalMacros), out);
+        return true;
+    }
+
+    /**
+     * Finds the uses of a token in a text, without expanding anything.
+     *
+     * @return the arguments of each use of the token, or null if the text
+     * can only be expanded with token-macro
+     */
+    public static List<ListMultimap<String, String>> findTokens(String text, String macroName) {
+        ParsedTemplate template = ParsedTemplate.get(text);
+        if (template == null) {
+            return null;
+        }
+        List<ListMultimap<String, String>> uses = new ArrayList<ListMultimap<String, String>>();
+        for (ParsedTemplate.Token token : template.tokens) {
+            if (token.name.equals(macroName)) {
+                uses.add(token.argumentMultimap);
+            }
+        }
+        return uses;
+    }
+
+    private static List<TokenMacro> getMacros(ExtendedEmailPublisherContext context, List<TokenMacro> additionalMacros) {
+        List<TokenMacro> emailTokens = getPrivateMacros();
+        if (context.getTokenCache() != null) {
+            emailTokens = context.getTokenCache().wrap(emailTokens);
+        }
+        List<TokenMacro> macros = new ArrayList<TokenMacro>(emailTokens);
+        if(additionalMacros != null)
+            macros.addAll(additionalMacros);
+        return macros;
+    }
+
+    /**
+     * Replaces only the <tt>$PROJECT_DEFAULT_*</tt> and <tt>$DEFAULT_*</tt>
+     * placeholders of a text, leaving all other tokens alone.
+     */
+    public static String resolveDefaults(String origText, ExtendedEmailPublisherContext context) {
+        if(StringUtils.isBlank(origText)) return "";
+
+        // in the order of DefaultPlaceholders.NAMES
+        String[] defaults = {
+            noNull(context.getPublisher().defaultContent),
+            noNull(context.getPublisher().defaultSubject),
+            noNull(context.getPublisher().replyTo),
+            noNull(context.getPublisher().getDescriptor().getDefaultBody()),
+            noNull(context.getPublisher().getDescriptor().getDefaultSubject()),
+            noNull(context.getPublisher().getDescriptor().getDefaultRecipients()),
+            noNull(context.getPublisher().getDescriptor().getDefaultReplyTo()),
+            noNull(context.getPublisher().getDescriptor().getDefaultPresendScript())
+        };
+        return DefaultPlaceholders.resolve(origText, defaults);
+    }
+
     @Deprecated
     public static String transformText(String origText, ExtendedEmailPublisher publisher, AbstractBuild<?, ?> build, BuildListener listener) {
         return transformText(origText, publisher, build, null, listener);
@@ -90,18 +143,27 @@ public class ContentBuilder {
     }
     
     public static List<TokenMacro> getPrivateMacros() {
-        if(privateMacros != null)
-            return privateMacros;
-        
-        privateMacros = new ArrayList<TokenMacro>();
-        ClassLoader cl = Jenkins.getInstance().pluginManager.uberClassLoader;
-        for (final IndexItem<EmailToken, TokenMacro> item : Index.load(EmailToken.class, TokenMacro.class, cl)) {
-            try {
-                privateMacros.add(item.instance());
-            } catch (Exception e) {
-                // ignore errors loading tokens
+        List<TokenMacro> macros = privateMacros;
+        if (macros != null) {
+            return macros;
+        }
+
+        // emails for several triggers may be rendered at the same time, only
+        // publish the list once it has been filled
+        synchronized (ContentBuilder.class) {
+            if (privateMacros == null) {
+                macros = new ArrayList<TokenMacro>();
+                ClassLoader cl = Jenkins.getInstance().pluginManager.uberClassLoader;
+                for (final IndexItem<EmailToken, TokenMacro> item : Index.load(EmailToken.class, TokenMacro.class, cl)) {
+                    try {
+                        macros.add(item.instance());
+                    } catch (Exception e) {
+                        // ignore errors loading tokens
+                    }
+                }
+                privateMacros = macros;
             }
+            return privateMacros;
         }
-        return privateMacros;
     }
 }
@@ -8,6 +8,8 @@ import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Entities;
 import org.jsoup.select.Elements;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.text.MessageFormat;
@@ -68,9 +70,21 @@ public class CssInliner {
    * @return the processed html document
    */
   public String process(String input) {
+    return process(Jsoup.parse(input));
+  }
+
+  /**
+   * Reads an html document from a stream and processes it with the Css Inliner.
+   * @param input the html document
+   * @param charset the charset the document is encoded in
+   * @return the processed html document
+   * @throws IOException if the document cannot be read
+   */
+  public String process(InputStream input, String charset) throws IOException {
+    return process(Jsoup.parse(input, charset, ""));
+  }
 
-    Document doc = Jsoup.parse(input);
-    
+  private String process(Document doc) {
     extractStyles(doc);
     applyStyles(doc);
     inlineImages(doc);
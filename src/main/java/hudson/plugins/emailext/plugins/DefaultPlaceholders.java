@@ -0,0 +1,110 @@
+package hudson.plugins.emailext.plugins;
+
+/**
+ * Replaces the <tt>$DEFAULT_*</tt> and <tt>$PROJECT_DEFAULT_*</tt>
+ * placeholders of a text in a single pass.
+ *
+ * <p>
+ * The placeholders used to be replaced one after another with
+ * {@link String#replaceAll}, so the value of a placeholder could itself use
+ * the placeholders that come after it in {@link #NAMES} (the project default
+ * content is often just <tt>$DEFAULT_CONTENT</tt>), but not the ones before
+ * it. Values are resolved the same way here: the value of a placeholder is
+ * scanned again for the placeholders that follow it.
+ */
+final class DefaultPlaceholders {
+
+    /**
+     * The placeholder names, in the order they are resolved.
+     */
+    static final String[] NAMES = {
+        "PROJECT_DEFAULT_CONTENT",
+        "PROJECT_DEFAULT_SUBJECT",
+        "PROJECT_DEFAULT_REPLYTO",
+        "DEFAULT_CONTENT",
+        "DEFAULT_SUBJECT",
+        "DEFAULT_RECIPIENTS",
+        "DEFAULT_REPLYTO",
+        "DEFAULT_PRESEND_SCRIPT"
+    };
+
+    private DefaultPlaceholders() {
+    }
+
+    /**
+     * @param text the text to resolve the placeholders in
+     * @param values the value of each placeholder, in the order of
+     * {@link #NAMES}
+     * @return the text with all placeholders replaced, or the text itself if
+     * it doesn't contain any
+     */
+    static String resolve(String text, String[] values) {
+        // every placeholder contains this, most texts don't
+        if (text.indexOf("DEFAULT_") < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length() + 64);
+        if (!append(out, text, values, 0)) {
+            return text;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends the text to the buffer, replacing the placeholders from
+     * <tt>first</tt> on.
+     *
+     * @return true if any placeholder was replaced
+     */
+    private static boolean append(StringBuilder out, String text, String[] values, int first) {
+        boolean replaced = false;
+        int copied = 0;
+        int pos = text.indexOf('$');
+        while (pos >= 0) {
+            int end = -1;
+            int index = first;
+            for (; index < NAMES.length; index++) {
+                end = match(text, pos, NAMES[index]);
+                if (end >= 0) {
+                    break;
+                }
+            }
+            if (end < 0) {
+                pos = text.indexOf('$', pos + 1);
+                continue;
+            }
+
+            out.append(text, copied, pos);
+            String value = values[index];
+            if (value.indexOf('$') < 0 || index + 1 == NAMES.length || !append(out, value, values, index + 1)) {
+                out.append(value);
+            }
+            replaced = true;
+            copied = end;
+            pos = text.indexOf('$', end);
+        }
+        if (replaced) {
+            out.append(text, copied, text.length());
+        }
+        return replaced;
+    }
+
+    /**
+     * Matches <tt>$NAME</tt> or <tt>${NAME}</tt> at the given position.
+     *
+     * @return the position after the match, or -1
+     */
+    private static int match(String text, int pos, String name) {
+        int start = pos + 1;
+        if (text.startsWith(name, start)) {
+            return start + name.length();
+        }
+        if (start < text.length() && text.charAt(start) == '{' && text.startsWith(name, start + 1)) {
+            int close = start + 1 + name.length();
+            if (close < text.length() && text.charAt(close) == '}') {
+                return close + 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,182 @@
+package hudson.plugins.emailext.plugins;
+
+import com.google.common.collect.ListMultimap;
+import hudson.console.ConsoleNote;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * Evaluates all the {@link LogScanningToken}s of a text with a single pass
+ * over the build log, instead of one pass per token.
+ *
+ * <p>
+ * The tokens are added before the text is expanded and {@link #run()} reads
+ * the log once, removing the console notes of each line once and giving the
+ * line to every scanner that still needs it. The tokens are then expanded to
+ * what their scanners made. Nothing is shared when only one token is added,
+ * and if the log can't be read the tokens are left to be evaluated one by one
+ * as usual. So are tokens that don't need to read the log, such as a
+ * <tt>BUILD_LOG_REGEX</tt> whose matches are in the {@code LogIndex}.
+ */
+public final class LogScanPlanner {
+
+    private static final Logger LOGGER = Logger.getLogger(LogScanPlanner.class.getName());
+
+    /**
+     * Set to true to let every token read the log on its own.
+     */
+    static boolean DISABLED = Boolean.getBoolean(LogScanPlanner.class.getName() + ".disabled");
+
+    /**
+     * The number of characters read from the log at a time.
+     */
+    static final int BUFFER_SIZE = Integer.getInteger(LogScanPlanner.class.getName() + ".bufferSize", 64 * 1024);
+
+    /**
+     * Is given the lines of a log by {@link LogScanPlanner#scan(Reader, List)}.
+     */
+    public interface LineProcessor {
+
+        /**
+         * @param line the line, without its line terminator
+         * @param terminator the line terminator, or an empty String for the
+         * last line of a log that doesn't end with one
+         * @return false if no more lines are needed
+         */
+        boolean processLine(String line, String terminator);
+    }
+
+    private final AbstractBuild<?, ?> build;
+    private final TaskListener listener;
+
+    private final Map<String, LogScanningToken.Scanner> scanners = new LinkedHashMap<String, LogScanningToken.Scanner>();
+
+    LogScanPlanner(AbstractBuild<?, ?> build, TaskListener listener) {
+        this.build = build;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a token to the scan.
+     *
+     * @param key identifies the token and its arguments, the same token is
+     * only scanned for once
+     */
+    void add(String key, LogScanningToken token, String macroName, ListMultimap<String, String> arguments) {
+        if (scanners.containsKey(key)) {
+            return;
+        }
+        try {
+            LogScanningToken.Scanner scanner = token.createScanner(build, listener, macroName, arguments);
+            if (scanner != null) {
+                scanners.put(key, scanner);
+            }
+        } catch (MacroEvaluationException e) {
+            // left out, the token reports the problem itself when it is evaluated
+        } catch (RuntimeException e) {
+            // likewise, like a number argument that isn't one
+        }
+    }
+
+    /**
+     * Scans the log for all tokens that were added.
+     *
+     * @return the content of each token by its key, or an empty map if the
+     * tokens have to be evaluated on their own
+     */
+    Map<String, String> run() throws InterruptedException {
+        if (scanners.size() < 2) {
+            return Collections.emptyMap();
+        }
+        try {
+            Reader reader = build.getLogReader();
+            try {
+                scan(reader, new ArrayList<LogScanningToken.Scanner>(scanners.values()));
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not scan the log of " + build, e);
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> results = new HashMap<String, String>();
+        for (Map.Entry<String, LogScanningToken.Scanner> e : scanners.entrySet()) {
+            results.put(e.getKey(), e.getValue().getContent());
+        }
+        return results;
+    }
+
+    /**
+     * Gives the lines of a log to processors, until none of them needs any
+     * more. Lines end at <tt>\n</tt>, <tt>\r\n</tt> or <tt>\r</tt>, like
+     * with {@link java.io.BufferedReader#readLine()}, and the console notes
+     * are removed from them.
+     */
+    public static void scan(Reader reader, List<? extends LineProcessor> processors) throws IOException {
+        List<LineProcessor> active = new ArrayList<LineProcessor>(processors);
+        char[] buf = new char[BUFFER_SIZE];
+        StringBuilder line = new StringBuilder();
+        // a \r was read, but not yet whether a \n follows
+        boolean pendingCr = false;
+        int n;
+        while (!active.isEmpty() && (n = reader.read(buf)) != -1) {
+            int start = 0;
+            for (int i = 0; i < n && !active.isEmpty(); i++) {
+                char c = buf[i];
+                if (pendingCr) {
+                    pendingCr = false;
+                    if (c == '\n') {
+                        dispatch(line, "\r\n", active);
+                        start = i + 1;
+                        continue;
+                    }
+                    dispatch(line, "\r", active);
+                }
+                if (c == '\n' || c == '\r') {
+                    line.append(buf, start, i - start);
+                    start = i + 1;
+                    if (c == '\r') {
+                        pendingCr = true;
+                    } else {
+                        dispatch(line, "\n", active);
+                    }
+                }
+            }
+            if (start < n) {
+                line.append(buf, start, n - start);
+            }
+        }
+        if (pendingCr) {
+            dispatch(line, "\r", active);
+        } else if (line.length() > 0) {
+            dispatch(line, "", active);
+        }
+    }
+
+    private static void dispatch(StringBuilder line, String terminator, List<LineProcessor> active) {
+        if (active.isEmpty()) {
+            return;
+        }
+        // Remove console notes (JENKINS-7402)
+        String text = ConsoleNote.removeNotes(line.toString());
+        line.setLength(0);
+        for (Iterator<LineProcessor> it = active.iterator(); it.hasNext();) {
+            if (!it.next().processLine(text, terminator)) {
+                it.remove();
+            }
+        }
+    }
+}
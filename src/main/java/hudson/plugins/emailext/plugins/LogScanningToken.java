@@ -0,0 +1,38 @@
+package hudson.plugins.emailext.plugins;
+
+import com.google.common.collect.ListMultimap;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * A token macro whose content is made from the lines of the build log, so
+ * that several such tokens in one text can share a single pass over the log
+ * (see {@link LogScanPlanner}).
+ */
+public interface LogScanningToken {
+
+    /**
+     * Creates the scanner for one use of the token.
+     *
+     * @param arguments the arguments of the token
+     * @return the scanner, or null if this use of the token can be evaluated
+     * without reading the whole log, like from an index
+     * @throws MacroEvaluationException if the arguments are not valid
+     */
+    Scanner createScanner(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+            ListMultimap<String, String> arguments) throws MacroEvaluationException;
+
+    /**
+     * Is given the lines of the log in order, with the console notes already
+     * removed, and then makes the content of the token from them.
+     */
+    interface Scanner extends LogScanPlanner.LineProcessor {
+
+        /**
+         * @return what the token expands to, once the scanner has been given
+         * all the lines it needs
+         */
+        String getContent();
+    }
+}
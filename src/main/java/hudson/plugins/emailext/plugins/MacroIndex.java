@@ -0,0 +1,107 @@
+package hudson.plugins.emailext.plugins;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * Finds the macro for a token name without asking every macro whether it
+ * accepts the name each time.
+ *
+ * <p>
+ * The first lookup of a name goes through the macros in the same order as
+ * token-macro does, the installed {@link TokenMacro}s first and then the
+ * {@link ContentBuilder#getPrivateMacros() email-ext tokens}, and remembers
+ * the answer. This also covers macros that accept more than one name, such as
+ * {@link hudson.plugins.emailext.plugins.content.SVNRevisionContent} which
+ * accepts any name starting with <tt>SVN_REVISION</tt>. The index is thrown
+ * away and built again when the installed macros change.
+ */
+public final class MacroIndex {
+
+    /**
+     * The maximum number of names remembered per index, so that scripts
+     * calling lots of made up methods can't grow it without bounds.
+     */
+    static final int MAX_NAMES = Integer.getInteger(MacroIndex.class.getName() + ".maxNames", 1000);
+
+    private static final Object NONE = new Object();
+
+    private static volatile MacroIndex current;
+
+    private final List<TokenMacro> installed;
+    private final int installedSize;
+    private final List<TokenMacro> privateMacros;
+
+    private final ConcurrentMap<String, Object> installedByName = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, Object> allByName = new ConcurrentHashMap<String, Object>();
+
+    private MacroIndex(List<TokenMacro> installed, List<TokenMacro> privateMacros) {
+        this.installed = installed;
+        this.installedSize = installed.size();
+        this.privateMacros = privateMacros;
+    }
+
+    /**
+     * Gets the index for the macros that are currently installed.
+     */
+    public static MacroIndex get() {
+        List<TokenMacro> all = TokenMacro.all();
+        List<TokenMacro> emailTokens = ContentBuilder.getPrivateMacros();
+        MacroIndex index = current;
+        // the extension list is updated in place when plugins are loaded dynamically
+        if (index == null || index.installed != all || index.installedSize != all.size() || index.privateMacros != emailTokens) {
+            index = new MacroIndex(all, emailTokens);
+            current = index;
+        }
+        return index;
+    }
+
+    /**
+     * Finds the macro for a name among the installed macros and the email-ext
+     * tokens.
+     *
+     * @return null if no macro accepts the name
+     */
+    public TokenMacro find(String name) {
+        Object macro = allByName.get(name);
+        if (macro == null) {
+            macro = findInstalled(name);
+            if (macro == null) {
+                macro = scan(privateMacros, name);
+            }
+            remember(allByName, name, macro);
+        }
+        return macro == NONE ? null : (TokenMacro) macro;
+    }
+
+    /**
+     * Finds the macro for a name among the installed macros only.
+     *
+     * @return null if no installed macro accepts the name
+     */
+    public TokenMacro findInstalled(String name) {
+        Object macro = installedByName.get(name);
+        if (macro == null) {
+            macro = scan(installed, name);
+            remember(installedByName, name, macro);
+        }
+        return macro == NONE ? null : (TokenMacro) macro;
+    }
+
+    private static TokenMacro scan(List<TokenMacro> macros, String name) {
+        for (TokenMacro m : macros) {
+            if (m.acceptsMacroName(name)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static void remember(ConcurrentMap<String, Object> map, String name, Object macro) {
+        if (map.size() < MAX_NAMES) {
+            map.put(name, macro == null ? NONE : macro);
+        }
+    }
+}
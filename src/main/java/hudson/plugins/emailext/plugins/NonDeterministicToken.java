@@ -0,0 +1,18 @@
+package hudson.plugins.emailext.plugins;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a token whose value may differ between two expansions for the same
+ * build, so that its results are never shared through a {@link TokenCache}.
+ */
+@Retention(RUNTIME)
+@Target({TYPE})
+@Documented
+public @interface NonDeterministicToken {
+}
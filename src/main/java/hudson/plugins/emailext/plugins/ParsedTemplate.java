@@ -0,0 +1,350 @@
+package hudson.plugins.emailext.plugins;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * A text with token macros that has been split into its literal parts and
+ * its tokens, so that it only has to be parsed once.
+ *
+ * <p>
+ * Subjects, bodies and recipient lists are usually the same for every build
+ * of a job, and the global defaults are shared by many jobs. Parsed texts are
+ * kept in a bounded cache keyed by the text, and evaluating one only runs the
+ * macros and joins the parts. The result is the same as
+ * {@link TokenMacro#expandAll(AbstractBuild, TaskListener, String, boolean, List)}
+ * with <tt>throwException</tt> set to false.
+ *
+ * <p>
+ * The arguments of each token are parsed by the token-macro plugin itself. If
+ * a text contains something that might be a token but doesn't parse the same
+ * way, it is not cached and is expanded with token-macro as before.
+ */
+final class ParsedTemplate {
+
+    private static final Logger LOGGER = Logger.getLogger(ParsedTemplate.class.getName());
+
+    /**
+     * The maximum number of parsed texts kept.
+     */
+    static final int CACHE_SIZE = Integer.getInteger(ParsedTemplate.class.getName() + ".cacheSize", 500);
+
+    /**
+     * Set to true to always expand texts with token-macro.
+     */
+    static boolean DISABLED = Boolean.getBoolean(ParsedTemplate.class.getName() + ".disabled");
+
+    private static final String NAME = "[a-zA-Z0-9_]+";
+    private static final String SPACE = "[ \\t]*";
+    private static final String VALUE = "-?[0-9]+(?:\\.[0-9]*)?|true|false|\"(?:[^\\\\\"]|\\\\[\\s\\S])*\"";
+    private static final String ARG = NAME + SPACE + "=" + SPACE + "(?:" + VALUE + ")";
+
+    /**
+     * Matches the same tokens as token-macro's tokenizer: <tt>$NAME</tt> or
+     * <tt>${NAME, arg=value, ...}</tt>, but not when preceded by another
+     * <tt>$</tt>. Group 1 is the name of a plain token, group 2 the name of a
+     * delimited one.
+     */
+    private static final Pattern TOKEN = Pattern.compile("(?<!\\$)\\$(?:(" + NAME + ")|\\{" + SPACE + "(" + NAME + ")"
+            + "(?:" + SPACE + "," + SPACE + ARG + ")*" + SPACE + "\\})");
+
+    /**
+     * The name the tokens are renamed to when their arguments are parsed, so
+     * that no real macro picks them up.
+     */
+    private static final String PROBE_NAME = "EMAIL_EXT_PARSED_TEMPLATE_PROBE";
+
+    private static final Object UNPARSEABLE = new Object();
+
+    private static final Cache<String, Object> CACHE = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    /**
+     * A token of the text.
+     */
+    static final class Token {
+
+        final String source;
+        final String name;
+        final Map<String, String> arguments;
+        final ListMultimap<String, String> argumentMultimap;
+
+        Token(String source, String name, ListMultimap<String, String> argumentMultimap) {
+            this.source = source;
+            this.name = name;
+            this.argumentMultimap = ImmutableListMultimap.copyOf(argumentMultimap);
+            // like token-macro, the last value of an argument given more than once wins
+            Map<String, String> map = new HashMap<String, String>();
+            for (Map.Entry<String, String> e : argumentMultimap.entries()) {
+                map.put(e.getKey(), e.getValue());
+            }
+            this.arguments = Collections.unmodifiableMap(map);
+        }
+    }
+
+    /**
+     * The literal parts, one more than there are tokens.
+     */
+    final String[] literals;
+
+    final Token[] tokens;
+
+    private ParsedTemplate(String[] literals, Token[] tokens) {
+        this.literals = literals;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Gets the parsed form of a text, parsing it if it isn't cached yet.
+     *
+     * @return null if the text has to be expanded with token-macro instead
+     */
+    static ParsedTemplate get(final String text) {
+        if (DISABLED) {
+            return null;
+        }
+        try {
+            Object parsed = CACHE.get(text, new Callable<Object>() {
+                public Object call() {
+                    ParsedTemplate template = parse(text);
+                    return template == null ? UNPARSEABLE : template;
+                }
+            });
+            return parsed == UNPARSEABLE ? null : (ParsedTemplate) parsed;
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, "Could not parse " + text, e.getCause());
+            return null;
+        }
+    }
+
+    static void clearCache() {
+        CACHE.invalidateAll();
+    }
+
+    /**
+     * @return null if the text cannot be parsed exactly like token-macro would
+     */
+    static ParsedTemplate parse(String text) {
+        List<String> literals = new ArrayList<String>();
+        List<Token> tokens = new ArrayList<Token>();
+        Matcher m = TOKEN.matcher(text);
+        int end = 0;
+        while (m.find()) {
+            String literal = text.substring(end, m.start());
+            if (mightContainToken(text, end, m.start())) {
+                return null;
+            }
+            literals.add(literal);
+
+            String source = m.group();
+            if (m.group(1) != null) {
+                tokens.add(new Token(source, m.group(1), ImmutableListMultimap.<String, String>of()));
+            } else {
+                Token token = parseArguments(source, m.group(2), m.start(2) - m.start());
+                if (token == null) {
+                    return null;
+                }
+                tokens.add(token);
+            }
+            end = m.end();
+        }
+        if (mightContainToken(text, end, text.length())) {
+            return null;
+        }
+        literals.add(text.substring(end));
+        return new ParsedTemplate(literals.toArray(new String[literals.size()]), tokens.toArray(new Token[tokens.size()]));
+    }
+
+    /**
+     * Checks for a <tt>${</tt> the pattern didn't match, which token-macro
+     * might still see as a token. Plain <tt>$NAME</tt> tokens are always
+     * matched by the pattern.
+     */
+    private static boolean mightContainToken(String text, int from, int to) {
+        for (int i = text.indexOf("${", from); i >= 0 && i < to; i = text.indexOf("${", i + 1)) {
+            if (i == 0 || text.charAt(i - 1) != '$') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets token-macro parse the arguments of a delimited token, by renaming
+     * it and expanding it with a macro that only records what it is given.
+     */
+    private static Token parseArguments(String source, String name, int nameStart) {
+        String probe = source.substring(0, nameStart) + PROBE_NAME + source.substring(nameStart + name.length());
+        ArgumentRecorder recorder = new ArgumentRecorder();
+        try {
+            String result = TokenMacro.expand(null, TaskListener.NULL, probe, false,
+                    Collections.<TokenMacro>singletonList(recorder));
+            if (!"".equals(result) || recorder.calls != 1) {
+                return null;
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not parse the arguments of " + source, e);
+            return null;
+        }
+        return new Token(source, name, recorder.argumentMultimap);
+    }
+
+    private static final class ArgumentRecorder extends TokenMacro {
+
+        int calls;
+        ListMultimap<String, String> argumentMultimap;
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return PROBE_NAME.equals(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            calls++;
+            this.argumentMultimap = argumentMultimap;
+            return "";
+        }
+    }
+
+    /**
+     * Runs the macros of the text and joins the results with the literal
+     * parts.
+     *
+     * @param privateMacros the macros to use for the names none of the
+     * installed token macros accept
+     */
+    String evaluate(AbstractBuild<?, ?> build, TaskListener listener, List<TokenMacro> privateMacros)
+            throws IOException, InterruptedException {
+        Map<String, String> scanned = scanLog(build, listener);
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < tokens.length; i++) {
+            buf.append(literals[i]);
+            buf.append(evaluate(tokens[i], build, listener, privateMacros, scanned));
+        }
+        buf.append(literals[tokens.length]);
+        return build.getEnvironment(listener).expand(buf.toString());
+    }
+
+    /**
+     * Like {@link #evaluate(AbstractBuild, TaskListener, List)}, but writes
+     * the result out as it goes. Tokens whose macro is a
+     * {@link StreamingToken} write their content directly, without the
+     * environment variables in it being expanded; they are only expanded in
+     * the literal parts and in the results of the other tokens.
+     */
+    void writeTo(AbstractBuild<?, ?> build, TaskListener listener, List<TokenMacro> privateMacros, Writer out)
+            throws IOException, InterruptedException {
+        EnvVars env = build.getEnvironment(listener);
+        Map<String, String> scanned = scanLog(build, listener);
+        for (int i = 0; i < tokens.length; i++) {
+            out.write(env.expand(literals[i]));
+            Token token = tokens[i];
+            TokenMacro macro = MacroIndex.get().findInstalled(token.name);
+            if (macro == null) {
+                macro = findMacro(token.name, privateMacros);
+            }
+            if (macro instanceof StreamingToken && !macro.hasNestedContent()) {
+                try {
+                    ((StreamingToken) macro).writeTo(build, listener, token.name, token.arguments, out);
+                } catch (MacroEvaluationException e) {
+                    out.write(String.format("[Error replacing '%s' - %s]", token.source, e.getMessage()));
+                }
+            } else {
+                out.write(env.expand(evaluate(token, build, listener, privateMacros, scanned)));
+            }
+        }
+        out.write(env.expand(literals[tokens.length]));
+    }
+
+    /**
+     * Evaluates the tokens that read the build log with one pass over the log,
+     * if there are several of them (see {@link LogScanPlanner}). The results
+     * are not cached, as the log tokens are {@link NonDeterministicToken}s.
+     *
+     * @return the results by {@link TokenCache#key token key}
+     */
+    private Map<String, String> scanLog(AbstractBuild<?, ?> build, TaskListener listener)
+            throws InterruptedException {
+        if (LogScanPlanner.DISABLED) {
+            return Collections.emptyMap();
+        }
+        LogScanPlanner planner = null;
+        for (Token token : tokens) {
+            TokenMacro macro = MacroIndex.get().find(token.name);
+            if (!(macro instanceof LogScanningToken)) {
+                continue;
+            }
+            String key = TokenCache.key(token.name, token.argumentMultimap);
+            if (planner == null) {
+                planner = new LogScanPlanner(build, listener);
+            }
+            planner.add(key, (LogScanningToken) macro, token.name, token.argumentMultimap);
+        }
+        if (planner == null) {
+            return Collections.emptyMap();
+        }
+
+        return planner.run();
+    }
+
+    private static String evaluate(Token token, AbstractBuild<?, ?> build, TaskListener listener,
+            List<TokenMacro> privateMacros, Map<String, String> scanned) throws IOException, InterruptedException {
+        if (!scanned.isEmpty()) {
+            String result = scanned.get(TokenCache.key(token.name, token.argumentMultimap));
+            if (result != null) {
+                return result;
+            }
+        }
+        TokenMacro macro = MacroIndex.get().findInstalled(token.name);
+        if (macro == null) {
+            macro = findMacro(token.name, privateMacros);
+        }
+        if (macro == null) {
+            // unknown tokens are left alone, they may be meant for somebody else
+            return token.source;
+        }
+
+        try {
+            String replacement = macro.evaluate(build, listener, token.name, token.arguments, token.argumentMultimap);
+            if (macro.hasNestedContent()) {
+                replacement = TokenMacro.expand(build, listener, replacement, false, privateMacros);
+            }
+            return replacement;
+        } catch (MacroEvaluationException e) {
+            return String.format("[Error replacing '%s' - %s]", token.source, e.getMessage());
+        }
+    }
+
+    private static TokenMacro findMacro(String name, List<TokenMacro> macros) {
+        // the private macros differ between calls, they are wrapped per run
+        if (macros != null) {
+            for (TokenMacro macro : macros) {
+                if (macro.acceptsMacroName(name)) {
+                    return macro;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,78 @@
+package hudson.plugins.emailext.plugins;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.FileBackedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.activation.DataSource;
+
+/**
+ * A {@link DataSource} over content written to it once, kept in memory up to
+ * {@link #THRESHOLD} bytes and in a temporary file beyond that.
+ *
+ * <p>
+ * The content can be read any number of times, as JavaMail does when it
+ * picks a transfer encoding and again when it sends the message. The
+ * temporary file is deleted by {@link #reset()} once the message has been
+ * sent, or otherwise when the data source is garbage collected.
+ */
+public class SpooledDataSource implements DataSource {
+
+    /**
+     * The number of bytes kept in memory before the content is moved to a
+     * temporary file.
+     */
+    public static final int THRESHOLD = Integer.getInteger(SpooledDataSource.class.getName() + ".threshold", 1024 * 1024);
+
+    private final String name;
+    private final String contentType;
+    private final FileBackedOutputStream buffer;
+    private CountingOutputStream out;
+
+    public SpooledDataSource(String name, String contentType) {
+        this(name, contentType, THRESHOLD);
+    }
+
+    public SpooledDataSource(String name, String contentType, int threshold) {
+        this.name = name;
+        this.contentType = contentType;
+        this.buffer = new FileBackedOutputStream(threshold, true);
+        this.out = new CountingOutputStream(buffer);
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the stream to write the content to, which must be closed before
+     * the content is read
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long getSize() {
+        return out.getCount();
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return buffer.getSupplier().getInput();
+    }
+
+    /**
+     * Drops the content, deleting the temporary file if there is one.
+     */
+    public void reset() throws IOException {
+        buffer.reset();
+        out = new CountingOutputStream(buffer);
+    }
+}
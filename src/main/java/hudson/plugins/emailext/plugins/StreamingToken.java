@@ -0,0 +1,31 @@
+package hudson.plugins.emailext.plugins;
+
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * A token macro whose content can be written out as it is produced, instead
+ * of being returned as a single String.
+ *
+ * <p>
+ * Used for the tokens that render whole templates, so that a large email
+ * body doesn't have to be held in memory several times over when the body is
+ * streamed (see {@link ContentBuilder#writeText}).
+ */
+public interface StreamingToken {
+
+    /**
+     * Writes what
+     * {@link org.jenkinsci.plugins.tokenmacro.TokenMacro#evaluate(AbstractBuild, TaskListener, String, Map, com.google.common.collect.ListMultimap)}
+     * would return.
+     *
+     * @param arguments the arguments of the token
+     * @param out where to write the content to
+     */
+    void writeTo(AbstractBuild<?, ?> build, TaskListener listener, String macroName, Map<String, String> arguments,
+            Writer out) throws MacroEvaluationException, IOException, InterruptedException;
+}
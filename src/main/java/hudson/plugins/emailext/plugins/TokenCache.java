@@ -0,0 +1,161 @@
+package hudson.plugins.emailext.plugins;
+
+import com.google.common.collect.ListMultimap;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * Remembers the values of the tokens expanded while the emails of one build
+ * are generated.
+ *
+ * <p>
+ * The subject, body, recipients, reply-to and pre-send script of every
+ * triggered email are expanded separately, and expensive tokens such as
+ * <tt>${FAILED_TESTS}</tt> or <tt>${JELLY_SCRIPT}</tt> often show up in
+ * several of them with the same arguments. A cache is shared by all
+ * {@link hudson.plugins.emailext.ExtendedEmailPublisherContext contexts} of a
+ * single publisher run, so each distinct token is only evaluated once.
+ *
+ * <p>
+ * Tokens annotated with {@link NonDeterministicToken} are always evaluated,
+ * like the tokens that read the build log, which keeps growing while the
+ * emails are sent.
+ */
+public class TokenCache {
+
+    private final ConcurrentMap<String, FutureTask<String>> results = new ConcurrentHashMap<String, FutureTask<String>>();
+
+    private volatile List<TokenMacro> wrapped;
+    private volatile List<TokenMacro> wrappedFrom;
+
+    /**
+     * Wraps the given macros so that their results are shared through this
+     * cache.
+     */
+    public List<TokenMacro> wrap(List<TokenMacro> macros) {
+        List<TokenMacro> result = wrapped;
+        if (result != null && wrappedFrom == macros) {
+            return result;
+        }
+        result = new ArrayList<TokenMacro>(macros.size());
+        for (TokenMacro macro : macros) {
+            if (macro.getClass().isAnnotationPresent(NonDeterministicToken.class)) {
+                result.add(macro);
+            } else {
+                result.add(new CachingTokenMacro(macro));
+            }
+        }
+        result = Collections.unmodifiableList(result);
+        wrapped = result;
+        wrappedFrom = macros;
+        return result;
+    }
+
+    /**
+     * @return the number of distinct token expansions remembered
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * Builds the cache key from the macro name and its arguments, sorted by
+     * name so that <tt>${X, a=1, b=2}</tt> and <tt>${X, b=2, a=1}</tt> share
+     * a result. Arguments given more than once keep their order.
+     */
+    static String key(String macroName, ListMultimap<String, String> arguments) {
+        StringBuilder buf = new StringBuilder(macroName);
+        if (arguments != null && !arguments.isEmpty()) {
+            List<String> names = new ArrayList<String>(arguments.keySet());
+            Collections.sort(names);
+            for (String name : names) {
+                for (String value : arguments.get(name)) {
+                    buf.append('\u0000').append(name).append('=').append(value);
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    private String evaluate(final TokenMacro macro, final AbstractBuild<?, ?> build, final TaskListener listener,
+            final String macroName, final Map<String, String> arguments,
+            final ListMultimap<String, String> argumentMultimap)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        String key = key(macroName, argumentMultimap);
+        FutureTask<String> task = results.get(key);
+        if (task == null) {
+            FutureTask<String> newTask = new FutureTask<String>(new Callable<String>() {
+                public String call() throws Exception {
+                    return macro.evaluate(build, listener, macroName, arguments, argumentMultimap);
+                }
+            });
+            task = results.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                // don't let an interrupted evaluation poison later expansions
+                results.remove(key, task);
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof MacroEvaluationException) {
+                throw (MacroEvaluationException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private final class CachingTokenMacro extends TokenMacro {
+
+        private final TokenMacro delegate;
+
+        CachingTokenMacro(TokenMacro delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return delegate.acceptsMacroName(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException, IOException, InterruptedException {
+            return TokenCache.this.evaluate(delegate, build, listener, macroName, arguments, argumentMultimap);
+        }
+
+        @Override
+        public boolean hasNestedContent() {
+            return delegate.hasNestedContent();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package hudson.plugins.emailext.plugins.content;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.plugins.emailext.plugins.EmailToken;
+import hudson.plugins.emailext.plugins.NonDeterministicToken;
 import org.apache.commons.lang.StringEscapeUtils;
 
 import java.io.IOException;
@@ -12,10 +13,15 @@ import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
 /**
  * An EmailContent for build log. Shows last 250 lines of the build log file.
+ *
+ * <p>
+ * Not cached, since the log keeps growing while the emails of a build are
+ * sent and each trigger should see its current tail.
  * 
  * @author dvrzalik
  */
 @EmailToken
+@NonDeterministicToken
 public class BuildLogContent extends DataBoundTokenMacro {
 
     public static final String MACRO_NAME = "BUILD_LOG";
@@ -24,24 +24,37 @@
 
 package hudson.plugins.emailext.plugins.content;
 
-import hudson.console.ConsoleNote;
+import com.google.common.collect.ListMultimap;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.plugins.emailext.plugins.EmailToken;
+import hudson.plugins.emailext.plugins.LogScanPlanner;
+import hudson.plugins.emailext.plugins.LogScanningToken;
+import hudson.plugins.emailext.plugins.NonDeterministicToken;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro.Parameter;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
 /**
+ * An EmailContent for the part of the build log between two lines matching
+ * regular expressions.
+ *
+ * <p>
+ * Not cached, since the log keeps growing while the emails of a build are
+ * sent and each trigger should see the lines written so far.
+ *
  * @author <a href="mailto:nicolas.deloof@cloudbees.com">Nicolas De loof</a>
  */
 @EmailToken
-public class BuildLogExcerptContent extends DataBoundTokenMacro {
+@NonDeterministicToken
+public class BuildLogExcerptContent extends DataBoundTokenMacro implements LogScanningToken {
 
     public static final String MACRO_NAME = "BUILD_LOG_EXCERPT";
     
@@ -59,6 +72,9 @@ public class BuildLogExcerptContent extends DataBoundTokenMacro {
     @Override
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
+        if (ParameterBinder.isBinding(this)) {
+            return "";
+        }
         try {
             BufferedReader reader = new BufferedReader(context.getLogReader());
             try {
@@ -73,24 +89,43 @@ public class BuildLogExcerptContent extends DataBoundTokenMacro {
     }
 
     String getContent(BufferedReader reader) throws IOException {
+        ExcerptScanner scanner = new ExcerptScanner();
+        LogScanPlanner.scan(reader, Collections.singletonList(scanner));
+        return scanner.getContent();
+    }
+
+    public LogScanningToken.Scanner createScanner(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+            ListMultimap<String, String> arguments) throws MacroEvaluationException {
+        try {
+            return ParameterBinder.bind(this, macroName, arguments).new ExcerptScanner();
+        } catch (PatternSyntaxException e) {
+            throw new MacroEvaluationException(e.getMessage(), e);
+        }
+    }
 
-        Pattern startPattern = Pattern.compile(start);
-        Pattern endPattern = Pattern.compile(end);
+    /**
+     * Picks the lines between the start and the end line.
+     */
+    private final class ExcerptScanner implements LogScanningToken.Scanner {
 
-        StringBuilder buffer = new StringBuilder();
-        String line;
-        boolean started = false;
-        while ((line = reader.readLine()) != null) {
-            line = ConsoleNote.removeNotes(line);
+        private final Pattern startPattern = Pattern.compile(start);
+        private final Pattern endPattern = Pattern.compile(end);
+        private final StringBuilder buffer = new StringBuilder();
+        private boolean started = false;
 
+        public boolean processLine(String line, String terminator) {
             if (startPattern.matcher(line).matches()) {
                 started = true;
-                continue;
+                return true;
             }
-            if (endPattern.matcher(line).matches()) break;
+            if (endPattern.matcher(line).matches()) return false;
 
             if (started) buffer.append(line).append('\n');
+            return true;
+        }
+
+        public String getContent() {
+            return buffer.toString();
         }
-        return buffer.toString();
     }
 }
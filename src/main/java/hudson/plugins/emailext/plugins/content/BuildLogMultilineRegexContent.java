@@ -21,16 +21,22 @@
  */
 package hudson.plugins.emailext.plugins.content;
 
-import hudson.console.ConsoleNote;
+import com.google.common.collect.ListMultimap;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.plugins.emailext.plugins.EmailToken;
+import hudson.plugins.emailext.plugins.LogScanPlanner;
+import hudson.plugins.emailext.plugins.LogScanningToken;
+import hudson.plugins.emailext.plugins.NonDeterministicToken;
 import org.apache.commons.lang.StringEscapeUtils;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
@@ -40,13 +46,19 @@ import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
  * log, including line terminators. Shows build log segments matching a regular
  * expression from the build log file.
  *
+ * <p>
+ * Not cached, since the log keeps growing while the emails of a build are
+ * sent and each trigger should see the lines written so far.
+ *
  * @author krwalker@stellarscience.com
  */
 @EmailToken
-public class BuildLogMultilineRegexContent extends DataBoundTokenMacro {
+@NonDeterministicToken
+public class BuildLogMultilineRegexContent extends DataBoundTokenMacro implements LogScanningToken {
 
     public static final String MACRO_NAME = "BUILD_LOG_MULTILINE_REGEX";
     public static final int MAX_MATCHES_DEFAULT_VALUE = 0;
+    public static final int MAX_SPAN_LINES_DEFAULT_VALUE = 0;
     
     @Parameter(required=true)
     public String regex;
@@ -60,6 +72,14 @@ public class BuildLogMultilineRegexContent extends DataBoundTokenMacro {
     public boolean escapeHtml = false;
     @Parameter
     public String matchedSegmentHtmlStyle = null;
+    @Parameter
+    public int maxSpanLines = MAX_SPAN_LINES_DEFAULT_VALUE;
+
+    /**
+     * The number of lines read into the window before it is matched, when
+     * {@link #maxSpanLines} is set.
+     */
+    static final int CHUNK_LINES = Integer.getInteger(BuildLogMultilineRegexContent.class.getName() + ".chunkLines", 10000);
     
     private static final Pattern LINE_TERMINATOR_PATTERN = Pattern.compile("(?<=.)\\r?\\n");
 
@@ -122,6 +142,9 @@ public class BuildLogMultilineRegexContent extends DataBoundTokenMacro {
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
+        if (ParameterBinder.isBinding(this)) {
+            return "";
+        }
         try {
             BufferedReader reader = new BufferedReader(build.getLogReader());
             try {
@@ -136,76 +159,175 @@ public class BuildLogMultilineRegexContent extends DataBoundTokenMacro {
     }
 
     private String getContent(BufferedReader reader) throws IOException {
-        final Pattern pattern = Pattern.compile(regex);
-        final boolean asHtml = matchedSegmentHtmlStyle != null;
-        escapeHtml = asHtml || escapeHtml;
-
-        StringBuilder line = new StringBuilder();
-        StringBuilder fullLog = new StringBuilder();
-        int ch;
-        // Buffer log contents including line terminators, and remove console notes
-        while ((ch = reader.read()) != -1) {
-            if (ch == '\r' || ch == '\n') {
-                if (line.length() > 0) {
-                    // Remove console notes (JENKINS-7402)
-                    fullLog.append(ConsoleNote.removeNotes(line.toString()));
-                    line.setLength(0);
+        MultilineScanner scanner = new MultilineScanner();
+        LogScanPlanner.scan(reader, Collections.singletonList(scanner));
+        return scanner.getContent();
+    }
+
+    public LogScanningToken.Scanner createScanner(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+            ListMultimap<String, String> arguments) throws MacroEvaluationException {
+        try {
+            return ParameterBinder.bind(this, macroName, arguments).new MultilineScanner();
+        } catch (PatternSyntaxException e) {
+            throw new MacroEvaluationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Matches the regular expression against the log contents including line
+     * terminators, with the console notes removed.
+     *
+     * <p>
+     * Without {@link #maxSpanLines} the whole log is buffered and matched once
+     * all lines were read. Otherwise the log is matched a window at a time:
+     * once the window holds {@link #CHUNK_LINES} lines more than
+     * {@link #maxSpanLines}, the matches starting before its last
+     * {@link #maxSpanLines} lines are taken and the lines before those are
+     * dropped. Lookbehinds can see one line before a match.
+     */
+    private final class MultilineScanner implements LogScanningToken.Scanner {
+
+        private final Pattern pattern = Pattern.compile(regex);
+        private final boolean asHtml = matchedSegmentHtmlStyle != null;
+        private final boolean escapeHtml = asHtml || BuildLogMultilineRegexContent.this.escapeHtml;
+        private final int chunkLines = Math.max(CHUNK_LINES, 1);
+        // a span too long to count the lines of the window in can't be
+        // reached in any log, so it is the same as no span
+        private final int span = maxSpanLines > Integer.MAX_VALUE - 1 - chunkLines ? 0 : Math.max(maxSpanLines, 0);
+        // the number of lines in the window when it is matched
+        private final int windowLines = span + 1 + chunkLines;
+        private final StringBuilder window = new StringBuilder();
+        // the offsets in the window the lines start at, only kept with a span,
+        // grown as lines are read
+        private int[] lineStarts = new int[span > 0 ? Math.min(windowLines, 1024) : 0];
+        private int lineCount = 0;
+        private final StringBuilder content = new StringBuilder();
+        private boolean insidePre = false;
+        private int numMatches = 0;
+        // maxMatches was reached, the rest of the log is only counted
+        private boolean done = false;
+        // where the text after the last match starts in the window
+        private int lastMatchEnd = 0;
+        // the lines truncated after the last match, before the window
+        private int numLinesTruncated = 0;
+        // where to look for the next match in the window
+        private int searchFrom = 0;
+
+        public boolean processLine(String line, String terminator) {
+            if (done && !showTruncatedLines) {
+                return false;
+            }
+            if (span > 0) {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, (int) Math.min(2L * lineStarts.length, windowLines));
                 }
-                fullLog.append((char) ch);
-            } else {
-                line.append((char) ch);
+                lineStarts[lineCount++] = window.length();
             }
+            window.append(line).append(terminator);
+            if (span > 0 && lineCount == windowLines) {
+                slide();
+            }
+            return true;
         }
-        // Buffer the final log line if it has no line terminator
-        if (line.length() > 0) {
-            // Remove console notes (JENKINS-7402)
-            fullLog.append(ConsoleNote.removeNotes(line.toString()));
-        }
-        StringBuilder content = new StringBuilder();
-        int numMatches = 0;
-        boolean insidePre = false;
-        int lastMatchEnd = 0;
-        final Matcher matcher = pattern.matcher(fullLog);
-        while (matcher.find()) {
-            if (maxMatches != 0 && ++numMatches > maxMatches) {
-                break;
+
+        public String getContent() {
+            find(Integer.MAX_VALUE);
+            if (showTruncatedLines) {
+                countTruncatedLines(window.length());
+                if (numLinesTruncated > 0) {
+                    // Append information about truncated lines.
+                    insidePre = stopPre(content, insidePre);
+                    appendLinesTruncated(content, numLinesTruncated, asHtml);
+                }
             }
+            stopPre(content, insidePre);
+            return content.toString();
+        }
+
+        /**
+         * Takes the matches that start before the last lines of the window,
+         * and drops the lines before those but one, which is kept for
+         * lookbehinds.
+         */
+        private void slide() {
+            int keepFrom = lineStarts[lineCount - span];
+            find(keepFrom);
+            // a match starting before the last lines would have been found by now
+            searchFrom = Math.max(searchFrom, keepFrom);
+
+            int keptLines = span + 1;
+            int dropTo = lineStarts[lineCount - keptLines];
             if (showTruncatedLines) {
-                if (matcher.start() > lastMatchEnd) {
+                countTruncatedLines(dropTo);
+            }
+            lastMatchEnd = Math.max(lastMatchEnd - dropTo, 0);
+            searchFrom -= dropTo;
+            window.delete(0, dropTo);
+            for (int i = 0; i < keptLines; i++) {
+                lineStarts[i] = lineStarts[lineCount - keptLines + i] - dropTo;
+            }
+            lineCount = keptLines;
+        }
+
+        /**
+         * Counts the lines truncated between the last match and an offset of
+         * the window. Only ever called with the start of a line or the end of
+         * the window, so counting in pieces gives the same result as counting
+         * all at once.
+         */
+        private void countTruncatedLines(int to) {
+            if (to > lastMatchEnd) {
+                numLinesTruncated += countLineTerminators(window.subSequence(lastMatchEnd, to));
+                lastMatchEnd = to;
+            }
+        }
+
+        /**
+         * Appends the matches that start before an offset of the window.
+         */
+        private void find(int limit) {
+            if (done || searchFrom > window.length()) {
+                return;
+            }
+            final Matcher matcher = pattern.matcher(window);
+            // let lookarounds see the text before the region, like in the full log
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+            matcher.region(searchFrom, window.length());
+            // appendReplacement() starts at the beginning of the window
+            int appendPosition = 0;
+            while (matcher.find() && matcher.start() < limit) {
+                if (maxMatches != 0 && ++numMatches > maxMatches) {
+                    done = true;
+                    break;
+                }
+                if (showTruncatedLines) {
                     // Append information about truncated lines.
-                    int numLinesTruncated = countLineTerminators(fullLog.subSequence(lastMatchEnd, matcher.start()));
+                    countTruncatedLines(matcher.start());
                     if (numLinesTruncated > 0) {
                         insidePre = stopPre(content, insidePre);
                         appendLinesTruncated(content, numLinesTruncated, asHtml);
                     }
                 }
-            }
-            if (asHtml) {
-                insidePre = startPre(content, insidePre);
-            }
-            if (substText != null) {
-                final StringBuffer substBuf = new StringBuffer();
-                matcher.appendReplacement(substBuf, substText);
-                // Remove prepended text between matches
-                final String segment = substBuf.substring(matcher.start() - lastMatchEnd);
-                appendMatchedSegment(content, segment, escapeHtml, matchedSegmentHtmlStyle);
-            } else {
-                appendMatchedSegment(content, matcher.group(), escapeHtml, matchedSegmentHtmlStyle);
-            }
-            lastMatchEnd = matcher.end();
-        }
-        if (showTruncatedLines) {
-            if (fullLog.length() > lastMatchEnd) {
-                // Append information about truncated lines.
-                int numLinesTruncated = countLineTerminators(fullLog.subSequence(lastMatchEnd, fullLog.length()));
-                if (numLinesTruncated > 0) {
-                    insidePre = stopPre(content, insidePre);
-                    appendLinesTruncated(content, numLinesTruncated, asHtml);
+                numLinesTruncated = 0;
+                if (asHtml) {
+                    insidePre = startPre(content, insidePre);
+                }
+                if (substText != null) {
+                    final StringBuffer substBuf = new StringBuffer();
+                    matcher.appendReplacement(substBuf, substText);
+                    // Remove prepended text between matches
+                    final String segment = substBuf.substring(matcher.start() - appendPosition);
+                    appendMatchedSegment(content, segment, escapeHtml, matchedSegmentHtmlStyle);
+                    appendPosition = matcher.end();
+                } else {
+                    appendMatchedSegment(content, matcher.group(), escapeHtml, matchedSegmentHtmlStyle);
                 }
+                lastMatchEnd = matcher.end();
+                // like Matcher.find(), don't look at the end of an empty match again
+                searchFrom = matcher.end() == matcher.start() ? matcher.end() + 1 : matcher.end();
             }
         }
-        stopPre(content, insidePre);
-        return content.toString();
     }
 
     private int countLineTerminators(CharSequence charSequence) {
@@ -23,19 +23,30 @@
  */
 package hudson.plugins.emailext.plugins.content;
 
-import hudson.console.ConsoleNote;
+import com.google.common.collect.ListMultimap;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.plugins.emailext.plugins.EmailToken;
+import hudson.plugins.emailext.plugins.LogScanPlanner;
+import hudson.plugins.emailext.plugins.LogScanningToken;
+import hudson.plugins.emailext.plugins.NonDeterministicToken;
 
 import org.apache.commons.lang.StringEscapeUtils;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
@@ -44,10 +55,15 @@ import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
  * lines matching a regular expression (with optional context lines) from the
  * build log file.
  *
+ * <p>
+ * Not cached, since the log keeps growing while the emails of a build are
+ * sent and each trigger should see the lines written so far.
+ *
  * @author krwalker@stellarscience.com
  */
 @EmailToken
-public class BuildLogRegexContent extends DataBoundTokenMacro {
+@NonDeterministicToken
+public class BuildLogRegexContent extends DataBoundTokenMacro implements LogScanningToken {
 
     public static final String MACRO_NAME = "BUILD_LOG_REGEX";
     private static final int LINES_BEFORE_DEFAULT_VALUE = 0;
@@ -143,7 +159,21 @@ public class BuildLogRegexContent extends DataBoundTokenMacro {
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
+        if (ParameterBinder.isBinding(this)) {
+            return "";
+        }
         try {
+            LogIndex.Matches matches = getIndexedMatches(build);
+            if (matches != null) {
+                String content = getContent(build, matches);
+                if (content != null) {
+                    return content;
+                }
+            }
+            ChunkedLogScan log = ChunkedLogScan.of(build);
+            if (log != null) {
+                return getContent(log);
+            }
             BufferedReader reader = new BufferedReader(build.getLogReader());
             String transformedContent = getContent(reader);
             reader.close();
@@ -154,41 +184,246 @@ public class BuildLogRegexContent extends DataBoundTokenMacro {
         }
     }
 
+    /**
+     * @return the matches of the regex in the index of the build log, if they
+     * are enough to make the content; otherwise null
+     */
+    private LogIndex.Matches getIndexedMatches(AbstractBuild<?, ?> build) {
+        LogIndex index = LogIndex.get(build);
+        LogIndex.Matches matches = index != null ? index.getMatches(regex) : null;
+        // all the matches are known, or maybe the ones that are shown
+        if (matches != null && (matches.complete || (maxMatches > 0 && maxMatches <= matches.lines.length))) {
+            return matches;
+        }
+        return null;
+    }
+
     String getContent(BufferedReader reader)
             throws IOException {
+        RegexScanner scanner = new RegexScanner();
+        LogScanPlanner.scan(reader, Collections.singletonList(scanner));
+        return scanner.getContent();
+    }
 
-        final boolean asHtml = matchedLineHtmlStyle != null;
-        escapeHtml = asHtml || escapeHtml;
-
-        final Pattern pattern = Pattern.compile(regex);
-        final StringBuffer buffer = new StringBuffer();
-        int numLinesTruncated = 0;
-        int numMatches = 0;
-        int numLinesStillNeeded = 0;
-        boolean insidePre = false;
-        Queue<String> linesBeforeList = new LinkedList<String>();
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            // Remove console notes (JENKINS-7402)
-            line = ConsoleNote.removeNotes(line);
+    /**
+     * Scans the chunks of the log at the same time, then goes through the
+     * matches and their context in order as if the log had been read line by
+     * line, so the content is the same.
+     */
+    String getContent(ChunkedLogScan log)
+            throws IOException, InterruptedException {
+        List<ChunkScanner> chunks = new ArrayList<ChunkScanner>();
+        for (int i = 0; i < log.size(); i++) {
+            chunks.add(new ChunkScanner());
+        }
+        log.scan(chunks);
+        RegexScanner scanner = new RegexScanner();
+        for (ChunkScanner chunk : chunks) {
+            if (!chunk.replay(scanner)) {
+                break;
+            }
+        }
+        return scanner.getContent();
+    }
+
+    /**
+     * Reads only the lines around the matches found while the build ran, and
+     * the lines written after that, then goes through them as if the log had
+     * been read line by line, so the content is the same.
+     *
+     * @return null if the index doesn't agree with the log
+     */
+    String getContent(AbstractBuild<?, ?> build, LogIndex.Matches matches)
+            throws IOException {
+        long length = build.getLogFile().length();
+        if (matches.finished ? length != matches.byteCount : length < matches.byteCount) {
+            return null;
+        }
+        RegexScanner scanner = new RegexScanner();
+        long[] lines = matches.lines;
+        // the next line the scanner needs
+        long next = 0;
+        int i = 0;
+        try {
+            while (i <= lines.length && !scanner.done) {
+                long from;
+                long to;
+                if (i < lines.length) {
+                    // a match with its context, and the matches whose context touches it
+                    from = lines[i] - linesBefore;
+                    to = lines[i] + linesAfter + 1;
+                    for (i++; i < lines.length && lines[i] - linesBefore <= to; i++) {
+                        to = lines[i] + linesAfter + 1;
+                    }
+                } else if (!matches.complete) {
+                    // the lines after the last indexed match may be needed
+                    return null;
+                } else {
+                    // the context of the matches after the indexed lines
+                    from = matches.lineCount - linesBefore;
+                    to = matches.lineCount;
+                    i++;
+                }
+                from = Math.max(from, next);
+                to = Math.min(to, matches.lineCount);
+                if (from >= to) {
+                    continue;
+                }
+                if (!scanner.skipLines((int) (from - next)) || !readLines(build, matches, from, to, scanner)) {
+                    return scanner.getContent();
+                }
+                next = to;
+            }
+        } catch (StaleIndexException e) {
+            return null;
+        }
+        if (!scanner.skipLines((int) (matches.lineCount - next))) {
+            return scanner.getContent();
+        }
+
+        Reader reader = openLog(build, matches.byteCount);
+        try {
+            LogScanPlanner.scan(reader, Collections.singletonList(scanner));
+        } finally {
+            reader.close();
+        }
+        return scanner.getContent();
+    }
+
+    /**
+     * Gives the scanner the lines from <tt>from</tt> up to <tt>to</tt>.
+     *
+     * @return false if the scanner doesn't need any more lines
+     */
+    private boolean readLines(AbstractBuild<?, ?> build, LogIndex.Matches matches, long from, long to,
+            RegexScanner scanner) throws IOException, StaleIndexException {
+        // start at the line itself if its offset is known
+        int match = Arrays.binarySearch(matches.lines, from);
+        long line = match >= 0 ? from : matches.getCheckpointLine(from);
+        long offset = match >= 0 ? matches.offsets[match] : matches.getCheckpointOffset(line);
+        RangeScanner range = new RangeScanner(scanner, matches, line, from, to);
+        Reader reader = openLog(build, offset);
+        try {
+            LogScanPlanner.scan(reader, Collections.singletonList(range));
+        } finally {
+            reader.close();
+        }
+        if (range.stale || (!range.stopped && range.line < to)) {
+            throw new StaleIndexException();
+        }
+        return !range.stopped;
+    }
+
+    private static Reader openLog(AbstractBuild<?, ?> build, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(build.getLogFile());
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new InputStreamReader(in, build.getCharset());
+    }
+
+    /**
+     * The index of the log doesn't agree with the log.
+     */
+    private static final class StaleIndexException extends Exception {
+    }
+
+    public LogScanningToken.Scanner createScanner(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+            ListMultimap<String, String> arguments) throws MacroEvaluationException {
+        try {
+            BuildLogRegexContent token = ParameterBinder.bind(this, macroName, arguments);
+            if (token.getIndexedMatches(build) != null) {
+                // cheaper than taking part in the scan of the whole log
+                return null;
+            }
+            return token.new RegexScanner();
+        } catch (PatternSyntaxException e) {
+            throw new MacroEvaluationException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Tells whether a line matches the regex.
+     */
+    private final class LineMatcher {
+
+        private final Pattern pattern = Pattern.compile(regex);
+        private final LiteralPrefilter prefilter = LiteralPrefilter.of(pattern);
+
+        /**
+         * @return the line, transformed with substText if it is set, or null
+         * if the line doesn't match
+         */
+        String match(String line) {
+            boolean matched = false;
+            // most lines contain none of the literals a match needs
+            if (prefilter == null || prefilter.mayMatch(line)) {
+                final Matcher matcher = pattern.matcher(line);
+                final StringBuffer sb = new StringBuffer();
+                while (matcher.find()) {
+                    matched = true;
+                    if (substText != null) {
+                        matcher.appendReplacement(sb, substText);
+                    } else {
+                        break;
+                    }
+                }
+                // Transform the current line.
+                if (matched && substText != null) {
+                    matcher.appendTail(sb);
+                    line = sb.toString();
+                }
+            }
+            return matched ? line : null;
+        }
+    }
+
+    /**
+     * Picks the matching lines and their context from the lines of the log.
+     */
+    private final class RegexScanner implements LogScanningToken.Scanner {
+
+        private final boolean asHtml = matchedLineHtmlStyle != null;
+        private final boolean escapeHtml = asHtml || BuildLogRegexContent.this.escapeHtml;
+        private final LineMatcher lineMatcher = new LineMatcher();
+        private final StringBuffer buffer = new StringBuffer();
+        private final Queue<String> linesBeforeList = new LinkedList<String>();
+        private int numLinesTruncated = 0;
+        private int numMatches = 0;
+        private int numLinesStillNeeded = 0;
+        private boolean insidePre = false;
+        // maxMatches was reached, the rest of the lines are only counted
+        private boolean done = false;
+
+        public boolean processLine(String line, String terminator) {
+            if (done) {
+                // Include the rest of the lines that haven't been read in.
+                ++numLinesTruncated;
+                return true;
+            }
+            return process(line, lineMatcher.match(line));
+        }
+
+        /**
+         * @param matchedLine the (possibly transformed) line if it matches,
+         * or null
+         * @return false if no more lines are needed
+         */
+        boolean process(String line, String matchedLine) {
+            if (done) {
+                ++numLinesTruncated;
+                return true;
+            }
 
             // Remove any lines before that are no longer needed.
             while (linesBeforeList.size() > linesBefore) {
                 linesBeforeList.remove();
                 ++numLinesTruncated;
             }
-            final Matcher matcher = pattern.matcher(line);
-            final StringBuffer sb = new StringBuffer();
-            boolean matched = false;
-            while (matcher.find()) {
-                matched = true;
-                if (substText != null) {
-                    matcher.appendReplacement(sb, substText);
-                } else {
-                    break;
-                }
-            }
-            if (matched) {
+            if (matchedLine != null) {
                 // The current line matches.
                 if (showTruncatedLines == true && numLinesTruncated > 0) {
                     // Append information about truncated lines.
@@ -203,11 +438,7 @@ public class BuildLogRegexContent extends DataBoundTokenMacro {
                     appendContextLine(buffer, linesBeforeList.remove(), escapeHtml);
                 }
                 // Append the (possibly transformed) current line.
-                if (substText != null) {
-                    matcher.appendTail(sb);
-                    line = sb.toString();
-                }
-                appendMatchedLine(buffer, line, escapeHtml, matchedLineHtmlStyle, addNewline);
+                appendMatchedLine(buffer, matchedLine, escapeHtml, matchedLineHtmlStyle, addNewline);
                 ++numMatches;
                 // Set up to add numLinesStillNeeded
                 numLinesStillNeeded = linesAfter;
@@ -223,31 +454,182 @@ public class BuildLogRegexContent extends DataBoundTokenMacro {
                 }
             }
             if (maxMatches != 0 && numMatches >= maxMatches && numLinesStillNeeded == 0) {
-                break;
+                done = true;
+                // the rest of the lines are only needed to count them
+                return showTruncatedLines;
             }
+            return true;
         }
-        if (showTruncatedLines == true) {
-            // Count the rest of the lines.
-            // Include any lines in linesBefore.
-            while (linesBeforeList.size() > 0) {
-                linesBeforeList.remove();
-                ++numLinesTruncated;
+
+        /**
+         * Goes past lines that don't match and are too far from a match to be
+         * shown, which is the same as processing them one by one.
+         *
+         * @return false if no more lines are needed
+         */
+        boolean skipLines(int n) {
+            if (done) {
+                numLinesTruncated += n;
+                return showTruncatedLines;
             }
-            if (line != null) {
-                // Include the rest of the lines that haven't been read in.
-                while ((line = reader.readLine()) != null) {
+            if (n > 0) {
+                // Of the lines before and the skipped lines, the last ones
+                // stay in linesBeforeList and the others are truncated.
+                int size = Math.min(linesBeforeList.size() + n, linesBefore + 1);
+                int removed = linesBeforeList.size() + n - size;
+                numLinesTruncated += removed;
+                for (int i = 0; i < removed && !linesBeforeList.isEmpty(); i++) {
+                    linesBeforeList.remove();
+                }
+                while (linesBeforeList.size() < size) {
+                    // never shown
+                    linesBeforeList.offer(null);
+                }
+            }
+            return true;
+        }
+
+        public String getContent() {
+            if (showTruncatedLines == true) {
+                // Count the rest of the lines.
+                // Include any lines in linesBefore.
+                while (linesBeforeList.size() > 0) {
+                    linesBeforeList.remove();
                     ++numLinesTruncated;
                 }
+                if (numLinesTruncated > 0) {
+                    insidePre = stopPre(buffer, insidePre);
+                    appendLinesTruncated(buffer, numLinesTruncated, asHtml);
+                }
+            }
+            insidePre = stopPre(buffer, insidePre);
+            if (buffer.length() == 0) {
+                return defaultValue;
+            }
+            return buffer.toString();
+        }
+    }
+
+    /**
+     * Scans one chunk of a log that is scanned a chunk at a time, and keeps
+     * the lines of the chunk that may be shown: the matching lines and their
+     * context, the first linesAfter lines for the matches at the end of the
+     * chunk before, and the last linesBefore lines for the matches at the
+     * start of the next chunk.
+     */
+    private final class ChunkScanner implements LogScanPlanner.LineProcessor {
+
+        private final LineMatcher lineMatcher = new LineMatcher();
+        private final List<Integer> indexes = new ArrayList<Integer>();
+        private final List<String> lines = new ArrayList<String>();
+        private final List<String> matchedLines = new ArrayList<String>();
+        // the lines just before the current one that aren't kept yet
+        private final Queue<String> recentLines = new LinkedList<String>();
+        private int lineCount = 0;
+        private int numMatches = 0;
+        private int numLinesStillNeeded = 0;
+
+        public boolean processLine(String line, String terminator) {
+            if (maxMatches != 0 && numMatches >= maxMatches && numLinesStillNeeded == 0) {
+                // The later matches of this chunk are never shown, the rest
+                // of the lines are only counted.
+                ++lineCount;
+                return showTruncatedLines;
+            }
+            String matchedLine = lineMatcher.match(line);
+            if (matchedLine != null) {
+                keepRecentLines();
+                keep(line, matchedLine);
+                ++numMatches;
+                numLinesStillNeeded = linesAfter;
+            } else if (numLinesStillNeeded > 0 || lineCount < linesAfter) {
+                keep(line, null);
+                if (numLinesStillNeeded > 0) {
+                    --numLinesStillNeeded;
+                }
+            } else {
+                recentLines.offer(line);
+                if (recentLines.size() > linesBefore) {
+                    recentLines.remove();
+                }
+            }
+            ++lineCount;
+            return true;
+        }
+
+        private void keepRecentLines() {
+            int index = lineCount - recentLines.size();
+            while (!recentLines.isEmpty()) {
+                indexes.add(index++);
+                lines.add(recentLines.remove());
+                matchedLines.add(null);
             }
-            if (numLinesTruncated > 0) {
-                insidePre = stopPre(buffer, insidePre);
-                appendLinesTruncated(buffer, numLinesTruncated, asHtml);
+        }
+
+        private void keep(String line, String matchedLine) {
+            indexes.add(lineCount);
+            lines.add(line);
+            matchedLines.add(matchedLine);
+        }
+
+        /**
+         * Gives the lines of the chunk to the scanner of the whole log.
+         *
+         * @return false if no more lines are needed
+         */
+        boolean replay(RegexScanner scanner) {
+            keepRecentLines();
+            int next = 0;
+            for (int i = 0; i < indexes.size(); i++) {
+                int index = indexes.get(i);
+                if (!scanner.skipLines(index - next) || !scanner.process(lines.get(i), matchedLines.get(i))) {
+                    return false;
+                }
+                next = index + 1;
             }
+            return scanner.skipLines(lineCount - next);
         }
-        insidePre = stopPre(buffer, insidePre);
-        if (buffer.length() == 0) {
-            return defaultValue;
+    }
+
+    /**
+     * Gives a part of the log read from an index to the scanner of the whole
+     * log, checking that the lines match where the index says they do.
+     */
+    private final class RangeScanner implements LogScanPlanner.LineProcessor {
+
+        private final RegexScanner scanner;
+        private final LogIndex.Matches matches;
+        private final long from;
+        private final long to;
+        private long line;
+        private boolean stale = false;
+        private boolean stopped = false;
+
+        RangeScanner(RegexScanner scanner, LogIndex.Matches matches, long line, long from, long to) {
+            this.scanner = scanner;
+            this.matches = matches;
+            this.line = line;
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean processLine(String text, String terminator) {
+            if (line >= from) {
+                String matchedLine = scanner.lineMatcher.match(text);
+                boolean indexed = Arrays.binarySearch(matches.lines, line) >= 0;
+                // past the last match of an incomplete index, lines may match that aren't in it
+                boolean known = matches.complete || matches.lines.length == 0
+                        || line <= matches.lines[matches.lines.length - 1];
+                if (indexed != (matchedLine != null) && (indexed || known)) {
+                    stale = true;
+                    return false;
+                }
+                if (!scanner.process(text, matchedLine)) {
+                    stopped = true;
+                    return false;
+                }
+            }
+            return ++line < to;
         }
-        return buffer.toString();
     }
 }
@@ -0,0 +1,235 @@
+package hudson.plugins.emailext.plugins.content;
+
+import hudson.model.AbstractBuild;
+import hudson.plugins.emailext.plugins.LogScanPlanner;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * A large build log cut into chunks that can be scanned at the same time.
+ *
+ * <p>
+ * The chunks are byte ranges of the log file that end right after a
+ * <tt>\n</tt>, so no line (and no <tt>\r\n</tt>) is cut in two, and each chunk
+ * can be decoded on its own. Only logs that are not compressed, are at least
+ * {@link #MIN_SIZE} bytes and use an encoding in which a <tt>\n</tt> byte is
+ * always a line feed are cut. The chunks are scanned on a small pool of
+ * daemon threads shared by all builds.
+ */
+final class ChunkedLogScan {
+
+    /**
+     * Set to true to always scan the log on the thread that sends the email.
+     */
+    static boolean DISABLED = Boolean.getBoolean(ChunkedLogScan.class.getName() + ".disabled");
+
+    /**
+     * Logs smaller than this many bytes are scanned in one go.
+     */
+    static final long MIN_SIZE = Long.getLong(ChunkedLogScan.class.getName() + ".minSize", 64L * 1024 * 1024);
+
+    /**
+     * The size of a chunk in bytes.
+     */
+    static final long CHUNK_SIZE = Long.getLong(ChunkedLogScan.class.getName() + ".chunkSize", 16L * 1024 * 1024);
+
+    /**
+     * The number of chunks scanned at the same time.
+     */
+    static final int THREADS = Integer.getInteger(ChunkedLogScan.class.getName() + ".threads",
+            Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService executor;
+
+    private final File file;
+    private final Charset charset;
+    // the chunk i is the bytes from offsets[i] up to offsets[i + 1]
+    private final long[] offsets;
+
+    ChunkedLogScan(File file, Charset charset, long chunkSize) throws IOException {
+        this.file = file;
+        this.charset = charset;
+        this.offsets = split(file, chunkSize);
+    }
+
+    /**
+     * @return the log of the build cut into chunks, or null if it should be
+     * scanned in one go
+     */
+    static ChunkedLogScan of(AbstractBuild<?, ?> build) throws IOException {
+        if (DISABLED || THREADS < 2) {
+            return null;
+        }
+        File file = build.getLogFile();
+        if (file == null || !file.isFile() || file.getName().endsWith(".gz") || file.length() < MIN_SIZE) {
+            return null;
+        }
+        Charset charset = build.getCharset();
+        if (!isSplittable(charset)) {
+            return null;
+        }
+        ChunkedLogScan log = new ChunkedLogScan(file, charset, CHUNK_SIZE);
+        return log.size() > 1 ? log : null;
+    }
+
+    /**
+     * Whether a <tt>\n</tt> byte can't be part of another character, like in
+     * UTF-8 and the single byte encodings.
+     */
+    static boolean isSplittable(Charset charset) {
+        if (!charset.canEncode() || !"\n".equals(new String(new byte[] {'\n'}, charset))) {
+            return false;
+        }
+        return charset.name().equals("UTF-8") || charset.newEncoder().maxBytesPerChar() == 1;
+    }
+
+    private static long[] split(File file, long chunkSize) throws IOException {
+        List<Long> offsets = new ArrayList<Long>();
+        offsets.add(0L);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            byte[] buf = new byte[8192];
+            long offset = chunkSize;
+            while (offset < length) {
+                // move on to the start of the next line
+                raf.seek(offset);
+                int n;
+                int i = 0;
+                while ((n = raf.read(buf)) != -1) {
+                    for (i = 0; i < n && buf[i] != '\n'; i++) {
+                    }
+                    if (i < n) {
+                        break;
+                    }
+                    offset += n;
+                }
+                if (n == -1) {
+                    break;
+                }
+                offset += i + 1;
+                if (offset >= length) {
+                    break;
+                }
+                offsets.add(offset);
+                offset += chunkSize;
+            }
+            offsets.add(length);
+        } finally {
+            raf.close();
+        }
+        long[] result = new long[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of chunks
+     */
+    int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Opens the chunks from <tt>from</tt> up to <tt>to</tt>, as one text.
+     */
+    Reader open(int from, int to) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offsets[from]);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        InputStream chunk = new BoundedInputStream(in, offsets[to] - offsets[from]);
+        return new InputStreamReader(chunk, charset);
+    }
+
+    /**
+     * Gives the lines of each chunk to its own scanner, the chunks being
+     * scanned at the same time.
+     *
+     * @param scanners a scanner for each chunk, in order
+     */
+    void scan(List<? extends LogScanPlanner.LineProcessor> scanners) throws IOException, InterruptedException {
+        if (scanners.size() != size()) {
+            throw new IllegalArgumentException("Expected " + size() + " scanners, got " + scanners.size());
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < scanners.size(); i++) {
+                final int chunk = i;
+                final LogScanPlanner.LineProcessor scanner = scanners.get(i);
+                futures.add(getExecutor().submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        Reader reader = open(chunk, chunk + 1);
+                        try {
+                            LogScanPlanner.scan(reader, Collections.singletonList(scanner));
+                        } finally {
+                            reader.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "email-ext log scan " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+}
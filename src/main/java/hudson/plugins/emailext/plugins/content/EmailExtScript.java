@@ -14,7 +14,7 @@ import com.google.common.collect.ListMultimap;
 import groovy.lang.Script;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
-import hudson.plugins.emailext.plugins.ContentBuilder;
+import hudson.plugins.emailext.plugins.MacroIndex;
 
 public abstract class EmailExtScript extends Script {
 
@@ -43,22 +43,7 @@ public abstract class EmailExtScript extends Script {
 	public Object methodMissing(String name, Object args)
             throws MacroEvaluationException, IOException, InterruptedException {
     
-        TokenMacro macro = null;
-        for(TokenMacro m : TokenMacro.all()) {
-            if(m.acceptsMacroName(name)) {
-                macro = m;
-                break;
-            }
-        }
-
-        if(macro == null) {
-            for(TokenMacro m : ContentBuilder.getPrivateMacros()) {
-                if(m.acceptsMacroName(name)) {
-                    macro = m;
-                    break;
-                }
-            }
-        }
+        TokenMacro macro = MacroIndex.get().find(name);
 
         if(macro != null) {                
             Map<String, String> argsMap = new HashMap<String, String>();
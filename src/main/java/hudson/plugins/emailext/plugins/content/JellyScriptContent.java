@@ -1,15 +1,15 @@
 package hudson.plugins.emailext.plugins.content;
 
-import hudson.ExtensionList;
 import hudson.Plugin;
 import hudson.model.AbstractBuild;
-import hudson.model.Hudson;
 import hudson.model.TaskListener;
 import hudson.plugins.emailext.plugins.EmailToken;
+import hudson.plugins.emailext.plugins.NonDeterministicToken;
+import hudson.plugins.emailext.plugins.StreamingToken;
 import hudson.plugins.emailext.ExtendedEmailPublisherDescriptor;
 import hudson.plugins.emailext.JellyTemplateConfig.JellyTemplateConfigProvider;
+import hudson.plugins.emailext.ManagedTemplateIndex;
 import hudson.tasks.Mailer;
-import java.io.ByteArrayInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.jelly.JellyContext;
 import org.apache.commons.jelly.JellyException;
@@ -19,19 +19,19 @@ import org.apache.commons.jelly.XMLOutput;
 import org.xml.sax.InputSource;
 
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import jenkins.model.Jenkins;
-import org.jenkinsci.lib.configprovider.ConfigProvider;
-import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
 @EmailToken
-public class JellyScriptContent extends DataBoundTokenMacro {
+@NonDeterministicToken
+public class JellyScriptContent extends DataBoundTokenMacro implements StreamingToken {
 
     public static final String MACRO_NAME = "JELLY_SCRIPT";
     private static final String DEFAULT_HTML_TEMPLATE_NAME = "html";
@@ -39,8 +39,6 @@ public class JellyScriptContent extends DataBoundTokenMacro {
     private static final String DEFAULT_TEMPLATE_NAME = DEFAULT_HTML_TEMPLATE_NAME;
     private static final String EMAIL_TEMPLATES_DIRECTORY = "email-templates";
     
-    private static Object configProvider;
-    
     @Parameter
     public String template = DEFAULT_TEMPLATE_NAME;
 
@@ -52,18 +50,38 @@ public class JellyScriptContent extends DataBoundTokenMacro {
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
-        InputStream inputStream = null;
-
         try {
-            inputStream = getTemplateInputStream(template);
-            return renderContent(build, inputStream, listener);
+            return renderContent(build, getScript(template), listener);
         } catch (JellyException e) {
             return "JellyException: " + e.getMessage();
         } catch (FileNotFoundException e) {
             String missingTemplateError = generateMissingTemplate(template);
             return missingTemplateError;
-        } finally {
-            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    public void writeTo(AbstractBuild<?, ?> build, TaskListener listener, String macroName, Map<String, String> arguments,
+            Writer out) throws MacroEvaluationException, IOException, InterruptedException {
+        // like DataBoundTokenMacro, don't touch the shared instance
+        String templateName = DEFAULT_TEMPLATE_NAME;
+        for (Map.Entry<String, String> e : arguments.entrySet()) {
+            if (!e.getKey().equals("template")) {
+                throw new MacroEvaluationException(String.format("Undefined parameter %s in token %s", e.getKey(), macroName));
+            }
+            templateName = e.getValue();
+        }
+
+        try {
+            Script script = getScript(templateName);
+            JellyContext context = createContext(new ScriptContentBuildWrapper(build), build, listener);
+            XMLOutput xmlOutput = XMLOutput.createXMLOutput(out);
+            script.run(context, xmlOutput);
+            // flush without closing the writer, more may follow the template
+            xmlOutput.flush();
+        } catch (JellyException e) {
+            out.write("JellyException: " + e.getMessage());
+        } catch (FileNotFoundException e) {
+            out.write(generateMissingTemplate(templateName));
         }
     }
 
@@ -82,74 +100,104 @@ public class JellyScriptContent extends DataBoundTokenMacro {
     private InputStream getTemplateInputStream(String templateName)
             throws FileNotFoundException {
         
-        InputStream inputStream;
         if(templateName.startsWith("managed:")) {
-            String managedTemplateName = templateName.substring(8);
-            try {
-                inputStream = getManagedTemplate(managedTemplateName);
-            } catch(NoClassDefFoundError e) {
-                inputStream = null;
-            }
-            
-            if(inputStream == null) {
-                throw new FileNotFoundException(String.format("Managed template '%s' not found", managedTemplateName));
-            }
-            return inputStream;
+            return getManagedTemplate(templateName).open();
         }
         
+        return TemplateStore.get().open(getFileName(templateName));
+    }
+    
+    /**
+     * Identifies the current source of a template, looking for it in the same
+     * places as {@link #getTemplateInputStream(String)}.
+     */
+    private String getTemplateVersion(String templateName)
+            throws FileNotFoundException {
+        if(templateName.startsWith("managed:")) {
+            return getManagedTemplate(templateName).getVersion();
+        }
+        
+        return TemplateStore.get().getVersion(getFileName(templateName));
+    }
+    
+    private static String getFileName(String templateName) {
         // add .jelly if needed
         if (!templateName.endsWith(".jelly")) {
             templateName += ".jelly";
         }
+        return templateName;
+    }
+    
+    private ManagedTemplateIndex.Entry getManagedTemplate(String templateName)
+            throws FileNotFoundException {
+        String managedTemplateName = templateName.substring(8);
+        ManagedTemplateIndex.Entry entry = null;
+        try {
+            Plugin plugin = Jenkins.getInstance().getPlugin("config-file-provider");
+            if(plugin != null) {
+                ManagedTemplateIndex index = ManagedTemplateIndex.of(JellyTemplateConfigProvider.class);
+                entry = index != null ? index.find(managedTemplateName) : null;
+            }
+        } catch(NoClassDefFoundError e) {
+            entry = null;
+        }
         
-        inputStream = getClass().getClassLoader().getResourceAsStream(
-                "hudson/plugins/emailext/templates/" + templateName);
-
-        if (inputStream == null) {
-            final File templatesFolder = new File(Hudson.getInstance().getRootDir(), EMAIL_TEMPLATES_DIRECTORY);
-            final File templateFile = new File(templatesFolder, templateName);
-            inputStream = new FileInputStream(templateFile);
+        if(entry == null) {
+            throw new FileNotFoundException(String.format("Managed template '%s' not found", managedTemplateName));
         }
+        return entry;
+    }
 
-        return inputStream;
+    /**
+     * Compiles a script into the template cache, unless it is cached
+     * already.
+     *
+     * @param templateName the name of the template
+     */
+    void precompile(String templateName) throws JellyException, IOException {
+        getScript(templateName);
     }
-    
-    private InputStream getManagedTemplate(String templateName) {
-        Plugin plugin = Jenkins.getInstance().getPlugin("config-file-provider");
-        InputStream stream = null;
-        if(plugin != null) {
-            Config config = null;
-            ConfigProvider provider = getTemplateConfigProvider();
-            for(Config c : provider.getAllConfigs()) {
-                if(c.name.equalsIgnoreCase(templateName) && provider.isResponsibleFor(c.id)) {
-                    config = c;
-                    break;
-                }                    
+
+    /**
+     * Gets the compiled script, reusing the one compiled for an earlier email
+     * if the template hasn't changed since.
+     *
+     * @param templateName the name of the template
+     * @return the compiled script
+     */
+    private Script getScript(final String templateName)
+            throws JellyException, IOException {
+        Callable<Script> compiler = new Callable<Script>() {
+            public Script call() throws Exception {
+                InputStream inputStream = getTemplateInputStream(templateName);
+                try {
+                    return new JellyContext().compileScript(new InputSource(inputStream));
+                } finally {
+                    IOUtils.closeQuietly(inputStream);
+                }
             }
-            
-            if(config != null) {
-                stream = new ByteArrayInputStream(config.content.getBytes());
+        };
+        try {
+            if (TemplateCache.DISABLED) {
+                return compiler.call();
             }
+            return TemplateCache.get().get("jelly:" + templateName, getTemplateVersion(templateName), compiler);
+        } catch (JellyException e) {
+            throw e;
+        } catch (IOException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new JellyException(e);
         }
-        return stream;
-    }
-    
-    private static ConfigProvider getTemplateConfigProvider() {
-        if(configProvider == null) {
-            ExtensionList<ConfigProvider> providers = ConfigProvider.all();
-            configProvider = providers.get(JellyTemplateConfigProvider.class);
-        }
-        return (ConfigProvider)configProvider;
     }
 
-    private String renderContent(AbstractBuild<?, ?> build, InputStream inputStream, TaskListener listener)
+    private String renderContent(AbstractBuild<?, ?> build, Script script, TaskListener listener)
             throws JellyException, IOException {
+        // a compiled script can be run many times, but each run needs its own context
         JellyContext context = createContext(new ScriptContentBuildWrapper(build), build, listener);
-        Script script = context.compileScript(new InputSource(inputStream));
-        if (script != null) {
-            return convert(build, context, script);
-        }
-        return null;
+        return convert(build, context, script);
     }
 
     private String convert(AbstractBuild<?, ?> build, JellyContext context, Script script)
@@ -0,0 +1,541 @@
+package hudson.plugins.emailext.plugins.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Rules out lines a regular expression cannot match without running the
+ * regular expression, by looking for the literals one of which every match
+ * must contain.
+ *
+ * <p>
+ * The literals are taken from the source of the pattern: for
+ * <tt>(?i)\b(error|fail(ed|ure))\b</tt> a match must contain one of
+ * <tt>error</tt>, <tt>failed</tt> or <tt>failure</tt>, ignoring case. The
+ * literals are looked for all at once with an Aho-Corasick automaton, in a
+ * single pass over the line. Only the common constructs are understood;
+ * for anything else, such as embedded flags other than a leading
+ * <tt>(?i)</tt>, no prefilter is made and every line is matched as before.
+ */
+final class LiteralPrefilter {
+
+    /**
+     * Set to true to match every line against the regular expression.
+     */
+    static boolean DISABLED = Boolean.getBoolean(LiteralPrefilter.class.getName() + ".disabled");
+
+    /**
+     * The most literals a pattern is expanded to, beyond that the parts of
+     * a pattern are looked at separately.
+     */
+    private static final int MAX_LITERALS = 64;
+
+    private static final int ALPHABET = 128;
+
+    private final List<String> literals;
+    private final boolean ignoreCase;
+    private final int[][] next;
+    private final boolean[] accepting;
+
+    private LiteralPrefilter(Set<String> literals, boolean ignoreCase) {
+        this.literals = Collections.unmodifiableList(new ArrayList<String>(literals));
+        this.ignoreCase = ignoreCase;
+
+        // the trie
+        List<int[]> states = new ArrayList<int[]>();
+        List<Boolean> output = new ArrayList<Boolean>();
+        states.add(newState());
+        output.add(false);
+        for (String literal : literals) {
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                char c = literal.charAt(i);
+                if (states.get(state)[c] < 0) {
+                    states.get(state)[c] = states.size();
+                    states.add(newState());
+                    output.add(false);
+                }
+                state = states.get(state)[c];
+            }
+            output.set(state, true);
+        }
+
+        // turn it into a DFA, following the failure links breadth first
+        next = states.toArray(new int[states.size()][]);
+        accepting = new boolean[next.length];
+        int[] fail = new int[next.length];
+        int[] queue = new int[next.length];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < ALPHABET; c++) {
+            if (next[0][c] < 0) {
+                next[0][c] = 0;
+            } else {
+                fail[next[0][c]] = 0;
+                queue[tail++] = next[0][c];
+            }
+        }
+        accepting[0] = output.get(0);
+        while (head < tail) {
+            int state = queue[head++];
+            accepting[state] = output.get(state) || accepting[fail[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int child = next[state][c];
+                if (child < 0) {
+                    next[state][c] = next[fail[state]][c];
+                } else {
+                    fail[child] = next[fail[state]][c];
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+
+    private static int[] newState() {
+        int[] state = new int[ALPHABET];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    /**
+     * Makes the prefilter for a pattern.
+     *
+     * @return null if no literals could be found that every match contains
+     */
+    static LiteralPrefilter of(Pattern pattern) {
+        // the line, dot and anchor flags don't change what a literal matches
+        int allowed = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE | Pattern.DOTALL | Pattern.UNIX_LINES;
+        if (DISABLED || (pattern.flags() & ~allowed) != 0) {
+            return null;
+        }
+        boolean ignoreCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        String regex = pattern.pattern();
+        int start = 0;
+        if (regex.startsWith("(?") && !regex.startsWith("(?:") && regex.indexOf(')') > 0) {
+            int end = regex.indexOf(')');
+            if (!regex.substring(2, end).matches("[imsd]+")) {
+                return null;
+            }
+            start = end + 1;
+        }
+
+        Set<String> literals;
+        try {
+            Parser parser = new Parser(regex, start);
+            Node node = parser.alternation();
+            if (parser.pos != regex.length()) {
+                return null;
+            }
+            literals = node.required;
+        } catch (Unsupported e) {
+            return null;
+        }
+        if (literals == null) {
+            return null;
+        }
+
+        Set<String> folded = new LinkedHashSet<String>();
+        for (String literal : literals) {
+            for (int i = 0; i < literal.length(); i++) {
+                if (literal.charAt(i) >= ALPHABET) {
+                    // non-ASCII characters would need case folding rules
+                    return null;
+                }
+            }
+            folded.add(ignoreCase ? literal.toLowerCase(Locale.ENGLISH) : literal);
+        }
+        return new LiteralPrefilter(folded, ignoreCase);
+    }
+
+    /**
+     * @return the literals one of which every match contains
+     */
+    List<String> getLiterals() {
+        return literals;
+    }
+
+    /**
+     * @return false if the pattern cannot match anywhere in the line
+     */
+    boolean mayMatch(CharSequence line) {
+        int state = 0;
+        for (int i = 0, n = line.length(); i < n; i++) {
+            char c = line.charAt(i);
+            if (c >= ALPHABET) {
+                // the literals are all ASCII
+                state = 0;
+                continue;
+            }
+            if (ignoreCase && c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            state = next[state][c];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What is known about the text a part of a pattern matches.
+     */
+    private static final class Node {
+
+        /**
+         * All the strings the part can match, or null if there are too many.
+         */
+        final Set<String> exact;
+
+        /**
+         * Strings one of which every match of the part contains, or null if
+         * nothing is known.
+         */
+        final Set<String> required;
+
+        Node(Set<String> exact, Set<String> required) {
+            this.exact = exact;
+            this.required = required;
+        }
+
+        static Node exact(Set<String> exact) {
+            return new Node(exact, exact.contains("") ? null : exact);
+        }
+
+        static Node literal(String s) {
+            return exact(Collections.singleton(s));
+        }
+
+        static Node empty() {
+            return literal("");
+        }
+
+        static Node unknown() {
+            return new Node(null, null);
+        }
+    }
+
+    /**
+     * A construct the prefilter doesn't understand.
+     */
+    private static final class Unsupported extends Exception {
+    }
+
+    /**
+     * A recursive descent parser for the subset of the pattern syntax that
+     * is understood.
+     */
+    private static final class Parser {
+
+        private final String regex;
+        int pos;
+
+        Parser(String regex, int pos) {
+            this.regex = regex;
+            this.pos = pos;
+        }
+
+        Node alternation() throws Unsupported {
+            List<Node> alternatives = new ArrayList<Node>();
+            alternatives.add(sequence());
+            while (pos < regex.length() && regex.charAt(pos) == '|') {
+                pos++;
+                alternatives.add(sequence());
+            }
+            if (alternatives.size() == 1) {
+                return alternatives.get(0);
+            }
+
+            Set<String> exact = new LinkedHashSet<String>();
+            Set<String> required = new LinkedHashSet<String>();
+            for (Node alternative : alternatives) {
+                if (exact != null && alternative.exact != null) {
+                    exact.addAll(alternative.exact);
+                } else {
+                    exact = null;
+                }
+                if (required != null && alternative.required != null) {
+                    required.addAll(alternative.required);
+                } else {
+                    required = null;
+                }
+            }
+            if (exact != null && exact.size() > MAX_LITERALS) {
+                exact = null;
+            }
+            if (exact != null) {
+                return Node.exact(exact);
+            }
+            return new Node(null, required);
+        }
+
+        /**
+         * A concatenation. Consecutive parts whose exact strings are known
+         * are joined, and the most selective set of literals of the parts is
+         * what the whole sequence requires.
+         */
+        Node sequence() throws Unsupported {
+            Set<String> run = Collections.singleton("");
+            boolean allExact = true;
+            Set<String> best = null;
+            while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                Node node = quantified();
+                best = better(best, node.required);
+                if (node.exact == null) {
+                    allExact = false;
+                    best = better(best, run);
+                    run = Collections.singleton("");
+                    continue;
+                }
+                Set<String> joined = join(run, node.exact);
+                if (joined == null) {
+                    allExact = false;
+                    best = better(best, run);
+                    run = node.exact;
+                } else {
+                    run = joined;
+                }
+            }
+            if (allExact) {
+                return Node.exact(run);
+            }
+            return new Node(null, better(best, run));
+        }
+
+        private static Set<String> join(Set<String> prefixes, Set<String> suffixes) {
+            if (prefixes.size() * suffixes.size() > MAX_LITERALS) {
+                return null;
+            }
+            Set<String> joined = new LinkedHashSet<String>();
+            for (String prefix : prefixes) {
+                for (String suffix : suffixes) {
+                    joined.add(prefix + suffix);
+                }
+            }
+            return joined;
+        }
+
+        /**
+         * Prefers the set whose shortest literal is longest, then the
+         * smaller set.
+         */
+        private static Set<String> better(Set<String> a, Set<String> b) {
+            if (b == null || b.contains("")) {
+                return a;
+            }
+            if (a == null) {
+                return b;
+            }
+            int shortestA = shortest(a);
+            int shortestB = shortest(b);
+            if (shortestA != shortestB) {
+                return shortestA > shortestB ? a : b;
+            }
+            return a.size() <= b.size() ? a : b;
+        }
+
+        private static int shortest(Set<String> literals) {
+            int shortest = Integer.MAX_VALUE;
+            for (String literal : literals) {
+                shortest = Math.min(shortest, literal.length());
+            }
+            return shortest;
+        }
+
+        Node quantified() throws Unsupported {
+            Node node = atom();
+            if (pos >= regex.length()) {
+                return node;
+            }
+            int min;
+            boolean bounded;
+            char c = regex.charAt(pos);
+            if (c == '?') {
+                min = 0;
+                bounded = true;
+                pos++;
+            } else if (c == '*') {
+                min = 0;
+                bounded = false;
+                pos++;
+            } else if (c == '+') {
+                min = 1;
+                bounded = false;
+                pos++;
+            } else if (c == '{') {
+                int end = regex.indexOf('}', pos);
+                if (end < 0 || !regex.substring(pos + 1, end).matches("\\d+(,\\d*)?")) {
+                    throw new Unsupported();
+                }
+                String[] bounds = regex.substring(pos + 1, end).split(",", -1);
+                min = Integer.parseInt(bounds[0]);
+                bounded = bounds.length == 1 && min == 1;
+                pos = end + 1;
+            } else {
+                return node;
+            }
+            // lazy or possessive
+            if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+                pos++;
+            }
+
+            if (bounded && min == 1) {
+                // {1}
+                return node;
+            }
+            if (bounded && node.exact != null) {
+                // ?
+                Set<String> exact = new LinkedHashSet<String>(node.exact);
+                exact.add("");
+                return Node.exact(exact);
+            }
+            return new Node(null, min > 0 ? node.required : null);
+        }
+
+        Node atom() throws Unsupported {
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case '(':
+                    return group();
+                case '[':
+                    skipClass();
+                    return Node.unknown();
+                case '.':
+                    return Node.unknown();
+                case '^':
+                case '$':
+                    return Node.empty();
+                case '\\':
+                    return escape();
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new Unsupported();
+                default:
+                    return Node.literal(String.valueOf(c));
+            }
+        }
+
+        private Node group() throws Unsupported {
+            boolean lookaround = false;
+            if (regex.startsWith("?:", pos) || regex.startsWith("?>", pos)) {
+                pos += 2;
+            } else if (regex.startsWith("?=", pos) || regex.startsWith("?!", pos)) {
+                pos += 2;
+                lookaround = true;
+            } else if (regex.startsWith("?<=", pos) || regex.startsWith("?<!", pos)) {
+                pos += 3;
+                lookaround = true;
+            } else if (regex.startsWith("?", pos)) {
+                // embedded flags and named groups
+                throw new Unsupported();
+            }
+            Node node = alternation();
+            if (pos >= regex.length() || regex.charAt(pos) != ')') {
+                throw new Unsupported();
+            }
+            pos++;
+            // a lookaround matches no text of its own
+            return lookaround ? Node.empty() : node;
+        }
+
+        private void skipClass() throws Unsupported {
+            int depth = 1;
+            // a ] right after [ or [^ is a literal
+            if (pos < regex.length() && regex.charAt(pos) == '^') {
+                pos++;
+            }
+            if (pos < regex.length() && regex.charAt(pos) == ']') {
+                pos++;
+            }
+            while (pos < regex.length()) {
+                char c = regex.charAt(pos++);
+                if (c == '\\') {
+                    if (regex.startsWith("Q", pos)) {
+                        int end = regex.indexOf("\\E", pos);
+                        pos = end < 0 ? regex.length() : end + 2;
+                    } else {
+                        pos++;
+                    }
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']' && --depth == 0) {
+                    return;
+                }
+            }
+            throw new Unsupported();
+        }
+
+        private Node escape() throws Unsupported {
+            if (pos >= regex.length()) {
+                throw new Unsupported();
+            }
+            char c = regex.charAt(pos++);
+            switch (c) {
+                case 'b':
+                case 'B':
+                case 'A':
+                case 'z':
+                case 'Z':
+                case 'G':
+                    return Node.empty();
+                case 'd':
+                case 'D':
+                case 's':
+                case 'S':
+                case 'w':
+                case 'W':
+                    return Node.unknown();
+                case 'p':
+                case 'P':
+                    if (regex.startsWith("{", pos)) {
+                        int end = regex.indexOf('}', pos);
+                        if (end < 0) {
+                            throw new Unsupported();
+                        }
+                        pos = end + 1;
+                    } else {
+                        pos++;
+                    }
+                    return Node.unknown();
+                case 'Q': {
+                    int end = regex.indexOf("\\E", pos);
+                    String quoted = end < 0 ? regex.substring(pos) : regex.substring(pos, end);
+                    pos = end < 0 ? regex.length() : end + 2;
+                    return Node.literal(quoted);
+                }
+                case 't':
+                    return Node.literal("\t");
+                case 'n':
+                    return Node.literal("\n");
+                case 'r':
+                    return Node.literal("\r");
+                case 'f':
+                    return Node.literal("\f");
+                case 'a':
+                    return Node.literal("\u0007");
+                case 'e':
+                    return Node.literal("\u001B");
+                default:
+                    if (c >= '1' && c <= '9') {
+                        // a back reference
+                        while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+                            pos++;
+                        }
+                        return Node.unknown();
+                    }
+                    if (Character.isLetterOrDigit(c)) {
+                        throw new Unsupported();
+                    }
+                    return Node.literal(String.valueOf(c));
+            }
+        }
+    }
+}
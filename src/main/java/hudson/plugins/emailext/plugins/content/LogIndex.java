@@ -0,0 +1,446 @@
+package hudson.plugins.emailext.plugins.content;
+
+import com.google.common.collect.ListMultimap;
+import hudson.Extension;
+import hudson.console.ConsoleLogFilter;
+import hudson.console.ConsoleNote;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.AbstractBuild;
+import hudson.plugins.emailext.ExtendedEmailPublisher;
+import hudson.plugins.emailext.ExtendedEmailPublisherContext;
+import hudson.plugins.emailext.plugins.ContentBuilder;
+import hudson.plugins.emailext.plugins.EmailTrigger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * The lines of a build log that match the regexes of the
+ * <tt>BUILD_LOG_REGEX</tt> tokens of the project, found while the build runs
+ * so that the tokens don't have to scan the whole log afterwards.
+ *
+ * <p>
+ * For each regex, the index has the line number and byte offset of the
+ * matching lines, and for every {@link #CHECKPOINT_LINES}th line its byte
+ * offset, so that the context of a match can be read from the line before it.
+ * Lines are counted the way {@link hudson.plugins.emailext.plugins.LogScanPlanner}
+ * splits them, and matched with the console notes removed. While the build
+ * runs the index is kept in memory, it is saved next to the log when the log
+ * is closed.
+ */
+public final class LogIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(LogIndex.class.getName());
+
+    /**
+     * Set to true to not index the logs of new builds.
+     */
+    static boolean DISABLED = Boolean.getBoolean(LogIndex.class.getName() + ".disabled");
+
+    /**
+     * The number of lines from one checkpoint to the next.
+     */
+    static final int CHECKPOINT_LINES = Integer.getInteger(LogIndex.class.getName() + ".checkpointLines", 1000);
+
+    /**
+     * The number of matching lines indexed for a regex, the lines after them
+     * aren't indexed.
+     */
+    static final int MAX_MATCHES = Integer.getInteger(LogIndex.class.getName() + ".maxMatches", 10000);
+
+    static final String FILE_NAME = "email-ext-log-index";
+
+    private static final int VERSION = 1;
+
+    // the indexes of the logs that are still being written
+    private static final Map<AbstractBuild<?, ?>, LogIndex> RUNNING =
+            Collections.synchronizedMap(new WeakHashMap<AbstractBuild<?, ?>, LogIndex>());
+
+    private final int checkpointLines;
+    private final List<String> regexes;
+    private final long[][] matchLines;
+    private final long[][] matchOffsets;
+    private final int[] matchCounts;
+    private final boolean[] overflowed;
+    private long[] checkpoints = new long[16];
+    private long lineCount;
+    private long byteCount;
+    // the whole log is indexed
+    private boolean finished;
+
+    LogIndex(List<String> regexes, int checkpointLines) {
+        this.checkpointLines = checkpointLines;
+        this.regexes = new ArrayList<String>(regexes);
+        this.matchLines = new long[regexes.size()][16];
+        this.matchOffsets = new long[regexes.size()][16];
+        this.matchCounts = new int[regexes.size()];
+        this.overflowed = new boolean[regexes.size()];
+    }
+
+    /**
+     * @return the index of the log of a build, or null if the log wasn't
+     * indexed or can't be read at a byte offset
+     */
+    static LogIndex get(AbstractBuild<?, ?> build) {
+        File log = build.getLogFile();
+        if (log == null || log.getName().endsWith(".gz") || !ChunkedLogScan.isSplittable(build.getCharset())) {
+            return null;
+        }
+        LogIndex index = RUNNING.get(build);
+        if (index != null) {
+            return index;
+        }
+        File file = new File(build.getRootDir(), FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return load(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the lines indexed so far that match a regex, or null if the
+     * regex isn't indexed
+     */
+    synchronized Matches getMatches(String regex) {
+        int i = regexes.indexOf(regex);
+        if (i < 0) {
+            return null;
+        }
+        return new Matches(this, Arrays.copyOf(matchLines[i], matchCounts[i]),
+                Arrays.copyOf(matchOffsets[i], matchCounts[i]), !overflowed[i]);
+    }
+
+    /**
+     * Indexes a part of the log, made of whole lines except at the end of
+     * the log.
+     */
+    synchronized void add(byte[] b, int len, Charset charset, Pattern[] patterns, LiteralPrefilter[] prefilters) {
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            if (b[i] != '\n' && b[i] != '\r') {
+                continue;
+            }
+            addLine(b, start, i, charset, patterns, prefilters);
+            if (b[i] == '\r' && i + 1 < len && b[i + 1] == '\n') {
+                i++;
+            }
+            start = i + 1;
+        }
+        if (start < len) {
+            // the last line of the log, without a line terminator
+            addLine(b, start, len, charset, patterns, prefilters);
+        }
+        byteCount += len;
+    }
+
+    private void addLine(byte[] b, int start, int end, Charset charset, Pattern[] patterns, LiteralPrefilter[] prefilters) {
+        if (lineCount % checkpointLines == 0) {
+            int k = (int) (lineCount / checkpointLines);
+            if (k == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, k * 2);
+            }
+            checkpoints[k] = byteCount + start;
+        }
+        String line = null;
+        for (int r = 0; r < patterns.length; r++) {
+            if (overflowed[r]) {
+                continue;
+            }
+            if (line == null) {
+                // Remove console notes (JENKINS-7402)
+                line = ConsoleNote.removeNotes(new String(b, start, end - start, charset));
+            }
+            if ((prefilters[r] == null || prefilters[r].mayMatch(line)) && patterns[r].matcher(line).find()) {
+                int n = matchCounts[r];
+                if (n == MAX_MATCHES) {
+                    overflowed[r] = true;
+                    continue;
+                }
+                if (n == matchLines[r].length) {
+                    matchLines[r] = Arrays.copyOf(matchLines[r], n * 2);
+                    matchOffsets[r] = Arrays.copyOf(matchOffsets[r], n * 2);
+                }
+                matchLines[r][n] = lineCount;
+                matchOffsets[r][n] = byteCount + start;
+                matchCounts[r] = n + 1;
+            }
+        }
+        lineCount++;
+    }
+
+    synchronized void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(checkpointLines);
+            out.writeLong(lineCount);
+            out.writeLong(byteCount);
+            int checkpointCount = (int) ((lineCount + checkpointLines - 1) / checkpointLines);
+            out.writeInt(checkpointCount);
+            for (int k = 0; k < checkpointCount; k++) {
+                out.writeLong(checkpoints[k]);
+            }
+            out.writeInt(regexes.size());
+            for (int r = 0; r < regexes.size(); r++) {
+                out.writeUTF(regexes.get(r));
+                out.writeBoolean(overflowed[r]);
+                out.writeInt(matchCounts[r]);
+                for (int i = 0; i < matchCounts[r]; i++) {
+                    out.writeLong(matchLines[r][i]);
+                    out.writeLong(matchOffsets[r][i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static LogIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            int checkpointLines = in.readInt();
+            long lineCount = in.readLong();
+            long byteCount = in.readLong();
+            long[] checkpoints = new long[in.readInt()];
+            for (int k = 0; k < checkpoints.length; k++) {
+                checkpoints[k] = in.readLong();
+            }
+            List<String> regexes = new ArrayList<String>();
+            int regexCount = in.readInt();
+            boolean[] overflowed = new boolean[regexCount];
+            long[][] matchLines = new long[regexCount][];
+            long[][] matchOffsets = new long[regexCount][];
+            for (int r = 0; r < regexCount; r++) {
+                regexes.add(in.readUTF());
+                overflowed[r] = in.readBoolean();
+                int n = in.readInt();
+                matchLines[r] = new long[n];
+                matchOffsets[r] = new long[n];
+                for (int i = 0; i < n; i++) {
+                    matchLines[r][i] = in.readLong();
+                    matchOffsets[r][i] = in.readLong();
+                }
+            }
+
+            LogIndex index = new LogIndex(regexes, checkpointLines);
+            index.lineCount = lineCount;
+            index.byteCount = byteCount;
+            index.finished = true;
+            index.checkpoints = checkpoints;
+            for (int r = 0; r < regexCount; r++) {
+                index.overflowed[r] = overflowed[r];
+                index.matchLines[r] = matchLines[r];
+                index.matchOffsets[r] = matchOffsets[r];
+                index.matchCounts[r] = matchLines[r].length;
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Finds the regexes of the <tt>BUILD_LOG_REGEX</tt> tokens in the email
+     * bodies of the project of a build. Tokens in templates aren't found.
+     */
+    static List<String> findRegexes(AbstractBuild<?, ?> build) {
+        ExtendedEmailPublisher publisher = build.getProject().getPublishersList().get(ExtendedEmailPublisher.class);
+        if (publisher == null) {
+            return Collections.emptyList();
+        }
+        ExtendedEmailPublisherContext context = new ExtendedEmailPublisherContext(publisher, build, null, null);
+        Set<String> regexes = new LinkedHashSet<String>();
+        for (EmailTrigger trigger : publisher.getConfiguredTriggers()) {
+            String body = ContentBuilder.resolveDefaults(trigger.getEmail().getBody(), context);
+            List<ListMultimap<String, String>> uses = ContentBuilder.findTokens(body, BuildLogRegexContent.MACRO_NAME);
+            if (uses == null) {
+                continue;
+            }
+            for (ListMultimap<String, String> arguments : uses) {
+                try {
+                    String regex = ParameterBinder.bind(new BuildLogRegexContent(), BuildLogRegexContent.MACRO_NAME, arguments).regex;
+                    Pattern.compile(regex);
+                    regexes.add(regex);
+                } catch (MacroEvaluationException e) {
+                    // the token reports it when it is evaluated
+                } catch (RuntimeException e) {
+                    // likewise, like an invalid regex or number
+                }
+            }
+        }
+        return new ArrayList<String>(regexes);
+    }
+
+    /**
+     * The lines that match a regex, out of the lines indexed so far.
+     */
+    static final class Matches {
+
+        /**
+         * The number of lines indexed.
+         */
+        final long lineCount;
+
+        /**
+         * The number of bytes of the log indexed, the offset of the first line
+         * that isn't indexed yet.
+         */
+        final long byteCount;
+
+        /**
+         * True if the log was closed when it was indexed, so it has exactly
+         * {@link #byteCount} bytes.
+         */
+        final boolean finished;
+
+        /**
+         * The line numbers of the matching lines, in order.
+         */
+        final long[] lines;
+
+        /**
+         * The byte offsets of the matching lines.
+         */
+        final long[] offsets;
+
+        /**
+         * False if there were more than {@link LogIndex#MAX_MATCHES} matching lines,
+         * only the first ones are known.
+         */
+        final boolean complete;
+
+        private final int checkpointLines;
+        private final long[] checkpoints;
+
+        private Matches(LogIndex index, long[] lines, long[] offsets, boolean complete) {
+            this.lineCount = index.lineCount;
+            this.byteCount = index.byteCount;
+            this.finished = index.finished;
+            this.checkpointLines = index.checkpointLines;
+            this.checkpoints = index.checkpoints;
+            this.lines = lines;
+            this.offsets = offsets;
+            this.complete = complete;
+        }
+
+        /**
+         * @return the number of the line nearest before or at the given line
+         * whose offset is known
+         */
+        long getCheckpointLine(long line) {
+            return line / checkpointLines * checkpointLines;
+        }
+
+        /**
+         * @param checkpointLine a line returned by {@link #getCheckpointLine(long)}
+         * @return the byte offset of the line
+         */
+        long getCheckpointOffset(long checkpointLine) {
+            return checkpoints[(int) (checkpointLine / checkpointLines)];
+        }
+    }
+
+    /**
+     * Indexes the log of each build of a project that has
+     * <tt>BUILD_LOG_REGEX</tt> tokens in its emails.
+     *
+     * <p>
+     * The filter is applied to the log first, so that what it indexes is what
+     * is written to the file, whatever other filters do.
+     */
+    @Extension(ordinal = 1000)
+    public static final class Filter extends ConsoleLogFilter {
+
+        @Override
+        public OutputStream decorateLogger(AbstractBuild build, OutputStream logger) throws IOException, InterruptedException {
+            if (DISABLED || build == null || !ChunkedLogScan.isSplittable(build.getCharset())) {
+                return logger;
+            }
+            List<String> regexes = findRegexes(build);
+            if (regexes.isEmpty()) {
+                return logger;
+            }
+            LogIndex index = new LogIndex(regexes, CHECKPOINT_LINES);
+            RUNNING.put(build, index);
+            return new IndexingOutputStream(logger, index, build);
+        }
+    }
+
+    /**
+     * Writes the log on and indexes it, a line at a time.
+     */
+    private static final class IndexingOutputStream extends LineTransformationOutputStream {
+
+        private final OutputStream out;
+        private final LogIndex index;
+        private final AbstractBuild<?, ?> build;
+        private final Charset charset;
+        private final Pattern[] patterns;
+        private final LiteralPrefilter[] prefilters;
+
+        IndexingOutputStream(OutputStream out, LogIndex index, AbstractBuild<?, ?> build) {
+            this.out = out;
+            this.index = index;
+            this.build = build;
+            this.charset = build.getCharset();
+            this.patterns = new Pattern[index.regexes.size()];
+            this.prefilters = new LiteralPrefilter[patterns.length];
+            for (int i = 0; i < patterns.length; i++) {
+                patterns[i] = Pattern.compile(index.regexes.get(i));
+                prefilters[i] = LiteralPrefilter.of(patterns[i]);
+            }
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            out.write(b, 0, len);
+            index.add(b, len, charset, patterns, prefilters);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            out.close();
+            File file = new File(build.getRootDir(), FILE_NAME);
+            try {
+                index.save(file);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not save the log index of " + build, e);
+                file.delete();
+            }
+            RUNNING.remove(build);
+        }
+    }
+}
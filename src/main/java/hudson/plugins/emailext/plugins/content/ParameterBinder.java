@@ -0,0 +1,85 @@
+package hudson.plugins.emailext.plugins.content;
+
+import com.google.common.collect.ListMultimap;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * Gets the token instance that {@link DataBoundTokenMacro} makes from the
+ * arguments of a token before it evaluates it, for tokens that are evaluated
+ * some other way, such as by a {@link hudson.plugins.emailext.plugins.LogScanPlanner}.
+ *
+ * <p>
+ * The instance is made by
+ * {@link DataBoundTokenMacro#evaluate(hudson.model.AbstractBuild, TaskListener, String, Map, ListMultimap)}
+ * itself, so the arguments are checked and converted exactly as when the
+ * token is evaluated. A token bound this way has to start its
+ * <tt>evaluate(build, listener, macroName)</tt> with a call to
+ * {@link #isBinding(DataBoundTokenMacro)}, and return right away if that
+ * returns true.
+ */
+final class ParameterBinder {
+
+    // the instance made on this thread, while bind is running
+    private static final ThreadLocal<DataBoundTokenMacro[]> BOUND = new ThreadLocal<DataBoundTokenMacro[]>();
+
+    private ParameterBinder() {
+    }
+
+    /**
+     * @param token an instance of the token class
+     * @param arguments the arguments of the token
+     * @return a new instance of the token class, with the arguments set
+     * @throws MacroEvaluationException if the arguments are not valid, like
+     * when the token is evaluated; anything else the token would throw is
+     * thrown as well
+     */
+    static <T extends DataBoundTokenMacro> T bind(T token, String macroName, ListMultimap<String, String> arguments)
+            throws MacroEvaluationException {
+        Map<String, String> map = new HashMap<String, String>();
+        for (Map.Entry<String, String> e : arguments.entries()) {
+            map.put(e.getKey(), e.getValue());
+        }
+
+        DataBoundTokenMacro[] bound = new DataBoundTokenMacro[1];
+        DataBoundTokenMacro[] outer = BOUND.get();
+        BOUND.set(bound);
+        try {
+            token.evaluate(null, TaskListener.NULL, macroName, map, arguments);
+        } catch (IOException e) {
+            throw new MacroEvaluationException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MacroEvaluationException(e.getMessage(), e);
+        } finally {
+            if (outer != null) {
+                BOUND.set(outer);
+            } else {
+                BOUND.remove();
+            }
+        }
+        if (bound[0] == null || bound[0].getClass() != token.getClass()) {
+            throw new IllegalStateException(token.getClass().getName() + " doesn't call ParameterBinder.isBinding");
+        }
+        @SuppressWarnings("unchecked")
+        T result = (T) bound[0];
+        return result;
+    }
+
+    /**
+     * @return true if the token was only made to be bound, and must not be
+     * evaluated
+     */
+    static boolean isBinding(DataBoundTokenMacro token) {
+        DataBoundTokenMacro[] bound = BOUND.get();
+        if (bound == null || bound[0] != null) {
+            return false;
+        }
+        bound[0] = token;
+        return true;
+    }
+}
@@ -4,28 +4,32 @@ import groovy.lang.Binding;
 import groovy.lang.GroovyRuntimeException;
 import groovy.lang.GroovyShell;
 import groovy.text.SimpleTemplateEngine;
-import hudson.ExtensionList;
+import groovy.text.Template;
 import hudson.Plugin;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
-import hudson.model.Hudson;
 import hudson.plugins.emailext.ExtendedEmailPublisherDescriptor;
 import hudson.plugins.emailext.GroovyTemplateConfig.GroovyTemplateConfigProvider;
+import hudson.plugins.emailext.ManagedTemplateIndex;
+import hudson.plugins.emailext.ScriptBudget;
+import hudson.plugins.emailext.ScriptBudgetExceededException;
+import hudson.plugins.emailext.ScriptRuntime;
 import hudson.plugins.emailext.ScriptSandbox;
 import hudson.plugins.emailext.plugins.EmailToken;
-import java.io.ByteArrayInputStream;
+import hudson.plugins.emailext.plugins.NonDeterministicToken;
+import hudson.plugins.emailext.plugins.StreamingToken;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,14 +39,13 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.codehaus.groovy.control.CompilerConfiguration;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
-import org.jenkinsci.lib.configprovider.ConfigProvider;
-import org.jenkinsci.lib.configprovider.model.Config;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 import org.kohsuke.groovy.sandbox.SandboxTransformer;
 
 @EmailToken
-public class ScriptContent extends DataBoundTokenMacro {
+@NonDeterministicToken
+public class ScriptContent extends DataBoundTokenMacro implements StreamingToken {
 
     private static final Logger LOGGER = Logger.getLogger(ScriptContent.class.getName());
     
@@ -58,8 +61,6 @@ public class ScriptContent extends DataBoundTokenMacro {
 
     public static final String MACRO_NAME = "SCRIPT";
     
-    private static Object configProvider;
-    
     @Override
     public boolean acceptsMacroName(String macroName) {
         return macroName.equals(MACRO_NAME);
@@ -69,16 +70,15 @@ public class ScriptContent extends DataBoundTokenMacro {
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
 
-        InputStream inputStream = null;
+        Reader reader = null;
         String result = "";
         
         try {
             if (!StringUtils.isEmpty(script)) {
-                inputStream = getFileInputStream(script);
-                result = executeScript(context, listener, inputStream);
+                reader = getFileReader(script);
+                result = executeScript(context, listener, reader);
             } else {
-                inputStream = getFileInputStream(template);
-                result = renderTemplate(context, listener, inputStream);
+                result = renderTemplate(context, listener, template);
             }
         } catch (FileNotFoundException e) {
             String missingScriptError = generateMissingFile(script, template);
@@ -87,11 +87,45 @@ public class ScriptContent extends DataBoundTokenMacro {
         } catch (GroovyRuntimeException e) {
             result = "Error in script or template: " + e.toString();
         } finally {
-            IOUtils.closeQuietly(inputStream);
+            IOUtils.closeQuietly(reader);
         }
         return result;
     }
 
+    public void writeTo(AbstractBuild<?, ?> build, TaskListener listener, String macroName, Map<String, String> arguments,
+            Writer out) throws MacroEvaluationException, IOException, InterruptedException {
+        // like DataBoundTokenMacro, don't touch the shared instance
+        ScriptContent content = new ScriptContent();
+        for (Map.Entry<String, String> e : arguments.entrySet()) {
+            if (e.getKey().equals("script")) {
+                content.script = e.getValue();
+            } else if (e.getKey().equals("template")) {
+                content.template = e.getValue();
+            } else {
+                throw new MacroEvaluationException(String.format("Undefined parameter %s in token %s", e.getKey(), macroName));
+            }
+        }
+
+        if (!StringUtils.isEmpty(content.script)) {
+            // a script returns a single value, there is nothing to stream
+            out.write(content.evaluate(build, listener, macroName));
+            return;
+        }
+
+        try {
+            String error = renderTemplate(build, listener, content.template, out);
+            if (error != null) {
+                out.write(error);
+            }
+        } catch (FileNotFoundException e) {
+            String missingTemplateError = generateMissingFile(null, content.template);
+            LOGGER.log(Level.SEVERE, missingTemplateError);
+            out.write(missingTemplateError);
+        } catch (GroovyRuntimeException e) {
+            out.write("Error in script or template: " + e.toString());
+        }
+    }
+
     /**
      * Generates a missing file error message
      *
@@ -114,76 +148,83 @@ public class ScriptContent extends DataBoundTokenMacro {
      * @return
      * @throws java.io.FileNotFoundException
      */
-    private InputStream getFileInputStream(String fileName)
+    private Reader getFileReader(String fileName)
             throws FileNotFoundException {
      
-        InputStream inputStream;
         if (fileName.startsWith("managed:")) {
-            String managedFileName = fileName.substring(8);
-            try {
-                inputStream = getManagedFile(managedFileName);
-            } catch(NoClassDefFoundError e) {
-                inputStream = null;
-            }
-            
-            if (inputStream == null) {
-                throw new FileNotFoundException(String.format("Managed file '%s' not found", managedFileName));
-            }
-            return inputStream;
+            return new InputStreamReader(getManagedTemplate(fileName).open(), ManagedTemplateIndex.CHARSET);
         }
         
-        inputStream = getClass().getClassLoader().getResourceAsStream("hudson/plugins/emailext/templates/" + fileName);
-        if (inputStream == null) {
-            final File scriptsFolder = new File(Hudson.getInstance().getRootDir(), EMAIL_TEMPLATES_DIRECTORY);
-            final File scriptFile = new File(scriptsFolder, fileName);
-            inputStream = new FileInputStream(scriptFile);
-        }
-        return inputStream;
+        return new InputStreamReader(TemplateStore.get().open(fileName));
     }   
     
-    private InputStream getManagedFile(String templateName) {
-        Plugin plugin = Jenkins.getInstance().getPlugin("config-file-provider");
-        InputStream stream = null;
-        if(plugin != null) {
-            Config config = null;
-            ConfigProvider provider = getTemplateConfigProvider();
-            for(Config c : provider.getAllConfigs()) {
-                if(c.name.equalsIgnoreCase(templateName) && provider.isResponsibleFor(c.id)) {
-                    config = c;
-                    break;
-                }                    
-            }
-            
-            if(config != null) {
-                stream = new ByteArrayInputStream(config.content.getBytes());
+    private ManagedTemplateIndex.Entry getManagedTemplate(String fileName)
+            throws FileNotFoundException {
+        String managedFileName = fileName.substring(8);
+        ManagedTemplateIndex.Entry entry = null;
+        try {
+            Plugin plugin = Jenkins.getInstance().getPlugin("config-file-provider");
+            if(plugin != null) {
+                ManagedTemplateIndex index = ManagedTemplateIndex.of(GroovyTemplateConfigProvider.class);
+                entry = index != null ? index.find(managedFileName) : null;
             }
+        } catch(NoClassDefFoundError e) {
+            entry = null;
+        }
+
+        if (entry == null) {
+            throw new FileNotFoundException(String.format("Managed file '%s' not found", managedFileName));
         }
-        return stream;
+        return entry;
     }
-    
-    
-    private static ConfigProvider getTemplateConfigProvider() {
-        if(configProvider == null) {
-            ExtensionList<ConfigProvider> providers = ConfigProvider.all();
-            configProvider = providers.get(GroovyTemplateConfigProvider.class);
+
+    /**
+     * Identifies the current source of a template, looking for it in the same
+     * places as {@link #getFileReader(String)}. The result changes when
+     * the template is edited, so it can be used to cache compiled templates.
+     *
+     * @param fileName the name of the template
+     * @return the version of the template
+     * @throws FileNotFoundException
+     */
+    private String getTemplateVersion(String fileName)
+            throws FileNotFoundException {
+
+        if (fileName.startsWith("managed:")) {
+            return getManagedTemplate(fileName).getVersion();
         }
-        return (ConfigProvider)configProvider;
+
+        return TemplateStore.get().getVersion(fileName);
     }
     
+    
     /**
      * Renders the template using a SimpleTemplateEngine
      *
      * @param build the build to act on
-     * @param templateStream the template file stream
+     * @param templateName the name of the template
      * @return the rendered template content
      * @throws IOException
      */
-    private String renderTemplate(AbstractBuild<?, ?> build, TaskListener listener, InputStream templateStream)
+    private String renderTemplate(AbstractBuild<?, ?> build, TaskListener listener, String templateName)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        String error = renderTemplate(build, listener, templateName, out);
+        return error != null ? error : out.toString();
+    }
+
+    /**
+     * Renders the template into a writer.
+     *
+     * @return null, or a message to show instead of the output if rendering
+     * failed
+     */
+    private String renderTemplate(AbstractBuild<?, ?> build, TaskListener listener, String templateName, final Writer out)
             throws IOException {
         
-        String result;
+        String result = null;
         
-        Map<String, Object> binding = new HashMap<String, Object>();
+        final Map<String, Object> binding = new HashMap<String, Object>();
         ExtendedEmailPublisherDescriptor descriptor = Jenkins.getInstance().getDescriptorByType(ExtendedEmailPublisherDescriptor.class);
         binding.put("build", build);
         binding.put("listener", listener);
@@ -191,29 +232,86 @@ public class ScriptContent extends DataBoundTokenMacro {
         binding.put("rooturl", descriptor.getHudsonUrl());
         binding.put("project", build.getParent());
         
-        // we add the binding to the SimpleTemplateEngine instead of the shell
-        GroovyShell shell = createEngine(descriptor, Collections.EMPTY_MAP);
-        SimpleTemplateEngine engine = new SimpleTemplateEngine(shell);
+        ScriptSandbox sandbox = null;
         try {
-            result = engine.createTemplate(new InputStreamReader(templateStream)).make(binding).toString();        
+            final Template t = getTemplate(descriptor, templateName);
+            sandbox = enterSandbox(descriptor);
+            ScriptBudget.run(new Callable<Void>() {
+                public Void call() throws IOException {
+                    t.make(binding).writeTo(out);
+                    return null;
+                }
+            });
+        } catch(FileNotFoundException e) {
+            throw e;
+        } catch(ScriptBudgetExceededException e) {
+            result = "Template rendering aborted: " + e.getMessage();
         } catch(Exception e) {
             StringWriter sw = new StringWriter();
             PrintWriter pw = new PrintWriter(sw);
             e.printStackTrace(pw);
             result = "Exception raised during template rendering: " + e.getMessage() + "\n\n" + sw.toString();
+        } finally {
+            if (sandbox != null) {
+                sandbox.unregister();
+            }
         }
         return result;
     }
+
+    /**
+     * Compiles a template into the template cache, unless it is cached
+     * already.
+     *
+     * @param templateName the name of the template
+     * @throws Exception if the template cannot be found or compiled
+     */
+    void precompile(String templateName) throws Exception {
+        getTemplate(Jenkins.getInstance().getDescriptorByType(ExtendedEmailPublisherDescriptor.class), templateName);
+    }
+
+    /**
+     * Gets the compiled template, reusing the one compiled for an earlier
+     * email if the template hasn't changed since.
+     *
+     * @param descriptor the descriptor holding the security setting
+     * @param templateName the name of the template
+     * @return the compiled template
+     * @throws Exception if the template cannot be found or compiled
+     */
+    private Template getTemplate(final ExtendedEmailPublisherDescriptor descriptor, final String templateName)
+            throws Exception {
+        Callable<Template> compiler = new Callable<Template>() {
+            public Template call() throws Exception {
+                Reader templateReader = getFileReader(templateName);
+                try {
+                    // we add the binding to the template instead of the shell
+                    GroovyShell shell = createEngine(descriptor, Collections.<String, Object>emptyMap());
+                    SimpleTemplateEngine engine = new SimpleTemplateEngine(shell);
+                    return engine.createTemplate(templateReader);
+                } finally {
+                    IOUtils.closeQuietly(templateReader);
+                }
+            }
+        };
+        if (TemplateCache.DISABLED) {
+            return compiler.call();
+        }
+
+        // templates compiled with and without the sandbox differ
+        String version = getTemplateVersion(templateName) + (descriptor.isSecurityEnabled() ? ":sandbox" : "");
+        return TemplateCache.get().get(templateName, version, compiler);
+    }
     
         /**
      * Executes a script and returns the last value as a String
      *
      * @param build the build to act on
-     * @param scriptStream the script input stream
+     * @param reader the script reader
      * @return a String containing the toString of the last item in the script
      * @throws IOException
      */
-    private String executeScript(AbstractBuild<?, ?> build, TaskListener listener, InputStream scriptStream)
+    private String executeScript(AbstractBuild<?, ?> build, TaskListener listener, final Reader reader)
             throws IOException {
         String result = "";
         Map binding = new HashMap<String, Object>();
@@ -225,8 +323,20 @@ public class ScriptContent extends DataBoundTokenMacro {
         binding.put("rooturl", descriptor.getHudsonUrl());
         binding.put("logger", listener.getLogger());
 
-        GroovyShell shell = createEngine(descriptor, binding);
-        Object res = shell.evaluate(new InputStreamReader(scriptStream));
+        final GroovyShell shell = createEngine(descriptor, binding);
+        ScriptSandbox sandbox = enterSandbox(descriptor);
+        Object res;
+        try {
+            res = ScriptBudget.run(new Callable<Object>() {
+                public Object call() {
+                    return shell.evaluate(reader);
+                }
+            });
+        } finally {
+            if (sandbox != null) {
+                sandbox.unregister();
+            }
+        }
         if (res != null) {
             result = res.toString();
         }
@@ -244,8 +354,6 @@ public class ScriptContent extends DataBoundTokenMacro {
     private GroovyShell createEngine(ExtendedEmailPublisherDescriptor descriptor, Map<String, Object> variables)
             throws FileNotFoundException, IOException {
 
-        ClassLoader cl = Jenkins.getInstance().getPluginManager().uberClassLoader;
-        ScriptSandbox sandbox = null;
         CompilerConfiguration cc = new CompilerConfiguration();
         cc.setScriptBaseClass(EmailExtScript.class.getCanonicalName()); 
         cc.addCompilationCustomizers(new ImportCustomizer().addStarImports(
@@ -256,7 +364,6 @@ public class ScriptContent extends DataBoundTokenMacro {
 
         if (descriptor.isSecurityEnabled()) {
             cc.addCompilationCustomizers(new SandboxTransformer());
-            sandbox = new ScriptSandbox();
         }
 
         Binding binding = new Binding();
@@ -264,11 +371,22 @@ public class ScriptContent extends DataBoundTokenMacro {
             binding.setVariable(e.getKey(), e.getValue());
         }
 
-        GroovyShell shell = new GroovyShell(cl, binding, cc);
-        if (sandbox != null) {
-            sandbox.register();
+        return ScriptRuntime.get().createShell(binding, cc);
+    }
+
+    /**
+     * Registers the sandbox for the current thread if script security is
+     * enabled, before running code compiled by {@link #createEngine}.
+     *
+     * @return the sandbox to unregister once the code has run, or null
+     */
+    private ScriptSandbox enterSandbox(ExtendedEmailPublisherDescriptor descriptor) {
+        if (!descriptor.isSecurityEnabled()) {
+            return null;
         }
-        return shell;
+        ScriptSandbox sandbox = new ScriptSandbox();
+        sandbox.register();
+        return sandbox;
     }
 
     @Override
@@ -0,0 +1,95 @@
+package hudson.plugins.emailext.plugins.content;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import hudson.plugins.emailext.ScriptRuntime;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Compiled Groovy templates and Jelly scripts, so that a template is only
+ * compiled again when it has changed.
+ *
+ * <p>
+ * A template is cached under its name and a version that changes whenever
+ * its source does (see {@link ScriptContent} and {@link JellyScriptContent}).
+ * Jelly scripts are cached under their name prefixed with <tt>jelly:</tt>,
+ * so that they can't be mixed up with a Groovy template. When a newer
+ * version of a template is compiled the older one is dropped straight away,
+ * the others are dropped once more than {@link #SIZE} templates are cached. Everything is
+ * dropped with the {@link ScriptRuntime} generation the templates were
+ * compiled in.
+ */
+final class TemplateCache {
+
+    /**
+     * The maximum number of compiled templates kept.
+     */
+    static final int SIZE = Integer.getInteger(TemplateCache.class.getName() + ".size", 50);
+
+    /**
+     * Set to true to compile templates every time they are used.
+     */
+    static boolean DISABLED = Boolean.getBoolean(TemplateCache.class.getName() + ".disabled");
+
+    private static final TemplateCache INSTANCE = new TemplateCache();
+
+    private final Cache<String, Object> templates = CacheBuilder.newBuilder().maximumSize(SIZE).build();
+
+    /**
+     * The key of the latest version of each template.
+     */
+    private final ConcurrentMap<String, String> latest = new ConcurrentHashMap<String, String>();
+
+    private TemplateCache() {
+        ScriptRuntime.get().register(templates);
+    }
+
+    static TemplateCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets a compiled template, compiling it if this version of it isn't
+     * cached yet.
+     *
+     * @param name the name the template was referred to by
+     * @param version identifies the source of the template and the way it is
+     * compiled
+     * @param compiler compiles the template
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String name, String version, Callable<T> compiler) throws Exception {
+        // make sure a change of the plugin class loader starts a new generation
+        ScriptRuntime.get().getGeneration();
+
+        String key = name + '\n' + version;
+        String previous = latest.put(name, key);
+        if (previous != null && !previous.equals(key)) {
+            templates.invalidate(previous);
+        }
+
+        try {
+            return (T) templates.get(key, (Callable) compiler);
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        } catch (UncheckedExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        } catch (ExecutionError e) {
+            throw (Error) e.getCause();
+        }
+    }
+
+    void invalidateAll() {
+        templates.invalidateAll();
+        latest.clear();
+    }
+
+    long size() {
+        return templates.size();
+    }
+}
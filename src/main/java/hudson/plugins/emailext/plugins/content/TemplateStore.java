@@ -0,0 +1,250 @@
+package hudson.plugins.emailext.plugins.content;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.model.Hudson;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Keeps the contents of templates and scripts in memory, so that rendering an
+ * email doesn't read them again from the classpath or from
+ * <tt>$JENKINS_HOME/email-templates</tt>.
+ *
+ * <p>
+ * Templates are looked for on the classpath first and then in the templates
+ * directory, like before. Templates from the classpath never change. For a
+ * file, its modification time and length are checked at most once every
+ * {@link #POLL_INTERVAL} milliseconds and it is read again when they
+ * changed. A template that wasn't found is remembered as missing for
+ * {@link #MISSING_TTL} milliseconds.
+ */
+final class TemplateStore {
+
+    private static final Logger LOGGER = Logger.getLogger(TemplateStore.class.getName());
+
+    static final String CLASSPATH_PREFIX = "hudson/plugins/emailext/templates/";
+
+    static final String EMAIL_TEMPLATES_DIRECTORY = "email-templates";
+
+    /**
+     * How often a file is checked for changes, in milliseconds.
+     */
+    static final long POLL_INTERVAL = Long.getLong(TemplateStore.class.getName() + ".pollInterval", 5000L);
+
+    /**
+     * How long a template that wasn't found is remembered as missing, in
+     * milliseconds.
+     */
+    static final long MISSING_TTL = Long.getLong(TemplateStore.class.getName() + ".missingTtl", 10000L);
+
+    /**
+     * The maximum number of templates kept.
+     */
+    static final int SIZE = Integer.getInteger(TemplateStore.class.getName() + ".size", 200);
+
+    private static final TemplateStore INSTANCE = new TemplateStore();
+
+    private final Cache<String, Entry> entries = CacheBuilder.newBuilder().maximumSize(SIZE).build();
+
+    private TemplateStore() {
+    }
+
+    static TemplateStore get() {
+        return INSTANCE;
+    }
+
+    /**
+     * What was found for a template name.
+     */
+    static final class Entry {
+
+        private final byte[] content;
+        private final boolean classpath;
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private volatile long checked;
+
+        private Entry(byte[] content, boolean classpath, File file, long lastModified, long length, long checked) {
+            this.content = content;
+            this.classpath = classpath;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checked = checked;
+        }
+
+        boolean isMissing() {
+            return content == null;
+        }
+
+        /**
+         * @return a string that changes whenever the content does
+         */
+        String getVersion() {
+            return classpath ? "classpath" : "file:" + lastModified + ":" + length;
+        }
+    }
+
+    /**
+     * Opens a template or script.
+     *
+     * @param name the file name, relative to the templates directory
+     * @throws FileNotFoundException if there is no such template
+     */
+    InputStream open(String name) throws FileNotFoundException {
+        return new ByteArrayInputStream(find(name, System.currentTimeMillis()).content);
+    }
+
+    /**
+     * Identifies the current content of a template.
+     *
+     * @param name the file name, relative to the templates directory
+     * @throws FileNotFoundException if there is no such template
+     */
+    String getVersion(String name) throws FileNotFoundException {
+        return find(name, System.currentTimeMillis()).getVersion();
+    }
+
+    void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    /**
+     * Lists the names of the templates and scripts bundled with the plugin
+     * and of those in the templates directory. Subdirectories are not
+     * listed.
+     */
+    Set<String> list() {
+        Set<String> names = new TreeSet<String>();
+        URL url = TemplateStore.class.getClassLoader().getResource(CLASSPATH_PREFIX);
+        if (url != null) {
+            try {
+                listClasspath(url, names);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not list the templates in " + url, e);
+            }
+        }
+
+        File[] files = new File(Hudson.getInstance().getRootDir(), EMAIL_TEMPLATES_DIRECTORY).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    names.add(file.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void listClasspath(URL url, Set<String> names) throws IOException {
+        if (url.getProtocol().equals("file")) {
+            File[] files = new File(URI.create(url.toString())).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        names.add(file.getName());
+                    }
+                }
+            }
+            return;
+        }
+
+        URLConnection connection = url.openConnection();
+        if (!(connection instanceof JarURLConnection)) {
+            return;
+        }
+        // don't share the jar file with the class loader, it is closed below
+        connection.setUseCaches(false);
+        JarFile jar = ((JarURLConnection) connection).getJarFile();
+        try {
+            Enumeration<JarEntry> e = jar.entries();
+            while (e.hasMoreElements()) {
+                String name = e.nextElement().getName();
+                if (name.startsWith(CLASSPATH_PREFIX) && name.indexOf('/', CLASSPATH_PREFIX.length()) < 0
+                        && name.length() > CLASSPATH_PREFIX.length()) {
+                    names.add(name.substring(CLASSPATH_PREFIX.length()));
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    Entry find(String name, long now) throws FileNotFoundException {
+        File dir = new File(Hudson.getInstance().getRootDir(), EMAIL_TEMPLATES_DIRECTORY);
+        // the key includes the directory, in case Jenkins was restarted with another home
+        String key = dir.getPath() + File.separator + name;
+
+        Entry entry = entries.getIfPresent(key);
+        if (entry != null && !isStale(entry, now)) {
+            entry.checked = now;
+        } else {
+            entry = load(name, dir, now);
+            entries.put(key, entry);
+        }
+
+        if (entry.isMissing()) {
+            throw new FileNotFoundException(entry.file.getPath());
+        }
+        return entry;
+    }
+
+    private static boolean isStale(Entry entry, long now) {
+        if (entry.classpath) {
+            return false;
+        }
+        if (entry.isMissing()) {
+            return now - entry.checked >= MISSING_TTL;
+        }
+        if (now - entry.checked < POLL_INTERVAL) {
+            return false;
+        }
+        return entry.file.lastModified() != entry.lastModified || entry.file.length() != entry.length;
+    }
+
+    private static Entry load(String name, File dir, long now) throws FileNotFoundException {
+        URL url = TemplateStore.class.getClassLoader().getResource(CLASSPATH_PREFIX + name);
+        if (url != null) {
+            InputStream in = null;
+            try {
+                in = url.openStream();
+                return new Entry(IOUtils.toByteArray(in), true, null, 0, 0, now);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read template " + url, e);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        File file = new File(dir, name);
+        // look before reading, so a change while reading is seen next time
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (file.isFile()) {
+            try {
+                return new Entry(FileUtils.readFileToByteArray(file), false, file, lastModified, length, now);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read template " + file, e);
+            }
+        }
+        return new Entry(null, false, file, 0, 0, now);
+    }
+}
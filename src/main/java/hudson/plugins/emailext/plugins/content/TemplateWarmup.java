@@ -0,0 +1,138 @@
+package hudson.plugins.emailext.plugins.content;
+
+import hudson.plugins.emailext.GroovyTemplateConfig.GroovyTemplateConfigProvider;
+import hudson.plugins.emailext.JellyTemplateConfig.JellyTemplateConfigProvider;
+import hudson.plugins.emailext.ManagedTemplateIndex;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Compiles the templates into the {@link TemplateCache} in the background
+ * when Jenkins starts, so that the emails sent right after a restart don't
+ * all have to wait for their template to be compiled.
+ *
+ * <p>
+ * The Groovy templates (<tt>*.template</tt>) and Jelly scripts
+ * (<tt>*.jelly</tt>) bundled with the plugin and in
+ * <tt>$JENKINS_HOME/email-templates</tt> are compiled, and so are the
+ * templates managed by the config-file-provider plugin. At most
+ * {@link TemplateCache#SIZE} templates are compiled, so that the warm-up
+ * doesn't push out what it compiled itself. Templates that fail to compile
+ * are logged and skipped, they fail again when they are used.
+ */
+public final class TemplateWarmup {
+
+    private static final Logger LOGGER = Logger.getLogger(TemplateWarmup.class.getName());
+
+    /**
+     * Set to true to compile the templates when Jenkins starts.
+     */
+    public static boolean ENABLED = Boolean.getBoolean(TemplateWarmup.class.getName() + ".enabled");
+
+    private static final String MANAGED_PREFIX = "managed:";
+
+    private TemplateWarmup() {
+    }
+
+    /**
+     * Starts compiling the templates on a background thread, if the warm-up
+     * is enabled.
+     */
+    public static void start() {
+        if (!ENABLED || TemplateCache.DISABLED) {
+            return;
+        }
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    precompileAll();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Email template warm-up failed", e);
+                }
+            }
+        }, "email-ext template warm-up");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.setContextClassLoader(TemplateWarmup.class.getClassLoader());
+        t.start();
+    }
+
+    /**
+     * Compiles the templates on the current thread.
+     *
+     * @return the number of templates compiled
+     */
+    static int precompileAll() {
+        long start = System.currentTimeMillis();
+        List<String> groovyTemplates = new ArrayList<String>();
+        List<String> jellyScripts = new ArrayList<String>();
+        for (String name : TemplateStore.get().list()) {
+            if (name.endsWith(".template")) {
+                groovyTemplates.add(name);
+            } else if (name.endsWith(".jelly")) {
+                // the way a Jelly script is usually referred to, which its cache key is made of
+                jellyScripts.add(name.substring(0, name.length() - ".jelly".length()));
+            }
+        }
+        addManagedTemplates(groovyTemplates, jellyScripts);
+
+        int total = Math.min(groovyTemplates.size() + jellyScripts.size(), TemplateCache.SIZE);
+        LOGGER.log(Level.INFO, "Precompiling {0} email templates", total);
+
+        ScriptContent scriptContent = new ScriptContent();
+        JellyScriptContent jellyContent = new JellyScriptContent();
+        int compiled = 0;
+        int attempted = 0;
+        for (String name : groovyTemplates) {
+            if (attempted++ >= total) {
+                break;
+            }
+            try {
+                scriptContent.precompile(name);
+                compiled++;
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not precompile the Groovy template " + name, e);
+            }
+        }
+        for (String name : jellyScripts) {
+            if (attempted++ >= total) {
+                break;
+            }
+            try {
+                jellyContent.precompile(name);
+                compiled++;
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not precompile the Jelly script " + name, e);
+            }
+        }
+
+        LOGGER.log(Level.INFO, "Precompiled {0} of {1} email templates in {2} ms",
+                new Object[] {compiled, total, System.currentTimeMillis() - start});
+        return compiled;
+    }
+
+    private static void addManagedTemplates(List<String> groovyTemplates, List<String> jellyScripts) {
+        if (Jenkins.getInstance().getPlugin("config-file-provider") == null) {
+            return;
+        }
+        try {
+            ManagedTemplateIndex index = ManagedTemplateIndex.of(GroovyTemplateConfigProvider.class);
+            if (index != null) {
+                for (String name : index.getNames()) {
+                    groovyTemplates.add(MANAGED_PREFIX + name);
+                }
+            }
+            index = ManagedTemplateIndex.of(JellyTemplateConfigProvider.class);
+            if (index != null) {
+                for (String name : index.getNames()) {
+                    jellyScripts.add(MANAGED_PREFIX + name);
+                }
+            }
+        } catch (NoClassDefFoundError e) {
+            // the config-file-provider plugin is disabled
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package hudson.plugins.emailext.plugins.trigger;
 
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import groovy.lang.Script;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
+import hudson.plugins.emailext.CompiledScriptCache;
 import hudson.plugins.emailext.ExtendedEmailPublisher;
+import hudson.plugins.emailext.ScriptBudget;
+import hudson.plugins.emailext.ScriptBudgetExceededException;
 import hudson.plugins.emailext.ScriptSandbox;
 import hudson.plugins.emailext.plugins.EmailTrigger;
 import hudson.plugins.emailext.plugins.EmailTriggerDescriptor;
@@ -12,12 +15,8 @@ import hudson.plugins.emailext.plugins.recipients.ListRecipientProvider;
 import hudson.plugins.emailext.plugins.RecipientProvider;
 import java.util.ArrayList;
 import java.util.List;
-import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
-import org.codehaus.groovy.control.CompilerConfiguration;
-import org.codehaus.groovy.control.customizers.ImportCustomizer;
-import org.kohsuke.groovy.sandbox.SandboxTransformer;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -55,51 +54,39 @@ public abstract class AbstractScriptTrigger extends EmailTrigger {
     @Override
     public boolean trigger(AbstractBuild<?, ?> build, TaskListener listener) {
         boolean result = false;
-        GroovyShell engine = createEngine(build, listener);
-        if (engine != null && !StringUtils.isEmpty(triggerScript)) {
+        if (!StringUtils.isEmpty(triggerScript)) {
+            ExtendedEmailPublisher publisher = build.getProject().getPublishersList().get(ExtendedEmailPublisher.class);
+            boolean sandboxed = publisher.getDescriptor().isSecurityEnabled();
+
+            Binding binding = new Binding();
+            binding.setVariable("build", build);
+            binding.setVariable("project", build.getParent());
+            binding.setVariable("rooturl", publisher.getDescriptor().getHudsonUrl());
+            binding.setVariable("out", listener.getLogger());
+
+            // the script is only compiled the first time, each run gets a new instance
+            Script script = CompiledScriptCache.get().createScript(triggerScript, sandboxed, binding);
+
+            ScriptSandbox sandbox = null;
+            if (sandboxed) {
+                sandbox = new ScriptSandbox();
+                sandbox.register();
+            }
             try {
-                Object res = engine.evaluate(triggerScript);
+                Object res = ScriptBudget.run(script);
                 if (res != null) {
                     result = (Boolean)res;
                 } 
+            } catch (ScriptBudgetExceededException e) {
+                listener.getLogger().println("Trigger script aborted: " + e.getMessage());
             } finally {
-                
+                if (sandbox != null) {
+                    sandbox.unregister();
+                }
             }
         }
         return result;
     }
-    
-    private GroovyShell createEngine(AbstractBuild<?, ?> build, TaskListener listener) {
-
-        ClassLoader cl = Jenkins.getInstance().getPluginManager().uberClassLoader;
-        ScriptSandbox sandbox = null;
-        CompilerConfiguration cc = new CompilerConfiguration();
-        cc.addCompilationCustomizers(new ImportCustomizer().addStarImports(
-                "jenkins",
-                "jenkins.model",
-                "hudson",
-                "hudson.model"));
-
-        ExtendedEmailPublisher publisher = build.getProject().getPublishersList().get(ExtendedEmailPublisher.class);
-        if (publisher.getDescriptor().isSecurityEnabled()) {
-            cc.addCompilationCustomizers(new SandboxTransformer());
-            sandbox = new ScriptSandbox();
-        }
-
-        Binding binding = new Binding();
-        binding.setVariable("build", build);
-        binding.setVariable("project", build.getParent());
-        binding.setVariable("rooturl", publisher.getDescriptor().getHudsonUrl());
-        binding.setVariable("out", listener.getLogger());
-        
-        GroovyShell shell = new GroovyShell(cl, binding, cc);
-
-        if (sandbox != null) {
-            sandbox.register();
-        }
-
-        return shell;
-    }
 
     public abstract static class DescriptorImpl extends EmailTriggerDescriptor {
         
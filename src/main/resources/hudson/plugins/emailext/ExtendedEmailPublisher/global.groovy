@@ -77,6 +77,17 @@ f.section(title: _("Extended E-mail Notification")) {
   f.entry(help: "/plugin/email-ext/help/globalConfig/defaultPresendScript.html", title: _("Default Pre-send Script")) {
     f.textarea(class: "setting-input", value: descriptor.defaultPresendScript, name: "ext_mailer_default_presend_script")
   }
+  f.optionalBlock(help: "/plugin/email-ext/help/globalConfig/strictPresendScript.html", checked: descriptor.isStrictPresendScript(), name: "ext_mailer_strict_presend_script", title: _("Call Tokens from Pre-send Scripts Instead of Expanding Them"))
+  f.optionalBlock(help: "/plugin/email-ext/help/globalConfig/streamingBody.html", checked: descriptor.isStreamingBody(), name: "ext_mailer_streaming_body", title: _("Stream Large Email Bodies"))
+  f.optionalBlock(help: "/plugin/email-ext/help/globalConfig/asyncDelivery.html", checked: descriptor.isAsyncDelivery(), name: "ext_mailer_async_delivery", title: _("Deliver Emails Asynchronously")) {
+    f.entry(title: _("Delivery Threads")) {
+      input(checkUrl: "'${rootURL}/publisher/ExtendedEmailPublisher/positiveIntegerCheck?value='+encodeURIComponent(this.value)", type: "text", class: "setting-input", value: descriptor.asyncWorkers, name: "ext_mailer_async_workers")
+    }
+    f.entry(title: _("Queue Capacity")) {
+      input(checkUrl: "'${rootURL}/publisher/ExtendedEmailPublisher/positiveIntegerCheck?value='+encodeURIComponent(this.value)", type: "text", class: "setting-input", value: descriptor.asyncQueueSize, name: "ext_mailer_async_queue_size")
+    }
+  }
+  f.optionalBlock(help: "/plugin/email-ext/help/globalConfig/parallelTriggers.html", checked: descriptor.isParallelTriggers(), name: "ext_mailer_parallel_triggers", title: _("Send Emails for Triggers in Parallel"))
   f.optionalBlock(help: "/plugin/email-ext/help/globalConfig/debugMode.html", checked: descriptor.isDebugMode(), name: "ext_mailer_debug_mode", title: _("Enable Debug Mode")) 
   f.optionalBlock(help: "/plugin/email-ext/help/globalConfig/security.html", checked: descriptor.isSecurityEnabled(), name: "ext_mailer_security_enabled", title: _("Enable Security")) 
   
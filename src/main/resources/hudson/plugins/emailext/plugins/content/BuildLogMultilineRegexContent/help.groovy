@@ -22,5 +22,10 @@ dd() {
     dt("matchedSegmentHtmlStyle")
     dd(_("If non-null, output HTML. Matched lines will become <b style=\"your-style-value\">"
         +"html escaped matched lines</b>. Defaults to null."))
+  
+    dt("maxSpanLines")
+    dd(_("If greater than 0, the maximum number of lines a segment can span. The build log is then matched "
+        +"a part at a time instead of being read into memory as a whole, and longer segments are cut short. "
+        +"If 0, there is no limit. Defaults to 0."))
   }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package hudson.plugins.emailext;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class CompiledScriptCacheTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testScriptIsCompiledOnce() {
+        CompiledScriptCache cache = CompiledScriptCache.get();
+        Script first = cache.createScript("x * 2", false, binding(1));
+        Script second = cache.createScript("x * 2", false, binding(2));
+
+        assertSame(first.getClass(), second.getClass());
+        assertNotSame(first, second);
+        assertEquals(2, first.run());
+        assertEquals(4, second.run());
+    }
+
+    @Test
+    public void testSandboxSettingIsPartOfTheKey() {
+        CompiledScriptCache cache = CompiledScriptCache.get();
+        Script plain = cache.createScript("x + 1", false, binding(1));
+        Script sandboxed = cache.createScript("x + 1", true, binding(1));
+
+        assertNotSame(plain.getClass(), sandboxed.getClass());
+    }
+
+    private static Binding binding(int x) {
+        Binding binding = new Binding();
+        binding.setVariable("x", x);
+        return binding;
+    }
+}
@@ -5,6 +5,7 @@ import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.html.HtmlSelect;
 import com.gargoylesoftware.htmlunit.html.HtmlTextArea;
 import com.gargoylesoftware.htmlunit.html.HtmlTextInput;
+import javax.mail.Session;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -128,4 +129,21 @@ public class ExtendedEmailPublisherDescriptorTest {
 
         assertEquals("hammer", descriptor.getListId());
     }
+
+    @Test
+    public void testSessionIsSharedUntilReconfigured() throws Exception {
+        ExtendedEmailPublisherDescriptor descriptor = j.jenkins.getDescriptorByType(ExtendedEmailPublisherDescriptor.class);
+        Session session = descriptor.getSession();
+        assertSame(session, descriptor.getSession());
+        assertSame(descriptor.getMailerSession(), descriptor.getMailerSession());
+
+        HtmlPage page = j.createWebClient().goTo("configure");
+        HtmlTextInput smtpServer = page.getElementByName("ext_mailer_smtp_server");
+        smtpServer.setValueAttribute("smtp.example.com");
+        j.submit(page.getFormByName("config"));
+
+        Session reconfigured = descriptor.getSession();
+        assertNotSame(session, reconfigured);
+        assertEquals("smtp.example.com", reconfigured.getProperty("mail.smtp.host"));
+    }
 }
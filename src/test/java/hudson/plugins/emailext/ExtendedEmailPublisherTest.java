@@ -7,15 +7,20 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.junit.matchers.JUnitMatchers.containsString;
 import static org.junit.matchers.JUnitMatchers.hasItems;
 import static org.junit.matchers.JUnitMatchers.hasItem;
+import com.google.common.collect.ListMultimap;
 import hudson.model.FreeStyleBuild;
 import hudson.model.Result;
 import hudson.model.Cause.UserCause;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
 import hudson.model.User;
 import hudson.plugins.emailext.plugins.EmailTrigger;
 import hudson.plugins.emailext.plugins.RecipientProvider;
+import hudson.plugins.emailext.plugins.SpooledDataSource;
+import hudson.plugins.emailext.plugins.StreamingToken;
 import hudson.plugins.emailext.plugins.trigger.AbortedTrigger;
+import hudson.plugins.emailext.plugins.trigger.AlwaysTrigger;
 import hudson.plugins.emailext.plugins.trigger.FailureTrigger;
 import hudson.plugins.emailext.plugins.trigger.FirstFailureTrigger;
 import hudson.plugins.emailext.plugins.trigger.FixedTrigger;
@@ -28,12 +33,19 @@ import hudson.plugins.emailext.plugins.trigger.SuccessTrigger;
 import hudson.plugins.emailext.plugins.recipients.ListRecipientProvider;
 import hudson.plugins.emailext.plugins.recipients.RequesterRecipientProvider;
 import hudson.tasks.Builder;
+import hudson.tasks.MailMessageIdAction;
 import hudson.tasks.Mailer;
+import java.io.File;
 import java.io.IOException;
 
+import java.io.Writer;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
@@ -44,6 +56,8 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
 import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
 import org.junit.Rule;
 import org.junit.Test;
 
@@ -55,6 +69,7 @@ import org.kohsuke.stapler.Stapler;
 import static org.junit.Assert.*;
 import org.jvnet.hudson.test.Bug;
 import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.TestExtension;
 
 public class ExtendedEmailPublisherTest {
 
@@ -611,6 +626,97 @@ public class ExtendedEmailPublisherTest {
         assertEquals(1, Mailbox.get("slide.o.mix@xxx.com").size());
     }
 
+    @Test
+    public void testStrictPresendScriptCallsTokens() throws Exception {
+        Field f = ExtendedEmailPublisherDescriptor.class.getDeclaredField("strictPresendScript");
+        f.setAccessible(true);
+        f.set(publisher.getDescriptor(), true);
+
+        publisher.presendScript = "import javax.mail.Message.RecipientType\n"
+                + "msg.setRecipients(RecipientType.TO, 'slide.o.mix@xxx.com')\n"
+                + "msg.setSubject('Build #' + BUILD_NUMBER())";
+        publisher.recipientList = "mickey@disney.com";
+        SuccessTrigger successTrigger = new SuccessTrigger(recProviders, "$DEFAULT_RECIPIENTS",
+                "$DEFAULT_REPLYTO", "$DEFAULT_SUBJECT", "$DEFAULT_CONTENT", "", 0, "project");
+        successTrigger.getEmail().addRecipientProvider(new ListRecipientProvider());
+        publisher.getConfiguredTriggers().add(successTrigger);
+
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        Mailbox mailbox = Mailbox.get("slide.o.mix@xxx.com");
+        assertEquals(2, mailbox.size());
+        assertEquals("Build #1", mailbox.get(0).getSubject());
+        assertEquals("Build #2", mailbox.get(1).getSubject());
+    }
+
+    @Test
+    public void testStreamingBody() throws Exception {
+        Field f = ExtendedEmailPublisherDescriptor.class.getDeclaredField("streamingBody");
+        f.setAccessible(true);
+        f.set(publisher.getDescriptor(), true);
+
+        publisher.recipientList = "mickey@disney.com";
+        SuccessTrigger successTrigger = new SuccessTrigger(recProviders, "$DEFAULT_RECIPIENTS",
+                "$DEFAULT_REPLYTO", "$DEFAULT_SUBJECT", "Job $PROJECT_NAME\n${JELLY_SCRIPT, template=\"text\"}", "", 0, "text/plain");
+        successTrigger.getEmail().addRecipientProvider(new ListRecipientProvider());
+        publisher.getConfiguredTriggers().add(successTrigger);
+
+        j.assertBuildStatusSuccess(project.scheduleBuild2(0));
+
+        Mailbox mailbox = Mailbox.get("mickey@disney.com");
+        assertEquals(1, mailbox.size());
+        MimeMultipart multipart = (MimeMultipart) mailbox.get(0).getContent();
+        MimeBodyPart bodyPart = (MimeBodyPart) multipart.getBodyPart(0);
+        assertThat(bodyPart.getContentType(), containsString("text/plain"));
+        String body = (String) bodyPart.getContent();
+        assertTrue(body.startsWith("Job " + project.getName() + "\n"));
+        assertThat(body, containsString("BUILD SUCCESS"));
+        assertThat(body, containsString("Project: " + project.getName()));
+    }
+
+    @Test
+    public void testStreamingBodyFailureDeletesTemporaryFile() throws Exception {
+        Field f = ExtendedEmailPublisherDescriptor.class.getDeclaredField("streamingBody");
+        f.setAccessible(true);
+        f.set(publisher.getDescriptor(), true);
+
+        publisher.recipientList = "mickey@disney.com";
+        SuccessTrigger successTrigger = new SuccessTrigger(recProviders, "$DEFAULT_RECIPIENTS",
+                "$DEFAULT_REPLYTO", "$DEFAULT_SUBJECT", "${" + FailingStreamToken.MACRO_NAME + "}", "", 0, "text/plain");
+        successTrigger.getEmail().addRecipientProvider(new ListRecipientProvider());
+        publisher.getConfiguredTriggers().add(successTrigger);
+
+        Set<String> before = spoolFiles();
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        j.assertBuildStatusSuccess(build);
+
+        j.assertLogContains("Error streaming the email content, rendering it in memory instead.", build);
+        Set<String> left = spoolFiles();
+        left.removeAll(before);
+        assertEquals(Collections.emptySet(), left);
+
+        // the body is rendered in memory instead
+        Mailbox mailbox = Mailbox.get("mickey@disney.com");
+        assertEquals(1, mailbox.size());
+        MimeMultipart multipart = (MimeMultipart) mailbox.get(0).getContent();
+        assertEquals(FailingStreamToken.IN_MEMORY, multipart.getBodyPart(0).getContent());
+    }
+
+    private static Set<String> spoolFiles() {
+        Set<String> names = new HashSet<String>();
+        String[] files = new File(System.getProperty("java.io.tmpdir")).list();
+        if (files != null) {
+            for (String name : files) {
+                // the prefix of the temporary files of Guava's FileBackedOutputStream
+                if (name.startsWith("FileBackedOutputStream")) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
     @Test
     public void testPresendScriptNoSecurity() throws Exception {
         Field f = ExtendedEmailPublisherDescriptor.class.getDeclaredField("enableSecurity");
@@ -845,6 +951,99 @@ public class ExtendedEmailPublisherTest {
     }
 	*/
 
+    @Test
+    public void testAsyncDeliveryRecordsOutcome() throws Exception {
+        Field f = ExtendedEmailPublisherDescriptor.class.getDeclaredField("asyncDelivery");
+        f.setAccessible(true);
+        f.set(publisher.getDescriptor(), true);
+
+        SuccessTrigger successTrigger = new SuccessTrigger(recProviders, "$DEFAULT_RECIPIENTS",
+                "$DEFAULT_REPLYTO", "$DEFAULT_SUBJECT", "$DEFAULT_CONTENT", "", 0, "project");
+        addEmailType(successTrigger);
+        publisher.getConfiguredTriggers().add(successTrigger);
+
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        j.assertBuildStatusSuccess(build);
+        j.assertLogContains("Email queued for delivery", build);
+
+        MailDeliveryAction action = build.getAction(MailDeliveryAction.class);
+        assertNotNull("The build should record the queued email", action);
+        assertEquals(1, action.getDeliveries().size());
+        MailDeliveryAction.Delivery delivery = action.getDeliveries().get(0);
+        for (int i = 0; i < 100 && delivery.getStatus() == MailDeliveryAction.Status.QUEUED; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(MailDeliveryAction.Status.SENT, delivery.getStatus());
+        assertEquals(1, Mailbox.get("ashlux@gmail.com").size());
+
+        MailMessageIdAction messageId = build.getAction(MailMessageIdAction.class);
+        assertNotNull(messageId);
+        assertEquals(delivery.getMessageId(), messageId.messageId);
+        assertEquals(messageId.messageId, ((MimeMessage) Mailbox.get("ashlux@gmail.com").get(0)).getMessageID());
+    }
+
+    @Test
+    public void testParallelTriggersKeepLogOrder() throws Exception {
+        Field f = ExtendedEmailPublisherDescriptor.class.getDeclaredField("parallelTriggers");
+        f.setAccessible(true);
+        f.set(publisher.getDescriptor(), true);
+
+        SuccessTrigger successTrigger = new SuccessTrigger(recProviders, "$DEFAULT_RECIPIENTS",
+                "$DEFAULT_REPLYTO", "$DEFAULT_SUBJECT", "$DEFAULT_CONTENT", "", 0, "project");
+        addEmailType(successTrigger);
+        successTrigger.getEmail().setSubject("Success email");
+        publisher.getConfiguredTriggers().add(successTrigger);
+
+        AlwaysTrigger alwaysTrigger = new AlwaysTrigger(recProviders, "$DEFAULT_RECIPIENTS",
+                "$DEFAULT_REPLYTO", "$DEFAULT_SUBJECT", "$DEFAULT_CONTENT", "", 0, "project");
+        addEmailType(alwaysTrigger);
+        alwaysTrigger.getEmail().setSubject("Always email");
+        alwaysTrigger.getEmail().setRecipientList("mickey@disney.com");
+        publisher.getConfiguredTriggers().add(alwaysTrigger);
+
+        FreeStyleBuild build = project.scheduleBuild2(0).get();
+        j.assertBuildStatusSuccess(build);
+
+        assertEquals(1, Mailbox.get("ashlux@gmail.com").size());
+        assertEquals(1, Mailbox.get("mickey@disney.com").size());
+        MimeMessage successMail = (MimeMessage) Mailbox.get("ashlux@gmail.com").get(0);
+        assertEquals("Success email", successMail.getSubject());
+
+        // the output of each trigger is copied to the log as a block, in
+        // trigger order
+        List<String> log = build.getLog(100);
+        String successHeader = "Sending email for trigger: " + SuccessTrigger.TRIGGER_NAME;
+        String alwaysHeader = "Sending email for trigger: " + AlwaysTrigger.TRIGGER_NAME;
+        int successStart = log.indexOf(successHeader);
+        int alwaysStart = log.indexOf(alwaysHeader);
+        assertTrue("Both triggers should be in the log", successStart >= 0 && alwaysStart >= 0);
+        assertEquals(successStart, log.lastIndexOf(successHeader));
+        assertEquals(alwaysStart, log.lastIndexOf(alwaysHeader));
+        assertTrue("The first trigger should come first in the log", successStart < alwaysStart);
+
+        List<String> successBlock = log.subList(successStart, alwaysStart);
+        List<String> alwaysBlock = log.subList(alwaysStart, log.size());
+        assertTrue(successBlock.toString(), containsLine(successBlock, "Sending email to:", "ashlux@gmail.com"));
+        assertFalse(successBlock.toString(), containsLine(successBlock, "", "mickey@disney.com"));
+        assertTrue(alwaysBlock.toString(), containsLine(alwaysBlock, "Sending email to:", "mickey@disney.com"));
+        assertFalse(alwaysBlock.toString(), containsLine(alwaysBlock, "", "ashlux@gmail.com"));
+        assertFalse(containsLine(log.subList(0, successStart), "Sending email to:", ""));
+
+        // the build links to the email of the first trigger
+        MailMessageIdAction messageId = build.getAction(MailMessageIdAction.class);
+        assertNotNull(messageId);
+        assertEquals(successMail.getMessageID(), messageId.messageId);
+    }
+
+    private static boolean containsLine(List<String> lines, String prefix, String text) {
+        for (String line : lines) {
+            if (line.startsWith(prefix) && line.contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Bug(16376)
     @Test 
     public void testConcurrentBuilds() 
@@ -877,6 +1076,37 @@ public class ExtendedEmailPublisherTest {
             }
         }
     }
+
+    /**
+     * Fails when streamed, after writing more than the data source keeps in
+     * memory.
+     */
+    @TestExtension("testStreamingBodyFailureDeletesTemporaryFile")
+    public static class FailingStreamToken extends TokenMacro implements StreamingToken {
+        static final String MACRO_NAME = "FAILING_STREAM";
+        static final String IN_MEMORY = "rendered in memory";
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return MACRO_NAME.equals(macroName);
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+            return IN_MEMORY;
+        }
+
+        public void writeTo(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, Writer out) throws MacroEvaluationException, IOException {
+            char[] chunk = new char[8192];
+            Arrays.fill(chunk, 'x');
+            for (int written = 0; written <= SpooledDataSource.THRESHOLD; written += chunk.length) {
+                out.write(chunk);
+            }
+            throw new IOException("disk full");
+        }
+    }
     
     private void addEmailType(EmailTrigger trigger) {
         trigger.setEmail(new EmailType() {
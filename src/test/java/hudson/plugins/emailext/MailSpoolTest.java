@@ -0,0 +1,83 @@
+package hudson.plugins.emailext;
+
+import java.io.File;
+import java.net.ConnectException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.mock_javamail.Mailbox;
+
+import static org.junit.Assert.*;
+
+public class MailSpoolTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @After
+    public void tearDown() {
+        MailSpool.get().purge();
+        Mailbox.clearAll();
+    }
+
+    @Test
+    public void testSpooledMessageIsDeliveredOnRetry() throws Exception {
+        MailSpool spool = MailSpool.get();
+        MimeMessage msg = createMessage();
+        spool.add(msg, new MessagingException("Could not connect", new ConnectException("Connection refused")));
+
+        assertEquals(1, spool.getCount());
+        MailSpool.Entry entry = spool.getMessages().get(0);
+        assertEquals(msg.getMessageID(), entry.getMessageId());
+        assertEquals("Spooled", entry.getSubject());
+        assertEquals(1, entry.getAttempts());
+        assertTrue(new File(j.jenkins.getRootDir(), "email-ext-spool/" + entry.getId() + ".eml").exists());
+
+        spool.retryNow(true);
+
+        assertEquals(0, spool.getCount());
+        assertEquals(1, Mailbox.get("mickey@disney.com").size());
+        Message delivered = Mailbox.get("mickey@disney.com").get(0);
+        assertEquals(msg.getMessageID(), ((MimeMessage) delivered).getMessageID());
+        assertEquals("Spooled", delivered.getSubject());
+    }
+
+    @Test
+    public void testBackoffDefersRetry() throws Exception {
+        MailSpool spool = MailSpool.get();
+        spool.add(createMessage(), new MessagingException("Could not connect", new ConnectException("Connection refused")));
+
+        spool.retryNow(false);
+
+        assertEquals(1, spool.getCount());
+        assertEquals(0, Mailbox.get("mickey@disney.com").size());
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        MailSpool spool = MailSpool.get();
+        spool.add(createMessage(), new MessagingException("Could not connect", new ConnectException("Connection refused")));
+        String id = spool.getMessages().get(0).getId();
+
+        spool.purge();
+
+        assertEquals(0, spool.getCount());
+        assertFalse(new File(j.jenkins.getRootDir(), "email-ext-spool/" + id + ".eml").exists());
+        assertFalse(new File(j.jenkins.getRootDir(), "email-ext-spool/" + id + ".xml").exists());
+    }
+
+    private MimeMessage createMessage() throws MessagingException {
+        ExtendedEmailPublisherDescriptor descriptor = j.jenkins.getDescriptorByType(ExtendedEmailPublisherDescriptor.class);
+        MimeMessage msg = new ExtendedMimeMessage(descriptor.getMailerSession());
+        msg.setFrom(new InternetAddress("admin@example.com"));
+        msg.setRecipients(Message.RecipientType.TO, "mickey@disney.com");
+        msg.setSubject("Spooled");
+        msg.setText("body");
+        return msg;
+    }
+}
@@ -0,0 +1,78 @@
+package hudson.plugins.emailext;
+
+import hudson.plugins.emailext.GroovyTemplateConfig.GroovyTemplateConfigProvider;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.lib.configprovider.ConfigProvider;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class ManagedTemplateIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private GroovyTemplateConfigProvider provider;
+
+    private String id;
+
+    @Before
+    public void setUp() {
+        provider = ConfigProvider.all().get(GroovyTemplateConfigProvider.class);
+        // the provider is only responsible for ids it made
+        id = provider.newConfig().id;
+    }
+
+    @Test
+    public void testFindsTemplateIgnoringCase() throws Exception {
+        provider.save(new GroovyTemplateConfig(id, "My Template", "", "caf\u00e9"));
+
+        ManagedTemplateIndex.Entry entry = ManagedTemplateIndex.of(GroovyTemplateConfigProvider.class).find("my template");
+
+        assertNotNull(entry);
+        assertEquals(id, entry.getConfig().id);
+        assertArrayEquals("caf\u00e9".getBytes("UTF-8"), entry.getContent());
+        assertEquals("caf\u00e9", IOUtils.toString(entry.open(), "UTF-8"));
+        assertNull(ManagedTemplateIndex.of(GroovyTemplateConfigProvider.class).find("other"));
+    }
+
+    @Test
+    public void testNoticesChangedTemplates() throws Exception {
+        ManagedTemplateIndex index = ManagedTemplateIndex.of(GroovyTemplateConfigProvider.class);
+        provider.save(new GroovyTemplateConfig(id, "first", "", "one"));
+        ManagedTemplateIndex.Entry first = index.find("first");
+        assertSame(first, index.find("first"));
+
+        provider.save(new GroovyTemplateConfig(id, "first", "", "two"));
+        ManagedTemplateIndex.Entry edited = index.find("first");
+        assertEquals("two", edited.getConfig().content);
+        assertFalse(first.getVersion().equals(edited.getVersion()));
+
+        provider.save(new GroovyTemplateConfig(id, "renamed", "", "two"));
+        assertNull(index.find("first"));
+        assertNotNull(index.find("renamed"));
+
+        provider.remove(id);
+        assertNull(index.find("renamed"));
+    }
+
+    @Test
+    public void testMissesDontRebuildUnlessConfigsChange() throws Exception {
+        ManagedTemplateIndex index = ManagedTemplateIndex.of(GroovyTemplateConfigProvider.class);
+        provider.save(new GroovyTemplateConfig(id, "first", "", "one"));
+        assertNotNull(index.find("first"));
+
+        int builds = index.builds;
+        assertNull(index.find("missing"));
+        assertNull(index.find("missing"));
+        assertEquals(builds, index.builds);
+
+        String other = provider.newConfig().id;
+        provider.save(new GroovyTemplateConfig(other, "missing", "", "two"));
+        assertNotNull(index.find("missing"));
+        assertEquals(builds + 1, index.builds);
+    }
+}
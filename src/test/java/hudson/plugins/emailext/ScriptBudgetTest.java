@@ -0,0 +1,53 @@
+package hudson.plugins.emailext;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import java.util.concurrent.Callable;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class ScriptBudgetTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test(timeout = 30000)
+    public void testEndlessLoopIsAborted() {
+        final Script script = CompiledScriptCache.get().createScript("while (true) { }", false, new Binding());
+        try {
+            ScriptBudget.run(new Callable<Object>() {
+                public Object call() {
+                    return script.run();
+                }
+            }, 500, 0);
+            fail("the script should have been aborted");
+        } catch (ScriptBudgetExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("500 ms"));
+        }
+        assertFalse("the interrupt must not leak", Thread.currentThread().isInterrupted());
+    }
+
+    @Test(timeout = 30000)
+    public void testBusyScriptIsAbortedOnCpuTime() {
+        final Script script = CompiledScriptCache.get().createScript("def i = 0; while (true) { i++ }", false, new Binding());
+        try {
+            ScriptBudget.run(new Callable<Object>() {
+                public Object call() {
+                    return script.run();
+                }
+            }, 0, 500);
+            fail("the script should have been aborted");
+        } catch (ScriptBudgetExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("CPU time"));
+        }
+    }
+
+    @Test
+    public void testQuickScriptIsNotAffected() {
+        Script script = CompiledScriptCache.get().createScript("6 * 7", false, new Binding());
+        assertEquals(42, ScriptBudget.run(script));
+    }
+}
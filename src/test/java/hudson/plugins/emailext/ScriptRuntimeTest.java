@@ -0,0 +1,47 @@
+package hudson.plugins.emailext;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class ScriptRuntimeTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testCompiledClassesAreCounted() {
+        ScriptRuntime runtime = ScriptRuntime.get();
+        long loaded = runtime.getLoadedClassCount();
+        int inGeneration = runtime.getGeneration().getClassCount();
+
+        // the closure is a class of its own
+        Script script = CompiledScriptCache.get().createScript("[1, 2].collect { it * 2 }", false, new Binding());
+
+        assertEquals(Arrays.asList(2, 4), script.run());
+        assertTrue(runtime.getLoadedClassCount() >= loaded + 2);
+        assertTrue(runtime.getGeneration().getClassCount() >= inGeneration + 2);
+        assertTrue(runtime.getLiveClassCount() >= 2);
+    }
+
+    @Test
+    public void testNewGenerationDropsCompiledScripts() {
+        ScriptRuntime runtime = ScriptRuntime.get();
+        Script first = CompiledScriptCache.get().createScript("1 + 1", false, new Binding());
+        assertTrue(CompiledScriptCache.get().size() > 0);
+        int generation = runtime.getGeneration().getNumber();
+
+        runtime.newGeneration();
+
+        assertEquals(generation + 1, runtime.getGeneration().getNumber());
+        assertEquals(0, runtime.getGeneration().getClassCount());
+        assertEquals(0, CompiledScriptCache.get().size());
+        Script second = CompiledScriptCache.get().createScript("1 + 1", false, new Binding());
+        assertNotSame(first.getClass(), second.getClass());
+    }
+}
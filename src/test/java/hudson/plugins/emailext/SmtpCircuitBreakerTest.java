@@ -0,0 +1,63 @@
+package hudson.plugins.emailext;
+
+import java.util.Properties;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SmtpCircuitBreakerTest {
+
+    @After
+    public void tearDown() {
+        SmtpCircuitBreaker.get().reset();
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        SmtpCircuitBreaker breaker = SmtpCircuitBreaker.get();
+        Session session = createSession("smtp.example.com");
+
+        for (int i = 0; i < SmtpCircuitBreaker.THRESHOLD; i++) {
+            String endpoint = breaker.acquire(session);
+            assertEquals("smtp.example.com:25", endpoint);
+            breaker.failure(endpoint);
+        }
+
+        try {
+            breaker.acquire(session);
+            fail("The circuit should be open");
+        } catch (MessagingException e) {
+            assertTrue("An open circuit should look like a connection error", MailSender.isConnectionError(e));
+        }
+        assertEquals(SmtpCircuitBreaker.State.OPEN, breaker.getCircuits().get(0).getState());
+        assertNotNull(breaker.getCircuits().get(0).getRetryAt());
+
+        // other servers are not affected
+        breaker.success(breaker.acquire(createSession("other.example.com")));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() throws Exception {
+        SmtpCircuitBreaker breaker = SmtpCircuitBreaker.get();
+        Session session = createSession("smtp.example.com");
+
+        for (int i = 0; i < SmtpCircuitBreaker.THRESHOLD - 1; i++) {
+            breaker.failure(breaker.acquire(session));
+        }
+        breaker.success(breaker.acquire(session));
+        breaker.failure(breaker.acquire(session));
+
+        SmtpCircuitBreaker.Circuit circuit = breaker.getCircuits().get(0);
+        assertEquals(SmtpCircuitBreaker.State.CLOSED, circuit.getState());
+        assertEquals(1, circuit.getFailures());
+    }
+
+    private Session createSession(String host) {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", host);
+        return Session.getInstance(props);
+    }
+}
@@ -0,0 +1,76 @@
+package hudson.plugins.emailext.plugins;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link DefaultPlaceholders} with the chain of
+ * {@link String#replaceAll} calls it replaced.
+ *
+ * <p>
+ * Not run as part of the normal build, use
+ * <tt>mvn test -Dtest=ContentBuilderBenchmark</tt>. The body size in KB can be
+ * set with <tt>-Dbenchmark.size=</tt>.
+ */
+public class ContentBuilderBenchmark {
+
+    private static final int SIZE_KB = Integer.getInteger("benchmark.size", 400);
+
+    private static final int WARMUP = 20;
+
+    private static final int ITERATIONS = 50;
+
+    private static final String[] VALUES = {
+        "$DEFAULT_CONTENT", "$DEFAULT_SUBJECT", "$DEFAULT_REPLYTO",
+        "Build $BUILD_NUMBER of $PROJECT_NAME finished: ${BUILD_LOG_REGEX, regex=\"ERROR\"}",
+        "$PROJECT_NAME - Build # $BUILD_NUMBER - $BUILD_STATUS!", "dev@example.com", "", ""
+    };
+
+    @Test
+    public void bodyWithoutPlaceholders() {
+        run("plain", body(false));
+    }
+
+    @Test
+    public void bodyWithPlaceholders() {
+        run("placeholders", body(true));
+    }
+
+    private void run(String name, String text) {
+        assertEquals(DefaultPlaceholdersTest.replaceAllChain(text, VALUES), DefaultPlaceholders.resolve(text, VALUES));
+
+        for (int i = 0; i < WARMUP; i++) {
+            DefaultPlaceholdersTest.replaceAllChain(text, VALUES);
+            DefaultPlaceholders.resolve(text, VALUES);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            DefaultPlaceholdersTest.replaceAllChain(text, VALUES);
+        }
+        long chain = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            DefaultPlaceholders.resolve(text, VALUES);
+        }
+        long scanner = System.nanoTime() - start;
+
+        System.out.printf("%s (%d KB): replaceAll chain %.3f ms/op, single pass %.3f ms/op%n", name, SIZE_KB,
+                chain / 1e6 / ITERATIONS, scanner / 1e6 / ITERATIONS);
+    }
+
+    private static String body(boolean placeholders) {
+        StringBuilder buf = new StringBuilder(SIZE_KB * 1024);
+        int line = 0;
+        while (buf.length() < SIZE_KB * 1024) {
+            buf.append("<tr><td>line ").append(line).append("</td><td>$BUILD_NUMBER costs $5</td></tr>\n");
+            if (placeholders && line % 500 == 0) {
+                buf.append("<p>${PROJECT_DEFAULT_CONTENT}</p>\n");
+            }
+            line++;
+        }
+        return buf.toString();
+    }
+}
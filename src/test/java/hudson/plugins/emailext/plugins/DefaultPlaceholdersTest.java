@@ -0,0 +1,72 @@
+package hudson.plugins.emailext.plugins;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DefaultPlaceholdersTest {
+
+    private static final String[] VALUES = {
+        "project content with $DEFAULT_CONTENT and ${DEFAULT_SUBJECT}",
+        "project subject $PROJECT_DEFAULT_CONTENT",
+        "$DEFAULT_REPLYTO",
+        "global content $PROJECT_DEFAULT_SUBJECT $DEFAULT_RECIPIENTS $BUILD_NUMBER",
+        "global subject costs $4000 \\\\o/",
+        "a@b.com, $DEFAULT_PRESEND_SCRIPT",
+        "reply@b.com",
+        "msg.setSubject('$DEFAULT_CONTENT')"
+    };
+
+    /**
+     * How the placeholders used to be replaced.
+     */
+    static String replaceAllChain(String text, String[] values) {
+        for (int i = 0; i < DefaultPlaceholders.NAMES.length; i++) {
+            String name = DefaultPlaceholders.NAMES[i];
+            text = text.replaceAll("\\$" + name + "|\\$\\{" + name + "\\}", Matcher.quoteReplacement(values[i]));
+        }
+        return text;
+    }
+
+    @Test
+    public void testTextWithoutPlaceholdersIsReturnedAsIs() {
+        String text = "Nothing to see here, $BUILD_NUMBER";
+        assertSame(text, DefaultPlaceholders.resolve(text, VALUES));
+    }
+
+    @Test
+    public void testLaterPlaceholdersAreResolvedInValues() {
+        assertEquals("project content with global content $PROJECT_DEFAULT_SUBJECT a@b.com, "
+                + "msg.setSubject('$DEFAULT_CONTENT') $BUILD_NUMBER and global subject costs $4000 \\\\o/",
+                DefaultPlaceholders.resolve("${PROJECT_DEFAULT_CONTENT}", VALUES));
+    }
+
+    @Test
+    public void testUnterminatedBraces() {
+        assertEquals("${DEFAULT_SUBJECT", DefaultPlaceholders.resolve("${DEFAULT_SUBJECT", VALUES));
+        assertEquals("$", DefaultPlaceholders.resolve("$", VALUES));
+        assertEquals("${", DefaultPlaceholders.resolve("${", VALUES));
+    }
+
+    @Test
+    public void testMatchesReplaceAllChain() {
+        String[] pieces = {"$", "{", "}", "x", " ", "$DEFAULT_", "DEFAULT_", "\n"};
+        Random random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder text = new StringBuilder();
+            int parts = random.nextInt(12);
+            for (int p = 0; p < parts; p++) {
+                if (random.nextBoolean()) {
+                    String name = DefaultPlaceholders.NAMES[random.nextInt(DefaultPlaceholders.NAMES.length)];
+                    text.append(random.nextBoolean() ? "$" + name : "${" + name + "}");
+                } else {
+                    text.append(pieces[random.nextInt(pieces.length)]);
+                }
+            }
+            assertEquals(text.toString(), replaceAllChain(text.toString(), VALUES),
+                    DefaultPlaceholders.resolve(text.toString(), VALUES));
+        }
+    }
+}
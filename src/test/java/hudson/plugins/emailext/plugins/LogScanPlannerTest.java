@@ -0,0 +1,84 @@
+package hudson.plugins.emailext.plugins;
+
+import hudson.console.ConsoleNote;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogScanPlannerTest {
+
+    private static class RecordingScanner implements LogScanPlanner.LineProcessor {
+
+        final List<String> lines = new ArrayList<String>();
+        final int limit;
+
+        RecordingScanner(int limit) {
+            this.limit = limit;
+        }
+
+        public boolean processLine(String line, String terminator) {
+            lines.add(line + "|" + terminator.replace("\r", "CR").replace("\n", "LF"));
+            return lines.size() < limit;
+        }
+    }
+
+    /**
+     * Returns a single character per read, so that line terminators are
+     * split across reads.
+     */
+    private static class TrickleReader extends Reader {
+
+        private final Reader in;
+
+        TrickleReader(String s) {
+            in = new StringReader(s);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return in.read(cbuf, off, Math.min(len, 1));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSplitsLinesLikeReadLine() throws Exception {
+        String log = "a\nb\r\nc\rd\r\r\n\ne";
+        List<String> expected = Arrays.asList("a|LF", "b|CRLF", "c|CR", "d|CR", "|CRLF", "|LF", "e|");
+
+        RecordingScanner scanner = new RecordingScanner(Integer.MAX_VALUE);
+        LogScanPlanner.scan(new StringReader(log), Arrays.asList(scanner));
+        assertEquals(expected, scanner.lines);
+
+        scanner = new RecordingScanner(Integer.MAX_VALUE);
+        LogScanPlanner.scan(new TrickleReader(log), Arrays.asList(scanner));
+        assertEquals(expected, scanner.lines);
+    }
+
+    @Test
+    public void testConsoleNotesAreRemoved() throws Exception {
+        String note = ConsoleNote.PREAMBLE_STR + "abc" + ConsoleNote.POSTAMBLE_STR;
+        RecordingScanner scanner = new RecordingScanner(Integer.MAX_VALUE);
+        LogScanPlanner.scan(new StringReader("x" + note + "y\n"), Arrays.asList(scanner));
+        assertEquals(Arrays.asList("xy|LF"), scanner.lines);
+    }
+
+    @Test
+    public void testScannersStopIndependently() throws Exception {
+        RecordingScanner first = new RecordingScanner(1);
+        RecordingScanner second = new RecordingScanner(3);
+        LogScanPlanner.scan(new StringReader("1\n2\n3\n4\n"), Arrays.asList(first, second));
+        assertEquals(Arrays.asList("1|LF"), first.lines);
+        assertEquals(Arrays.asList("1|LF", "2|LF", "3|LF"), second.lines);
+    }
+}
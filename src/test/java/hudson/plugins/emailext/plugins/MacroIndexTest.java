@@ -0,0 +1,54 @@
+package hudson.plugins.emailext.plugins;
+
+import hudson.plugins.emailext.plugins.content.BuildLogRegexContent;
+import hudson.plugins.emailext.plugins.content.SVNRevisionContent;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class MacroIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void testFindsSameMacroAsLinearScan() {
+        MacroIndex index = MacroIndex.get();
+        for (String name : new String[]{"BUILD_LOG_REGEX", "SVN_REVISION", "SVN_REVISION_2", "BUILD_NUMBER", "NO_SUCH_TOKEN"}) {
+            assertSame(name, scan(name), index.find(name));
+            // and again, now that it is remembered
+            assertSame(name, scan(name), index.find(name));
+        }
+        assertTrue(index.find("BUILD_LOG_REGEX") instanceof BuildLogRegexContent);
+        assertTrue(index.find("SVN_REVISION_2") instanceof SVNRevisionContent);
+        assertNull(index.find("NO_SUCH_TOKEN"));
+    }
+
+    @Test
+    public void testEmailTokensAreNotInstalledMacros() {
+        assertNull(MacroIndex.get().findInstalled("BUILD_LOG_REGEX"));
+        assertNotNull(MacroIndex.get().find("BUILD_LOG_REGEX"));
+    }
+
+    @Test
+    public void testIndexIsReused() {
+        assertSame(MacroIndex.get(), MacroIndex.get());
+    }
+
+    private static TokenMacro scan(String name) {
+        for (TokenMacro m : TokenMacro.all()) {
+            if (m.acceptsMacroName(name)) {
+                return m;
+            }
+        }
+        for (TokenMacro m : ContentBuilder.getPrivateMacros()) {
+            if (m.acceptsMacroName(name)) {
+                return m;
+            }
+        }
+        return null;
+    }
+}
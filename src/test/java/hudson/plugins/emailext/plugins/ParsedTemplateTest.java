@@ -0,0 +1,168 @@
+package hudson.plugins.emailext.plugins;
+
+import com.google.common.collect.ListMultimap;
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ParsedTemplateTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private AbstractBuild<?, ?> build;
+    private TaskListener listener;
+    private List<TokenMacro> macros;
+
+    public static class EchoMacro extends TokenMacro {
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("ECHO");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException, IOException, InterruptedException {
+            return "echo" + new TreeMap<String, String>(arguments) + argumentMultimap.size();
+        }
+    }
+
+    public static class FailingMacro extends TokenMacro {
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("FAIL");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException, IOException, InterruptedException {
+            throw new MacroEvaluationException("broken");
+        }
+    }
+
+    public static class NestedMacro extends TokenMacro {
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("NESTED");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException, IOException, InterruptedException {
+            return "nested ${ECHO, a=1}";
+        }
+
+        @Override
+        public boolean hasNestedContent() {
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        listener = TaskListener.NULL;
+        build = mock(AbstractBuild.class);
+        EnvVars env = new EnvVars();
+        env.put("GREETING", "hello");
+        when(build.getEnvironment(listener)).thenReturn(env);
+        macros = Arrays.<TokenMacro>asList(new EchoMacro(), new FailingMacro(), new NestedMacro());
+        ParsedTemplate.clearCache();
+    }
+
+    @Test
+    public void testSplitsLiteralsAndTokens() {
+        ParsedTemplate template = ParsedTemplate.parse("a $ECHO b ${ECHO, x=\"y\"} c");
+        assertArrayEquals(new String[]{"a ", " b ", " c"}, template.literals);
+        assertEquals(2, template.tokens.length);
+        assertEquals("ECHO", template.tokens[0].name);
+        assertEquals("${ECHO, x=\"y\"}", template.tokens[1].source);
+        assertEquals("y", template.tokens[1].arguments.get("x"));
+    }
+
+    @Test
+    public void testTemplateIsParsedOnce() {
+        String text = "Build $ECHO";
+        assertSame(ParsedTemplate.get(text), ParsedTemplate.get(text));
+    }
+
+    @Test
+    public void testUnmatchedDelimitedTokenFallsBack() {
+        assertNull(ParsedTemplate.parse("${ECHO, x=\"unterminated}"));
+        assertNull(ParsedTemplate.parse("${env.FOO}"));
+        assertNotNull(ParsedTemplate.parse("$${ECHO} costs $4000"));
+    }
+
+    @Test
+    public void testMatchesExpandAll() throws Exception {
+        String[] texts = {
+            "",
+            "plain text",
+            "$ECHO",
+            "${ECHO}",
+            "${ ECHO , a = 1 , b=true, c=\"two words\" }",
+            "${ECHO, a=1, a=2}",
+            "${ECHO, s=\"quote \\\" and backslash \\\\ and newline \\n\"}",
+            "$$ECHO and $${ECHO}",
+            "$ECHO$ECHO${ECHO}",
+            "$UNKNOWN and ${UNKNOWN, a=1} stay",
+            "${FAIL, a=1} is reported",
+            "$NESTED",
+            "$GREETING, ${GREETING} $ECHO",
+            "costs $4000, $ at the end $",
+        };
+        for (String text : texts) {
+            String expected = TokenMacro.expandAll(build, listener, text, false, macros);
+            ParsedTemplate template = ParsedTemplate.parse(text);
+            assertNotNull(text, template);
+            assertEquals(text, expected, template.evaluate(build, listener, macros));
+        }
+    }
+
+    @Test
+    public void testLogTokensShareOneScan() throws Exception {
+        final String log = "start\nfirst ERROR\r\nsecond\rend\nthird error\nlast";
+        final AtomicInteger reads = new AtomicInteger();
+        when(build.getLogReader()).thenAnswer(new Answer<Reader>() {
+            public Reader answer(InvocationOnMock invocation) {
+                reads.incrementAndGet();
+                return new StringReader(log);
+            }
+        });
+        List<TokenMacro> emailTokens = ContentBuilder.getPrivateMacros();
+        String text = "${BUILD_LOG_REGEX, regex=\"(?i)error\", linesBefore=1}"
+                + "|${BUILD_LOG_EXCERPT, start=\"start\", end=\"end\"}"
+                + "|${BUILD_LOG_MULTILINE_REGEX, regex=\"(?s)first.*second\"}"
+                + "|${BUILD_LOG_REGEX, linesBefore=1, regex=\"(?i)error\"}";
+        String expected = TokenMacro.expandAll(build, listener, text, false, emailTokens);
+        assertEquals(4, reads.get());
+
+        reads.set(0);
+        assertEquals(expected, ParsedTemplate.parse(text).evaluate(build, listener, emailTokens));
+        assertEquals(1, reads.get());
+    }
+}
@@ -0,0 +1,43 @@
+package hudson.plugins.emailext.plugins;
+
+import java.io.OutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SpooledDataSourceTest {
+
+    @Test
+    public void testSmallContentIsReadBack() throws Exception {
+        SpooledDataSource source = new SpooledDataSource("body", "text/plain", 1024);
+        OutputStream out = source.getOutputStream();
+        out.write("hello".getBytes("UTF-8"));
+        out.close();
+
+        assertEquals("text/plain", source.getContentType());
+        assertEquals("hello", IOUtils.toString(source.getInputStream(), "UTF-8"));
+        // read again, like JavaMail does when it picks the transfer encoding
+        assertEquals("hello", IOUtils.toString(source.getInputStream(), "UTF-8"));
+    }
+
+    @Test
+    public void testLargeContentIsReadBack() throws Exception {
+        SpooledDataSource source = new SpooledDataSource("body", "text/plain", 16);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        OutputStream out = source.getOutputStream();
+        out.write(content.toString().getBytes("UTF-8"));
+        out.close();
+
+        assertEquals(content.toString(), IOUtils.toString(source.getInputStream(), "UTF-8"));
+        assertEquals(content.toString(), IOUtils.toString(source.getInputStream(), "UTF-8"));
+        assertEquals(content.toString().getBytes("UTF-8").length, source.getSize());
+
+        source.reset();
+        assertEquals("", IOUtils.toString(source.getInputStream(), "UTF-8"));
+        assertEquals(0, source.getSize());
+    }
+}
@@ -0,0 +1,91 @@
+package hudson.plugins.emailext.plugins;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.plugins.emailext.plugins.content.BuildLogContent;
+import hudson.plugins.emailext.plugins.content.BuildLogExcerptContent;
+import hudson.plugins.emailext.plugins.content.BuildLogMultilineRegexContent;
+import hudson.plugins.emailext.plugins.content.BuildLogRegexContent;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TokenCacheTest {
+
+    public static class CountingMacro extends TokenMacro {
+
+        int count;
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("COUNT");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName,
+                Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException, IOException, InterruptedException {
+            return String.valueOf(++count);
+        }
+    }
+
+    @NonDeterministicToken
+    public static class NonDeterministicMacro extends CountingMacro {
+    }
+
+    @Test
+    public void testSameArgumentsAreEvaluatedOnce() throws Exception {
+        CountingMacro macro = new CountingMacro();
+        TokenMacro cached = new TokenCache().wrap(Arrays.<TokenMacro>asList(macro)).get(0);
+
+        assertEquals("1", evaluate(cached, "a", "1", "b", "2"));
+        assertEquals("1", evaluate(cached, "b", "2", "a", "1"));
+        assertEquals("2", evaluate(cached, "a", "2"));
+        assertEquals(2, macro.count);
+    }
+
+    @Test
+    public void testNonDeterministicTokensAreNotCached() throws Exception {
+        CountingMacro macro = new NonDeterministicMacro();
+        List<TokenMacro> wrapped = new TokenCache().wrap(Arrays.<TokenMacro>asList(macro));
+        assertSame(macro, wrapped.get(0));
+
+        assertEquals("1", evaluate(wrapped.get(0)));
+        assertEquals("2", evaluate(wrapped.get(0)));
+    }
+
+    @Test
+    public void testLogTokensAreNotCached() {
+        List<TokenMacro> macros = Arrays.<TokenMacro>asList(new BuildLogContent(), new BuildLogRegexContent(),
+                new BuildLogExcerptContent(), new BuildLogMultilineRegexContent());
+        List<TokenMacro> wrapped = new TokenCache().wrap(macros);
+        for (int i = 0; i < macros.size(); i++) {
+            assertSame(macros.get(i), wrapped.get(i));
+        }
+    }
+
+    @Test
+    public void testCachesAreIndependent() throws Exception {
+        CountingMacro macro = new CountingMacro();
+        List<TokenMacro> macros = Arrays.<TokenMacro>asList(macro);
+
+        assertEquals("1", evaluate(new TokenCache().wrap(macros).get(0)));
+        assertEquals("2", evaluate(new TokenCache().wrap(macros).get(0)));
+    }
+
+    private String evaluate(TokenMacro macro, String... args) throws Exception {
+        ListMultimap<String, String> multimap = ArrayListMultimap.create();
+        for (int i = 0; i < args.length; i += 2) {
+            multimap.put(args[i], args[i + 1]);
+        }
+        return macro.evaluate(null, null, "COUNT", null, multimap);
+    }
+}
@@ -205,4 +205,47 @@ public class BuildLogMultilineRegexContentTest {
 
         assertEquals("No emails were triggered.\n", result);
     }
+
+    @Test
+    public void testGetContent_maxSpanLinesGivesSameMatches()
+            throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 3 * BuildLogMultilineRegexContent.CHUNK_LINES; i++) {
+            if (i % 997 == 0) {
+                log.append("start:\r\n").append(i).append("\r\nend.\r\n");
+            } else {
+                log.append("line ").append(i).append("\r\n");
+            }
+        }
+        buildLogMultilineRegexContent.regex = "(?<=\\n)start:\\r\\n(.*)\\r\\nend\\.";
+
+        for (String substText : new String[] {null, "found $1"}) {
+            for (int maxMatches : new int[] {0, 20}) {
+                buildLogMultilineRegexContent.substText = substText;
+                buildLogMultilineRegexContent.maxMatches = maxMatches;
+                buildLogMultilineRegexContent.maxSpanLines = 0;
+                when(build.getLogReader()).thenReturn(new StringReader(log.toString()));
+                final String expected = buildLogMultilineRegexContent.evaluate(build, listener, BuildLogMultilineRegexContent.MACRO_NAME);
+
+                buildLogMultilineRegexContent.maxSpanLines = 3;
+                when(build.getLogReader()).thenReturn(new StringReader(log.toString()));
+                final String result = buildLogMultilineRegexContent.evaluate(build, listener, BuildLogMultilineRegexContent.MACRO_NAME);
+
+                assertEquals(expected, result);
+            }
+        }
+    }
+
+    @Test
+    public void testGetContent_largeMaxSpanLines()
+            throws Exception {
+        buildLogMultilineRegexContent.regex = "ERROR.*\n.*";
+        for (int maxSpanLines : new int[] {50000000, Integer.MAX_VALUE - 1, Integer.MAX_VALUE}) {
+            buildLogMultilineRegexContent.maxSpanLines = maxSpanLines;
+            when(build.getLogReader()).thenReturn(new StringReader("line one\nERROR two\nline three\nline four\n"));
+            final String result = buildLogMultilineRegexContent.evaluate(build, listener, BuildLogMultilineRegexContent.MACRO_NAME);
+
+            assertEquals("[...truncated 1 lines...]\nERROR two\nline three\n[...truncated 1 lines...]\n", result);
+        }
+    }
 }
@@ -0,0 +1,109 @@
+package hudson.plugins.emailext.plugins.content;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how long the default <tt>BUILD_LOG_REGEX</tt> takes on a large
+ * synthetic log, running the regular expression on every line as before and
+ * on the lines {@link LiteralPrefilter} lets through.
+ *
+ * <p>
+ * Not run as part of the normal build, use
+ * <tt>mvn test -Dtest=BuildLogRegexContentBenchmark</tt>. The size of the log
+ * in MB can be set with <tt>-Dbenchmark.size=</tt>.
+ */
+public class BuildLogRegexContentBenchmark {
+
+    private static final long SIZE = Integer.getInteger("benchmark.size", 200) * 1024L * 1024L;
+
+    private static final int ITERATIONS = 3;
+
+    private static final int WARMUP = 1;
+
+    @Test
+    public void defaultRegex() throws Exception {
+        BuildLogRegexContent content = new BuildLogRegexContent();
+        content.linesBefore = 2;
+        content.linesAfter = 2;
+
+        boolean disabled = LiteralPrefilter.DISABLED;
+        try {
+            LiteralPrefilter.DISABLED = true;
+            String expected = content.getContent(new BufferedReader(new SyntheticLog(SIZE)));
+            double regex = run(content, expected);
+            LiteralPrefilter.DISABLED = false;
+            double prefiltered = run(content, expected);
+            System.out.printf("BUILD_LOG_REGEX, %d MB log: regex on every line %.1f ms/op, literal prefilter %.1f ms/op%n",
+                    SIZE / 1024 / 1024, regex, prefiltered);
+        } finally {
+            LiteralPrefilter.DISABLED = disabled;
+        }
+    }
+
+    private static double run(BuildLogRegexContent content, String expected) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            assertEquals(expected, content.getContent(new BufferedReader(new SyntheticLog(SIZE))));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            content.getContent(new BufferedReader(new SyntheticLog(SIZE)));
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    /**
+     * Makes up a compile and test log of the given size as it is read, with
+     * an error every few thousand lines.
+     */
+    private static class SyntheticLog extends Reader {
+
+        private static final String[] LINES = {
+            "[INFO] --- maven-compiler-plugin:2.5.1:compile (default-compile) @ core ---\n",
+            "[INFO] Compiling 412 source files to /home/jenkins/workspace/core/target/classes\n",
+            "Running hudson.plugins.emailext.plugins.content.BuildLogRegexContentTest\n",
+            "Tests run: 23, Failures: 0, Errors: 0, Skipped: 0, Time elapsed: 0.412 sec\n",
+            "    at org.apache.maven.surefire.booter.ForkedBooter.main(ForkedBooter.java:75)\n",
+            "[INFO] Downloading: http://repo.jenkins-ci.org/public/org/jenkins-ci/main/jenkins-core/1.554.1/jenkins-core-1.554.1.pom\n"
+        };
+
+        private static final String ERROR_LINE = "[ERROR] /home/jenkins/workspace/core/src/main/java/Foo.java:[12,8] cannot find symbol\n";
+
+        private long remaining;
+        private int lineNumber;
+        private String line = "";
+        private int pos;
+
+        SyntheticLog(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = 0;
+            while (n < len && remaining > 0) {
+                if (pos == line.length()) {
+                    lineNumber++;
+                    line = lineNumber % 5000 == 0 ? ERROR_LINE : LINES[lineNumber % LINES.length];
+                    pos = 0;
+                }
+                int count = (int) Math.min(Math.min(len - n, line.length() - pos), remaining);
+                line.getChars(pos, pos + count, cbuf, off + n);
+                pos += count;
+                n += count;
+                remaining -= count;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -4,16 +4,25 @@ import hudson.console.ConsoleNote;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.util.StreamTaskListener;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.StringReader;
+import java.nio.charset.Charset;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
 public class BuildLogRegexContentTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     private BuildLogRegexContent buildLogRegexContent;
     private TaskListener listener;
     private AbstractBuild build;
@@ -241,4 +250,28 @@ public class BuildLogRegexContentTest {
 
         assertEquals("JENKINS", result);
     }
+
+    @Test
+    public void testGetContent_chunkedLogGivesSameContent()
+            throws Exception {
+        String log = "1 ERROR\n2\n3\r\n4 ERROR\n5\n6\n7\r8\n9 ERROR\n10 ERROR\n11\n12\n13\n14\n15\n16 ERROR\n17\n18";
+        File file = tmp.newFile("log");
+        FileUtils.writeStringToFile(file, log, "UTF-8");
+        buildLogRegexContent.substText = "[$0]";
+
+        for (int chunkSize = 1; chunkSize < 30; chunkSize += 3) {
+            ChunkedLogScan chunkedLog = new ChunkedLogScan(file, Charset.forName("UTF-8"), chunkSize);
+            for (int context = 0; context < 4; context++) {
+                for (int maxMatches = 0; maxMatches < 4; maxMatches++) {
+                    buildLogRegexContent.linesBefore = context;
+                    buildLogRegexContent.linesAfter = 3 - context;
+                    buildLogRegexContent.maxMatches = maxMatches;
+                    buildLogRegexContent.showTruncatedLines = maxMatches != 2;
+
+                    assertEquals(buildLogRegexContent.getContent(new BufferedReader(new StringReader(log))),
+                            buildLogRegexContent.getContent(chunkedLog));
+                }
+            }
+        }
+    }
 }
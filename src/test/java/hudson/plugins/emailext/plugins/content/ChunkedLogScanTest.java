@@ -0,0 +1,59 @@
+package hudson.plugins.emailext.plugins.content;
+
+import java.io.File;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ChunkedLogScanTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testChunksEndAtLineEnds() throws Exception {
+        File file = tmp.newFile("log");
+        String text = "first\nsecond line\r\n\u00e9t\u00e9\n\nvery long line without an end";
+        FileUtils.writeStringToFile(file, text, "UTF-8");
+
+        for (int chunkSize = 1; chunkSize < 20; chunkSize++) {
+            ChunkedLogScan log = new ChunkedLogScan(file, UTF_8, chunkSize);
+            assertTrue(log.size() > 1);
+            StringBuilder all = new StringBuilder();
+            for (int i = 0; i < log.size(); i++) {
+                Reader reader = log.open(i, i + 1);
+                String chunk = IOUtils.toString(reader);
+                reader.close();
+                assertTrue(chunk, chunk.length() > 0);
+                if (i < log.size() - 1) {
+                    assertTrue(chunk, chunk.endsWith("\n"));
+                }
+                all.append(chunk);
+            }
+            assertEquals(text, all.toString());
+        }
+    }
+
+    @Test
+    public void testSingleLineIsOneChunk() throws Exception {
+        File file = tmp.newFile("log");
+        FileUtils.writeStringToFile(file, "no line end in sight", "UTF-8");
+
+        assertEquals(1, new ChunkedLogScan(file, UTF_8, 4).size());
+    }
+
+    @Test
+    public void testIsSplittable() {
+        assertTrue(ChunkedLogScan.isSplittable(UTF_8));
+        assertTrue(ChunkedLogScan.isSplittable(Charset.forName("ISO-8859-1")));
+        assertFalse(ChunkedLogScan.isSplittable(Charset.forName("UTF-16")));
+    }
+}
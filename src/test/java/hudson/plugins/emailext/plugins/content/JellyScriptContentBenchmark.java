@@ -0,0 +1,144 @@
+package hudson.plugins.emailext.plugins.content;
+
+import hudson.model.AbstractBuild;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.model.User;
+import hudson.plugins.emailext.ExtendedEmailPublisher;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.EditType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Measures how long the bundled <tt>html-with-health-and-console</tt> Jelly
+ * template takes to render for a build with a large changelog, compiling it
+ * every time as before and with {@link TemplateCache}.
+ *
+ * <p>
+ * Not run as part of the normal build, use
+ * <tt>mvn test -Dtest=JellyScriptContentBenchmark</tt>. The number of
+ * renderings can be set with <tt>-Dbenchmark.size=</tt>.
+ */
+public class JellyScriptContentBenchmark {
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.size", 200);
+
+    private static final int WARMUP = 20;
+
+    private static final int CHANGES = 1000;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void htmlWithHealthAndConsole() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getPublishersList().add(new ExtendedEmailPublisher());
+        FreeStyleBuild build = spy(j.buildAndAssertSuccess(project));
+        // the template lists changeSet.logs, like the Subversion change log has
+        doReturn(new LargeChangeLogSet(build, CHANGES)).when(build).getChangeSet();
+
+        JellyScriptContent content = new JellyScriptContent();
+        content.template = "html-with-health-and-console";
+
+        boolean disabled = TemplateCache.DISABLED;
+        try {
+            TemplateCache.DISABLED = true;
+            double compiled = run(content, build);
+            TemplateCache.DISABLED = false;
+            double cached = run(content, build);
+            System.out.printf("html-with-health-and-console.jelly, %d changes: compiled every time %.3f ms/op, cached script %.3f ms/op%n",
+                    CHANGES, compiled, cached);
+        } finally {
+            TemplateCache.DISABLED = disabled;
+        }
+    }
+
+    private static double run(JellyScriptContent content, FreeStyleBuild build) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            assertTrue(content.evaluate(build, TaskListener.NULL, JellyScriptContent.MACRO_NAME).contains("Change number " + (CHANGES - 1)));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            content.evaluate(build, TaskListener.NULL, JellyScriptContent.MACRO_NAME);
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    public static class LargeChangeLogSet extends ChangeLogSet<Change> {
+
+        private final List<Change> logs = new ArrayList<Change>();
+
+        public LargeChangeLogSet(AbstractBuild<?, ?> build, int size) {
+            super(build);
+            for (int i = 0; i < size; i++) {
+                logs.add(new Change(User.get("author" + (i % 20)), "Change number " + i, "src/File" + i + ".java"));
+            }
+        }
+
+        public List<Change> getLogs() {
+            return logs;
+        }
+
+        @Override
+        public boolean isEmptySet() {
+            return logs.isEmpty();
+        }
+
+        public Iterator<Change> iterator() {
+            return logs.iterator();
+        }
+    }
+
+    public static class Change extends ChangeLogSet.Entry {
+
+        private final User author;
+        private final String msg;
+        private final String path;
+
+        public Change(User author, String msg, String path) {
+            this.author = author;
+            this.msg = msg;
+            this.path = path;
+        }
+
+        @Override
+        public String getMsg() {
+            return msg;
+        }
+
+        @Override
+        public User getAuthor() {
+            return author;
+        }
+
+        @Override
+        public Collection<String> getAffectedPaths() {
+            return Collections.singletonList(path);
+        }
+
+        @Override
+        public Collection<? extends ChangeLogSet.AffectedFile> getAffectedFiles() {
+            return Collections.singletonList(new ChangeLogSet.AffectedFile() {
+                public String getPath() {
+                    return path;
+                }
+
+                public EditType getEditType() {
+                    return EditType.EDIT;
+                }
+            });
+        }
+    }
+}
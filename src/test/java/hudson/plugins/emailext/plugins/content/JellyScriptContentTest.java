@@ -75,6 +75,18 @@ public class JellyScriptContentTest {
         assertEquals("HELLO WORLD!", content.evaluate(build, listener, JellyScriptContent.MACRO_NAME));
     }
 
+    @Test
+    public void testTemplateIsCompiledOnce()
+            throws Exception {
+        content.template = "empty-template-on-classpath";
+        assertEquals("HELLO WORLD!", content.evaluate(build, listener, JellyScriptContent.MACRO_NAME));
+        Object script = TemplateCache.get().get("jelly:" + content.template, "classpath", null);
+        assertNotNull(script);
+
+        assertEquals("HELLO WORLD!", content.evaluate(build, listener, JellyScriptContent.MACRO_NAME));
+        assertSame(script, TemplateCache.get().get("jelly:" + content.template, "classpath", null));
+    }
+
     @Test
     public void testWhenTemplateNotFoundThrowFileNotFoundException()
             throws Exception {
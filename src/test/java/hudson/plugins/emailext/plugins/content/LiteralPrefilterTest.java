@@ -0,0 +1,75 @@
+package hudson.plugins.emailext.plugins.content;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LiteralPrefilterTest {
+
+    private static final String DEFAULT_REGEX = new BuildLogRegexContent().regex;
+
+    @Test
+    public void testDefaultRegexLiterals() {
+        LiteralPrefilter prefilter = LiteralPrefilter.of(Pattern.compile(DEFAULT_REGEX));
+
+        assertNotNull(prefilter);
+        assertEquals(Arrays.asList("error", "exception", "fatal", "failed", "failure", "undefined", "unresolved"),
+                prefilter.getLiterals());
+    }
+
+    @Test
+    public void testIgnoreCase() {
+        LiteralPrefilter prefilter = LiteralPrefilter.of(Pattern.compile(DEFAULT_REGEX));
+
+        assertTrue(prefilter.mayMatch("[javac] 3 ERRORS"));
+        assertTrue(prefilter.mayMatch("Build Failed"));
+        assertFalse(prefilter.mayMatch("[javac] Compiling 12 source files"));
+        assertFalse(prefilter.mayMatch(""));
+    }
+
+    @Test
+    public void testCaseSensitive() {
+        LiteralPrefilter prefilter = LiteralPrefilter.of(Pattern.compile("^\\[WARN(ING)?\\] .*deprecat"));
+
+        assertTrue(prefilter.mayMatch("[WARNING] foo is deprecated"));
+        assertFalse(prefilter.mayMatch("[WARNING] foo is Deprecated"));
+    }
+
+    @Test
+    public void testNoRequiredLiterals() {
+        assertNull(LiteralPrefilter.of(Pattern.compile(".*")));
+        assertNull(LiteralPrefilter.of(Pattern.compile("\\d+|\\w+")));
+        assertNull(LiteralPrefilter.of(Pattern.compile("error|\\s+")));
+        assertNull(LiteralPrefilter.of(Pattern.compile("(?<=x)y")));
+        assertNull(LiteralPrefilter.of(Pattern.compile("error", Pattern.LITERAL)));
+        assertNull(LiteralPrefilter.of(Pattern.compile("\u00e9chec")));
+    }
+
+    @Test
+    public void testMatchingLinesAlwaysPass() {
+        String[] regexes = {
+            DEFAULT_REGEX,
+            "BUILD (SUCCESS|FAILURE)",
+            "(?i)warn(ing)?s?:",
+            "Tests run: \\d+, Failures: [1-9]",
+            "[Ee]rror|ERROR",
+            "a+b{2,3}c?d"
+        };
+        String[] lines = {
+            "BUILD FAILURE", "BUILD SUCCESSFUL", "Warnings: 2", "WARN: x", "Tests run: 12, Failures: 3",
+            "Tests run: 12, Failures: 0", "error", "Error", "eRROR", "aabbd", "abbbcd", "abd", ""
+        };
+        for (String regex : regexes) {
+            Pattern pattern = Pattern.compile(regex);
+            LiteralPrefilter prefilter = LiteralPrefilter.of(pattern);
+            assertNotNull(regex, prefilter);
+            for (String line : lines) {
+                if (pattern.matcher(line).find()) {
+                    assertTrue(regex + " on " + line, prefilter.mayMatch(line));
+                }
+            }
+        }
+    }
+}
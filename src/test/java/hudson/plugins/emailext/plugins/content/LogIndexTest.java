@@ -0,0 +1,111 @@
+package hudson.plugins.emailext.plugins.content;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+import hudson.plugins.emailext.ExtendedEmailPublisher;
+import hudson.plugins.emailext.ExtendedEmailPublisherContext;
+import hudson.plugins.emailext.plugins.ContentBuilder;
+import hudson.plugins.emailext.plugins.RecipientProvider;
+import hudson.plugins.emailext.plugins.recipients.ListRecipientProvider;
+import hudson.plugins.emailext.plugins.trigger.SuccessTrigger;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.junit.Assert.*;
+
+public class LogIndexTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private FreeStyleBuild build(String body) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        ExtendedEmailPublisher publisher = new ExtendedEmailPublisher();
+        publisher.recipientList = "mickey@disney.com";
+        publisher.getConfiguredTriggers().add(new SuccessTrigger(
+                Collections.<RecipientProvider>singletonList(new ListRecipientProvider()), "", "", "", body, "", 0, "project"));
+        project.getPublishersList().add(publisher);
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                    throws InterruptedException, IOException {
+                for (int i = 0; i < 3000; i++) {
+                    listener.getLogger().print("line " + i + (i % 700 == 0 ? " ERROR: it broke" : "") + (i % 3 == 0 ? "\r\n" : "\n"));
+                }
+                listener.getLogger().println("WARN deprecated");
+                listener.getLogger().print("progress 10%\rprogress 100%\n");
+                return true;
+            }
+        });
+        return j.buildAndAssertSuccess(project);
+    }
+
+    @Test
+    public void testIndexesTheRegexesOfTheProject() throws Exception {
+        FreeStyleBuild build = build("${BUILD_LOG_REGEX, linesBefore=2}\n${BUILD_LOG_REGEX, regex=\"^WARN\"}");
+
+        assertTrue(new File(build.getRootDir(), LogIndex.FILE_NAME).isFile());
+        LogIndex index = LogIndex.get(build);
+        assertNotNull(index);
+        assertEquals(5, index.getMatches(new BuildLogRegexContent().regex).lines.length);
+        assertEquals(1, index.getMatches("^WARN").lines.length);
+        assertNull(index.getMatches("not configured"));
+    }
+
+    @Test
+    public void testIndexGivesSameContentAsScan() throws Exception {
+        FreeStyleBuild build = build("${BUILD_LOG_REGEX, linesBefore=2, linesAfter=1}");
+        BuildLogRegexContent content = new BuildLogRegexContent();
+        content.linesBefore = 2;
+        content.linesAfter = 1;
+        LogIndex.Matches matches = LogIndex.get(build).getMatches(content.regex);
+
+        String expected = content.getContent(new BufferedReader(build.getLogReader()));
+
+        assertEquals(expected, content.getContent(build, matches));
+        assertEquals(expected, content.evaluate(build, TaskListener.NULL, BuildLogRegexContent.MACRO_NAME));
+        content.maxMatches = 2;
+        assertEquals(content.getContent(new BufferedReader(build.getLogReader())), content.getContent(build, matches));
+    }
+
+    @Test
+    public void testIndexIsUsedWithOtherLogTokens() throws Exception {
+        String body = "${BUILD_LOG_REGEX}\n${BUILD_LOG_EXCERPT, start=\"WARN.*\", end=\"progress 100%\"}";
+        FreeStyleBuild build = build(body);
+        // a match the index doesn't know about shows whether the log was scanned
+        String charset = build.getCharset().name();
+        String log = FileUtils.readFileToString(build.getLogFile(), charset);
+        FileUtils.writeStringToFile(build.getLogFile(), log.replace("line 1500\r\n", "ERROR 150\r\n"), charset);
+
+        ExtendedEmailPublisher publisher = build.getProject().getPublishersList().get(ExtendedEmailPublisher.class);
+        ExtendedEmailPublisherContext context = new ExtendedEmailPublisherContext(publisher, build, null,
+                new StreamBuildListener(System.out, Charset.defaultCharset()));
+        String content = ContentBuilder.transformText(body, context, null);
+
+        assertEquals(content, 5, StringUtils.countMatches(content, "ERROR: it broke"));
+        assertFalse(content, content.contains("ERROR 150"));
+        assertTrue(content, content.contains("progress 10%"));
+    }
+
+    @Test
+    public void testNotIndexedWithoutToken() throws Exception {
+        FreeStyleBuild build = build("$DEFAULT_CONTENT");
+
+        assertFalse(new File(build.getRootDir(), LogIndex.FILE_NAME).exists());
+        assertNull(LogIndex.get(build));
+    }
+}
@@ -0,0 +1,100 @@
+package hudson.plugins.emailext.plugins.content;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ParameterBinderTest {
+
+    private static final String LOG = "start\nERROR one\nfoo\nERROR two\nbar\nend\n";
+
+    private AbstractBuild build;
+
+    @Before
+    public void setUp() throws Exception {
+        build = mock(AbstractBuild.class);
+        when(build.getLogReader()).thenAnswer(new Answer<Reader>() {
+            public Reader answer(InvocationOnMock invocation) {
+                return new StringReader(LOG);
+            }
+        });
+    }
+
+    @Test
+    public void testDuplicateArgumentsAreBoundLikeWhenEvaluated() throws Exception {
+        assertSameResult(new BuildLogRegexContent(), BuildLogRegexContent.MACRO_NAME,
+                "regex", "foo", "regex", "ERROR.*", "linesBefore", "1", "linesBefore", "0");
+        assertSameResult(new BuildLogRegexContent(), BuildLogRegexContent.MACRO_NAME,
+                "maxMatches", "1", "maxMatches", "2", "showTruncatedLines", "false", "showTruncatedLines", "true");
+        assertSameResult(new BuildLogExcerptContent(), BuildLogExcerptContent.MACRO_NAME,
+                "start", "foo", "start", "start", "end", "bar", "end", "end");
+        assertSameResult(new BuildLogMultilineRegexContent(), BuildLogMultilineRegexContent.MACRO_NAME,
+                "regex", "foo", "regex", "ERROR two\\nbar", "maxMatches", "5", "maxMatches", "1");
+    }
+
+    @Test
+    public void testBadArgumentsFailLikeWhenEvaluated() throws Exception {
+        assertSameResult(new BuildLogRegexContent(), BuildLogRegexContent.MACRO_NAME,
+                "nosuchparameter", "x");
+        assertSameResult(new BuildLogRegexContent(), BuildLogRegexContent.MACRO_NAME,
+                "maxMatches", "many");
+        assertSameResult(new BuildLogExcerptContent(), BuildLogExcerptContent.MACRO_NAME,
+                "start", "foo", "START", "bar");
+        assertSameResult(new BuildLogMultilineRegexContent(), BuildLogMultilineRegexContent.MACRO_NAME,
+                "regex", "ERROR", "maxMatches", "1.5");
+    }
+
+    @Test
+    public void testBindingOnlyLastsForTheCall() throws Exception {
+        ListMultimap<String, String> arguments = ArrayListMultimap.create();
+        arguments.put("regex", "ERROR.*");
+        BuildLogRegexContent token = ParameterBinder.bind(new BuildLogRegexContent(), BuildLogRegexContent.MACRO_NAME, arguments);
+
+        assertEquals("ERROR.*", token.regex);
+        // only while bind is running
+        assertFalse(ParameterBinder.isBinding(token));
+    }
+
+    /**
+     * Checks that the token evaluates to the same content, or fails the same
+     * way, when its arguments are bound by {@link ParameterBinder} and when
+     * it is evaluated through {@link DataBoundTokenMacro}.
+     */
+    private void assertSameResult(DataBoundTokenMacro token, String macroName, String... args) {
+        ListMultimap<String, String> arguments = ArrayListMultimap.create();
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i += 2) {
+            arguments.put(args[i], args[i + 1]);
+            map.put(args[i], args[i + 1]);
+        }
+
+        String evaluated;
+        try {
+            evaluated = token.evaluate(build, TaskListener.NULL, macroName, map, arguments);
+        } catch (Exception e) {
+            evaluated = e.getClass().getName() + ": " + e.getMessage();
+        }
+
+        String bound;
+        try {
+            bound = ParameterBinder.bind(token, macroName, arguments).evaluate(build, TaskListener.NULL, macroName);
+        } catch (Exception e) {
+            bound = e.getClass().getName() + ": " + e.getMessage();
+        }
+
+        assertEquals(evaluated, bound);
+    }
+}
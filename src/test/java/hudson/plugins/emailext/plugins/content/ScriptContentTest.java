@@ -2,6 +2,7 @@ package hudson.plugins.emailext.plugins.content;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assume.assumeThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -18,6 +19,7 @@ import hudson.scm.EditType;
 import hudson.util.DescribableList;
 import hudson.util.StreamTaskListener;
 
+import java.io.File;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.util.Arrays;
@@ -26,6 +28,7 @@ import java.util.Iterator;
 import java.util.Scanner;
 import jenkins.model.JenkinsLocationConfiguration;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -107,6 +110,37 @@ public class ScriptContentTest {
         assertEquals("HELLO WORLD!\n", scriptContent.evaluate(build, listener, ScriptContent.MACRO_NAME));
     }
 
+    @Test
+    public void testTemplateIsCompiledOnce()
+        throws Exception
+    {
+        scriptContent.template = "empty-groovy-template-on-classpath.template";
+        scriptContent.evaluate(build, listener, ScriptContent.MACRO_NAME);
+        assertSame(
+            TemplateCache.get().get(scriptContent.template, "classpath", null),
+            TemplateCache.get().get(scriptContent.template, "classpath", null));
+        assertEquals("HELLO WORLD!\n", scriptContent.evaluate(build, listener, ScriptContent.MACRO_NAME));
+    }
+
+    @Test
+    public void testChangedTemplateIsRecompiled()
+        throws Exception
+    {
+        File template = new File(rule.jenkins.getRootDir(), "email-templates/changing.template");
+        FileUtils.writeStringToFile(template, "one");
+        scriptContent.template = "changing.template";
+        assertEquals("one", scriptContent.evaluate(build, listener, ScriptContent.MACRO_NAME));
+        long size = TemplateCache.get().size();
+
+        FileUtils.writeStringToFile(template, "two!");
+        template.setLastModified(template.lastModified() + 2000);
+        // don't wait for the store to notice the change
+        TemplateStore.get().invalidateAll();
+        assertEquals("two!", scriptContent.evaluate(build, listener, ScriptContent.MACRO_NAME));
+        // the old version was dropped
+        assertEquals(size, TemplateCache.get().size());
+    }
+
     @Test
     public void testWhenScriptNotFoundThrowFileNotFoundException()
             throws Exception
@@ -0,0 +1,72 @@
+package hudson.plugins.emailext.plugins.content;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class TemplateStoreTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    private TemplateStore store;
+
+    @Before
+    public void setUp() {
+        store = TemplateStore.get();
+        store.invalidateAll();
+    }
+
+    @Test
+    public void testClasspathTemplateIsFound() throws Exception {
+        String content = IOUtils.toString(store.open("groovy-html.template"));
+        assertTrue(content.contains("<BODY>"));
+        assertEquals("classpath", store.getVersion("groovy-html.template"));
+    }
+
+    @Test
+    public void testFileIsReadOnceUntilItChanges() throws Exception {
+        File file = new File(j.jenkins.getRootDir(), "email-templates/store.template");
+        FileUtils.writeStringToFile(file, "one");
+        long now = System.currentTimeMillis();
+        TemplateStore.Entry first = store.find("store.template", now);
+
+        FileUtils.writeStringToFile(file, "two!");
+        file.setLastModified(file.lastModified() + 2000);
+        // not checked again within the poll interval
+        assertSame(first, store.find("store.template", now + TemplateStore.POLL_INTERVAL - 1));
+
+        TemplateStore.Entry second = store.find("store.template", now + TemplateStore.POLL_INTERVAL);
+        assertNotSame(first, second);
+        assertFalse(first.getVersion().equals(second.getVersion()));
+        assertEquals("two!", IOUtils.toString(store.open("store.template")));
+    }
+
+    @Test
+    public void testMissingFileIsRemembered() throws Exception {
+        long now = System.currentTimeMillis();
+        try {
+            store.find("later.template", now);
+            fail("should not have been found");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        FileUtils.writeStringToFile(new File(j.jenkins.getRootDir(), "email-templates/later.template"), "here");
+        try {
+            store.find("later.template", now + TemplateStore.MISSING_TTL - 1);
+            fail("should still be remembered as missing");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        assertFalse(store.find("later.template", now + TemplateStore.MISSING_TTL).isMissing());
+    }
+}
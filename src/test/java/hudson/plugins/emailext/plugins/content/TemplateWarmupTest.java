@@ -0,0 +1,47 @@
+package hudson.plugins.emailext.plugins.content;
+
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+public class TemplateWarmupTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Before
+    public void setUp() {
+        TemplateStore.get().invalidateAll();
+        TemplateCache.get().invalidateAll();
+    }
+
+    @Test
+    public void testBundledTemplatesAreListed() {
+        assertTrue(TemplateStore.get().list().contains("groovy-html.template"));
+        assertTrue(TemplateStore.get().list().contains("html.jelly"));
+    }
+
+    @Test
+    public void testTemplatesArePrecompiled() throws Exception {
+        File dir = new File(j.jenkins.getRootDir(), "email-templates");
+        FileUtils.writeStringToFile(new File(dir, "warmup.template"), "Build ${build.number}");
+        FileUtils.writeStringToFile(new File(dir, "warmup.jelly"),
+                "<j:jelly xmlns:j=\"jelly:core\">HELLO</j:jelly>");
+        // not compiled, but doesn't stop the others from being compiled
+        FileUtils.writeStringToFile(new File(dir, "broken.template"), "<% if (true) { %>");
+
+        int compiled = TemplateWarmup.precompileAll();
+
+        assertTrue(compiled >= 2);
+        assertEquals(compiled, TemplateCache.get().size());
+        assertNotNull(TemplateCache.get().get("warmup.template",
+                TemplateStore.get().getVersion("warmup.template"), null));
+        assertNotNull(TemplateCache.get().get("jelly:warmup",
+                TemplateStore.get().getVersion("warmup.jelly"), null));
+    }
+}
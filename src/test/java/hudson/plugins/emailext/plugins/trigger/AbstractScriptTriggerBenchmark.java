@@ -0,0 +1,65 @@
+package hudson.plugins.emailext.plugins.trigger;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.plugins.emailext.CompiledScriptCache;
+import hudson.plugins.emailext.ExtendedEmailPublisher;
+import hudson.plugins.emailext.plugins.RecipientProvider;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how long a typical trigger script takes to evaluate, compiling it
+ * every time as before and with {@link CompiledScriptCache}.
+ *
+ * <p>
+ * Not run as part of the normal build, use
+ * <tt>mvn test -Dtest=AbstractScriptTriggerBenchmark</tt>. The number of
+ * evaluations can be set with <tt>-Dbenchmark.size=</tt>.
+ */
+public class AbstractScriptTriggerBenchmark {
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.size", 500);
+
+    private static final int WARMUP = 50;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void oneLineScript() throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getPublishersList().add(new ExtendedEmailPublisher());
+        FreeStyleBuild build = j.buildAndAssertSuccess(project);
+
+        ScriptTrigger trigger = new ScriptTrigger(Collections.<RecipientProvider>emptyList(), "", "", "", "", "", 0, "",
+                "build.result.toString() == 'FAILURE'");
+
+        boolean disabled = CompiledScriptCache.DISABLED;
+        try {
+            CompiledScriptCache.DISABLED = true;
+            double compiled = run(trigger, build);
+            CompiledScriptCache.DISABLED = false;
+            double cached = run(trigger, build);
+            System.out.printf("trigger script: compiled every time %.3f ms/op, cached class %.3f ms/op%n", compiled, cached);
+        } finally {
+            CompiledScriptCache.DISABLED = disabled;
+        }
+    }
+
+    private static double run(ScriptTrigger trigger, FreeStyleBuild build) {
+        for (int i = 0; i < WARMUP; i++) {
+            assertFalse(trigger.trigger(build, TaskListener.NULL));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            trigger.trigger(build, TaskListener.NULL);
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+}